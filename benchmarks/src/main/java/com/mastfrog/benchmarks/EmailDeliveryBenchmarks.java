@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.benchmarks;
+
+import com.mastfrog.email.server.EmailAddress;
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import com.mastfrog.email.server.EmailSendService;
+import com.mastfrog.email.server.EmailServiceModule;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_QUEUE_WAIT;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_STAGE_WAIT;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_MAX_DELAY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_SEND_THREADS;
+import static com.mastfrog.email.server.HtmlTemplateProvider.SETTINGS_KEY_EMAIL_TEMPLATE;
+import com.mastfrog.email.server.PublishListener;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_HOST_SETTINGS_KEY;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_PORT_SETTINGS_KEY;
+import com.mastfrog.email.server.TestSmtpServer;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.statistics.MetricHistogram;
+import com.mastfrog.statistics.MetricRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.mail.Email;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures delivering HTML email end to end - EmailSendService.send()
+ * through validation, rendering, the mail queue and the real mail server
+ * to an in-process SMTP server on loopback - until the listener hears it
+ * was delivered. <code>throughput</code> sends batches of 200 and reports
+ * messages per second; <code>latency</code> sends one at a time and reports
+ * the distribution of how long each takes. The SMTP server can be made to
+ * take <code>serverLatencyMs</code> to accept each message and to refuse
+ * <code>failurePercent</code> of them with a 451, which are retried after
+ * a few milliseconds.
+ * <p>
+ * At the end of each trial, percentiles of the time mail waited in the
+ * mail queue and in each send stage are printed. Run with
+ * <code>-prof gc</code> to get bytes allocated per message.
+ *
+ * @author Tim Boudreau
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class EmailDeliveryBenchmarks {
+
+    private static final int BATCH = 200;
+    // Spread recipients over domains, as real mail is, so the per-domain
+    // queues all get work
+    private static final int DOMAINS = 32;
+    private static final String[] STAGES = {"validate", "render", "build", "queue", "listener"};
+
+    @Param({"2", "16", "64"})
+    public int workers;
+
+    @Param({"0", "2"})
+    public int serverLatencyMs;
+
+    @Param({"0"})
+    public int failurePercent;
+
+    private Path dir;
+    private TestSmtpServer server;
+    private Dependencies deps;
+    private EmailSendService service;
+    private EmailAddress sender;
+    private Map<String, Object> injected;
+    private final AtomicLong sent = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("email-templates");
+        Files.write(dir.resolve("message-template.html"),
+                HtmlFormatterBenchmarks.template(1024).getBytes(StandardCharsets.UTF_8));
+        server = new TestSmtpServer().keepMessages(false).dataDelay(serverLatencyMs)
+                .failRandomly(failurePercent / 100D, "451 4.3.0 Try again later");
+        Settings settings = new SettingsBuilder()
+                .add(Dependencies.SYSTEM_PROP_PRODUCTION_MODE, "true")
+                .add(SETTINGS_KEY_EMAIL_TEMPLATE, dir.toString())
+                .add(SMTP_HOST_SETTINGS_KEY, server.host())
+                .add(SMTP_PORT_SETTINGS_KEY, Integer.toString(server.port()))
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "shop@example.com")
+                .add(SETTINGS_KEY_EMAIL_SEND_THREADS, Integer.toString(workers))
+                .add(SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS, "20")
+                .add(SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY, "5")
+                .add(SETTINGS_KEY_EMAIL_RETRY_MAX_DELAY, "50")
+                .build();
+        deps = Dependencies.builder().add(settings, DEFAULT_NAMESPACE)
+                .add(new EmailServiceModule(settings)).build();
+        service = deps.getInstance(EmailSendService.class);
+        sender = new EmailAddress("The Shop <shop@example.com>");
+        injected = new HashMap<>();
+        injected.put("customer", "Ann");
+        injected.put("orderId", 4411);
+        injected.put("total", "$42.00");
+        injected.put("unsubscribe", "https://example.com/u/abc123");
+        MetricRegistry.getDefault().histogram(METRIC_EMAIL_QUEUE_WAIT).reset();
+        for (String stage : STAGES) {
+            MetricRegistry.getDefault().histogram(METRIC_EMAIL_STAGE_WAIT + '.' + stage).reset();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.println();
+        System.out.println(waits(METRIC_EMAIL_QUEUE_WAIT));
+        for (String stage : STAGES) {
+            System.out.println(waits(METRIC_EMAIL_STAGE_WAIT + '.' + stage));
+        }
+        System.out.println(server.messages() + " messages over " + server.connections() + " connections");
+        deps.shutdown();
+        server.close();
+        Files.delete(dir.resolve("message-template.html"));
+        Files.delete(dir);
+    }
+
+    private static String waits(String metric) {
+        MetricHistogram h = MetricRegistry.getDefault().histogram(metric);
+        return String.format(Locale.US, "%-28s p50 %8.3fms  p99 %8.3fms  max %8.3fms  (%d)", metric,
+                h.valueAtPercentile(50) / 1000000D, h.valueAtPercentile(99) / 1000000D,
+                h.max() / 1000000D, h.count());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput() throws InterruptedException {
+        send(BATCH);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void latency() throws InterruptedException {
+        send(1);
+    }
+
+    private void send(int count) throws InterruptedException {
+        Batch batch = new Batch(count);
+        for (int i = 0; i < count; i++) {
+            long n = sent.getAndIncrement();
+            service.send(batch, "Your order #" + n, "Thanks for your order.", injected, sender,
+                    "customer" + n + "@example" + (n % DOMAINS) + ".com");
+        }
+        if (!batch.done.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(batch.done.getCount() + " of " + count + " not delivered");
+        }
+        if (batch.failures.get() > 0) {
+            throw new IllegalStateException(batch.failures.get() + " of " + count + " failed");
+        }
+    }
+
+    private static final class Batch implements PublishListener<Email> {
+
+        final CountDownLatch done;
+        final AtomicInteger failures = new AtomicInteger();
+
+        Batch(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void progress(int i, int steps, String string, Email email) {
+        }
+
+        @Override
+        public void onSuccess(Email email) {
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable failure, Email message) {
+            failures.incrementAndGet();
+            done.countDown();
+        }
+    }
+}
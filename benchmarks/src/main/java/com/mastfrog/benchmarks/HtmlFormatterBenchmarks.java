@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.benchmarks;
+
+import com.mastfrog.email.server.EmailAddress;
+import com.mastfrog.email.server.EmailServiceModule;
+import com.mastfrog.email.server.HtmlMessageFormatter;
+import com.mastfrog.email.server.HtmlTemplateProvider;
+import static com.mastfrog.email.server.HtmlTemplateProvider.SETTINGS_KEY_EMAIL_TEMPLATE;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.util.streams.Streams;
+import freemarker.template.Template;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures rendering an HTML email with HtmlMessageFormatter, for templates
+ * of about 1, 8 and 64KB, against <code>legacy</code> - the way it was done
+ * before: copy the model into a HashMap, escape with five String.replace()
+ * calls, render to bytes through an OutputStreamWriter and decode them back
+ * into a String. Both use the same compiled template. Run with
+ * <code>-prof gc</code> to get bytes allocated per message.
+ *
+ * @author Tim Boudreau
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class HtmlFormatterBenchmarks {
+
+    private static final String SUBJECT = "Your order #4411 & what happens next";
+    private static final String BODY = "Hi Ann,\n\nThanks for your order. We'll email "
+            + "orders@example.com when it ships; questions go to help@example.com.\n\n"
+            + "Items: 2 x <Widget>, 1 x Gadget & case.\n\nRegards,\nThe Team";
+
+    @Param({"1", "8", "64"})
+    public int templateKb;
+
+    private Path dir;
+    private Dependencies deps;
+    private HtmlMessageFormatter formatter;
+    private Template template;
+    private EmailAddress sender;
+    private Map<String, Object> injected;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("email-templates");
+        Files.write(dir.resolve("message-template.html"), template(templateKb * 1024).getBytes(StandardCharsets.UTF_8));
+        Settings settings = new SettingsBuilder()
+                .add(SETTINGS_KEY_EMAIL_TEMPLATE, dir.toString())
+                .build();
+        deps = Dependencies.builder().add(settings, DEFAULT_NAMESPACE)
+                .add(new EmailServiceModule(settings)).build();
+        formatter = deps.getInstance(HtmlMessageFormatter.class);
+        template = deps.getInstance(HtmlTemplateProvider.class).template(null);
+        sender = new EmailAddress("The Shop <shop@example.com>");
+        injected = new HashMap<>();
+        injected.put("customer", "Ann");
+        injected.put("orderId", 4411);
+        injected.put("total", "$42.00");
+        injected.put("unsubscribe", "https://example.com/u/abc123");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        deps.shutdown();
+        Files.delete(dir.resolve("message-template.html"));
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter.format(sender, SUBJECT, BODY, injected);
+    }
+
+    @Benchmark
+    public String legacy() throws Exception {
+        Map<String, Object> model = new HashMap<>(injected);
+        model.put("subject", legacyEscape(SUBJECT));
+        model.put("message", legacyEscape(BODY));
+        model.put("from", sender.toString());
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            template.process(model, new OutputStreamWriter(out, "UTF-8"));
+            return Streams.readString(new ByteArrayInputStream(out.toByteArray()), "UTF-8", 256);
+        }
+    }
+
+    private static String legacyEscape(String s) {
+        return s.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\n", "</p><p>")
+                .replace("@", "&#064;");
+    }
+
+    /**
+     * A template of roughly the given size: a header, then repeated blocks
+     * of static markup and substitutions, then a footer.
+     */
+    static String template(int size) {
+        StringBuilder sb = new StringBuilder(size + 512);
+        sb.append("<html><head><title>${subject}</title></head><body>\n")
+                .append("<h1>${subject}</h1>\n<p>Hello ${customer},</p>\n<p>${message}</p>\n");
+        int block = 0;
+        while (sb.length() < size) {
+            sb.append("<table class=\"row row-").append(block++).append("\"><tr>")
+                    .append("<td style=\"padding: 8px; font-family: sans-serif\">Order ${orderId}</td>")
+                    .append("<td style=\"padding: 8px; text-align: right\">${total}</td></tr></table>\n");
+        }
+        sb.append("<p>Sent by ${from}. <a href=\"${unsubscribe}\">Unsubscribe</a></p></body></html>\n");
+        return sb.toString();
+    }
+}
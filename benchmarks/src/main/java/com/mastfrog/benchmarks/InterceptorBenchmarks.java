@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.benchmarks;
+
+import com.google.inject.Module;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.statistics.JmxAopModule;
+import com.mastfrog.statsd.aop.StatsdModule;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what &#064;Benchmark (JmxAopModule) and &#064;Metric (StatsdModule)
+ * add to a call, against the same call on an instance which is not
+ * intercepted. Run with <code>-prof gc</code> (or via
+ * {@link InterceptorOverhead}) to get bytes allocated per operation, and with
+ * <code>-t</code> to vary the number of threads.
+ * <p>
+ * Each configuration lives in its own state class, so a fork only builds the
+ * injector the benchmark method it is running needs. Nothing leaves the
+ * machine: UDP is either disabled, sent to a {@link UdpSink} on loopback, or
+ * the statsd client is a {@link NoOpStatsdClient}.
+ *
+ * @author Tim Boudreau
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class InterceptorBenchmarks {
+
+    @Benchmark
+    public long bare(Bare state, Input input) {
+        return state.work.timed(input.next());
+    }
+
+    @Benchmark
+    public long benchmarkInterceptor(JmxNoUdp state, Input input) {
+        return state.work.timed(input.next());
+    }
+
+    @Benchmark
+    public long benchmarkInterceptorUdp(JmxUdp state, Input input) {
+        return state.work.timed(input.next());
+    }
+
+    @Benchmark
+    public long metricTime(StatsdNoOp state, Input input) {
+        return state.work.timed(input.next());
+    }
+
+    @Benchmark
+    public long metricIncrement(StatsdNoOp state, Input input) {
+        return state.work.increment(input.next());
+    }
+
+    @Benchmark
+    public long metricConcurrency(StatsdNoOp state, Input input) {
+        return state.work.concurrency(input.next());
+    }
+
+    @Benchmark
+    public long metricTimeUdp(StatsdUdp state, Input input) {
+        return state.work.timed(input.next());
+    }
+
+    @Benchmark
+    public long benchmarkAndMetric(Both state, Input input) {
+        return state.work.timed(input.next());
+    }
+
+    @State(Scope.Thread)
+    public static class Input {
+
+        private long value = System.nanoTime();
+
+        long next() {
+            return value++;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Bare {
+
+        final Work work = new Work();
+    }
+
+    /**
+     * Base class for configurations which get their Work from an injector.
+     */
+    public abstract static class Injected {
+
+        Dependencies deps;
+        Work work;
+
+        abstract Module[] modules(Settings settings);
+
+        void configure(SettingsBuilder sb) throws IOException {
+            // do nothing
+        }
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            SettingsBuilder sb = SettingsBuilder.createDefault()
+                    .add(JmxAopModule.ENABLE_UDP, "false")
+                    .add(JmxAopModule.ENABLE_JFR_CONTROL, "false")
+                    .add(StatsdModule.SETTINGS_KEY_STATSD_ENABLED, "true")
+                    .add(StatsdModule.SETTINGS_KEY_STATSD_PREFIX, "bench")
+                    .add(StatsdModule.SETTINGS_KEY_STATSD_TIME_TO_LIVE, "-1");
+            configure(sb);
+            Settings settings = sb.build();
+            deps = Dependencies.builder().add(settings, DEFAULT_NAMESPACE)
+                    .add(modules(settings)).build();
+            work = deps.getInstance(Work.class);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            deps.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class JmxNoUdp extends Injected {
+
+        @Override
+        Module[] modules(Settings settings) {
+            return new Module[]{new JmxAopModule(settings)};
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class JmxUdp extends Injected {
+
+        private UdpSink sink;
+
+        @Override
+        void configure(SettingsBuilder sb) throws IOException {
+            sink = new UdpSink();
+            sb.add(JmxAopModule.ENABLE_UDP, "true")
+                    .add(JmxAopModule.UDP_DEST, sink.host())
+                    .add(JmxAopModule.UDP_PORT, Integer.toString(sink.port()));
+        }
+
+        @Override
+        Module[] modules(Settings settings) {
+            return new Module[]{new JmxAopModule(settings)};
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            try {
+                super.tearDown();
+            } finally {
+                sink.close();
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class StatsdNoOp extends Injected {
+
+        @Override
+        Module[] modules(Settings settings) {
+            return new Module[]{new NoOpStatsdModule(settings)};
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class StatsdUdp extends Injected {
+
+        private UdpSink sink;
+
+        @Override
+        void configure(SettingsBuilder sb) throws IOException {
+            sink = new UdpSink();
+            // Send each call from the calling thread, rather than from the
+            // registry's export thread, so the client's cost is measured
+            sb.add(StatsdModule.SETTINGS_KEY_STATSD_HOST, sink.host())
+                    .add(StatsdModule.SETTINGS_KEY_STATSD_PORT, Integer.toString(sink.port()))
+                    .add(StatsdModule.SETTINGS_KEY_EXPORT_INTERVAL_MILLIS, "0");
+        }
+
+        @Override
+        Module[] modules(Settings settings) {
+            return new Module[]{new StatsdModule(settings)};
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            try {
+                super.tearDown();
+            } finally {
+                sink.close();
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Both extends Injected {
+
+        @Override
+        Module[] modules(Settings settings) {
+            return new Module[]{new JmxAopModule(settings), new NoOpStatsdModule(settings)};
+        }
+    }
+
+    static final class NoOpStatsdModule extends StatsdModule {
+
+        NoOpStatsdModule(Settings settings) {
+            super(settings, NoOpStatsdClient.class);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link InterceptorBenchmarks} at 1, 8 and 64 threads with the GC
+ * profiler, writing JMH's JSON output for each thread count and a plain-text
+ * table of ns/op and bytes/op which can be checked in as a baseline and
+ * diffed against later runs.
+ * <p>
+ * Usage: <code>java -cp target/benchmarks.jar
+ * com.mastfrog.benchmarks.InterceptorOverhead [jmh options]</code>. The
+ * thread counts can be changed with <code>-Dthreads=1,4</code> and the
+ * output directory with <code>-Dresults.dir=...</code> (default
+ * <code>target/jmh</code>); any other arguments are passed to JMH, so e.g.
+ * <code>-f 1 -wi 2 -i 3</code> gives a quicker, noisier run.
+ *
+ * @author Tim Boudreau
+ */
+public final class InterceptorOverhead {
+
+    private static final String ALLOC_RATE_NORM = "gc.alloc.rate.norm";
+
+    private InterceptorOverhead() {
+        throw new AssertionError();
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        Options cli = new CommandLineOptions(args);
+        File dir = new File(System.getProperty("results.dir", "target/jmh"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        List<RunResult> results = new ArrayList<>();
+        for (String t : System.getProperty("threads", "1,8,64").split(",")) {
+            int threads = Integer.parseInt(t.trim());
+            Options opts = new OptionsBuilder()
+                    .parent(cli)
+                    .include(InterceptorBenchmarks.class.getName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(dir, "interceptors-" + threads + "t.json").getPath())
+                    .build();
+            results.addAll(new Runner(opts).run());
+        }
+        File summary = new File(dir, "interceptors-summary.txt");
+        try (PrintStream out = new PrintStream(summary, "UTF-8")) {
+            writeSummary(results, out);
+        }
+        writeSummary(results, System.out);
+        System.out.println("Wrote " + summary.getAbsolutePath());
+    }
+
+    static void writeSummary(List<RunResult> results, PrintStream out) {
+        out.println(String.format(Locale.US, "%-28s %7s %16s %12s",
+                "benchmark", "threads", "ns/op", "B/op"));
+        for (RunResult r : results) {
+            String name = r.getParams().getBenchmark();
+            name = name.substring(name.lastIndexOf('.') + 1);
+            Result primary = r.getPrimaryResult();
+            out.println(String.format(Locale.US, "%-28s %7d %8.2f +- %-4.1f %12.1f",
+                    name, r.getParams().getThreads(), primary.getScore(),
+                    primary.getScoreError(), allocatedBytes(r)));
+        }
+    }
+
+    private static double allocatedBytes(RunResult r) {
+        // The GC profiler's label has changed across JMH versions (it
+        // used to carry a leading middle-dot)
+        for (Map.Entry<String, Result> e : r.getSecondaryResults().entrySet()) {
+            if (e.getKey().endsWith(ALLOC_RATE_NORM)) {
+                return e.getValue().getScore();
+            }
+        }
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.benchmarks;
+
+import com.mastfrog.function.misc.QuietAutoClosable;
+import com.mastfrog.statsd.aop.Counter;
+import com.mastfrog.statsd.aop.StatsdClient;
+
+/**
+ * StatsdClient which does nothing, for measuring the cost of
+ * MetricInterceptor itself without any client behind it.
+ *
+ * @author Tim Boudreau
+ */
+public final class NoOpStatsdClient implements StatsdClient, QuietAutoClosable {
+
+    @Override
+    public QuietAutoClosable benchmark(String string) {
+        return this;
+    }
+
+    @Override
+    public StatsdClient count(String string, int value) {
+        return this;
+    }
+
+    @Override
+    public StatsdClient decrement(String string) {
+        return this;
+    }
+
+    @Override
+    public StatsdClient gauge(String string, int value) {
+        return this;
+    }
+
+    @Override
+    public StatsdClient increment(String name) {
+        return this;
+    }
+
+    @Override
+    public StatsdClient time(String timing, int millis) {
+        return this;
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return new NoOpCounter(name);
+    }
+
+    @Override
+    public void close() {
+        // do nothing
+    }
+
+    private static final class NoOpCounter implements Counter {
+
+        private final String name;
+
+        NoOpCounter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public Counter increment() {
+            return this;
+        }
+
+        @Override
+        public Counter decrement() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives and discards UDP packets on an ephemeral loopback port, so that
+ * benchmarks which publish over UDP do not depend on a statsd server or on
+ * multicast being routable on the machine running them.
+ *
+ * @author Tim Boudreau
+ */
+final class UdpSink implements AutoCloseable, Runnable {
+
+    private final DatagramSocket socket;
+    private final Thread thread;
+    private final AtomicLong received = new AtomicLong();
+
+    UdpSink() throws SocketException {
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        thread = new Thread(this, "udp-sink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String host() {
+        return socket.getLocalAddress().getHostAddress();
+    }
+
+    int port() {
+        return socket.getLocalPort();
+    }
+
+    long received() {
+        return received.get();
+    }
+
+    @Override
+    public void run() {
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        while (!socket.isClosed()) {
+            try {
+                socket.receive(packet);
+                received.incrementAndGet();
+            } catch (IOException ex) {
+                // closed
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
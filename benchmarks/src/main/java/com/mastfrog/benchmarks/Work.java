@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.benchmarks;
+
+import com.mastfrog.statsd.aop.Metric;
+import com.mastfrog.util.perf.Benchmark;
+
+/**
+ * The object whose methods are benchmarked. The work done is deliberately
+ * trivial, so that what is measured is the cost of interception. Methods are
+ * public and non-final so Guice can intercept them.
+ *
+ * @author Tim Boudreau
+ */
+public class Work {
+
+    /**
+     * Intercepted by both modules, if both are installed.
+     */
+    @Benchmark("work.timed")
+    @Metric(value = "work.timed", type = Metric.Types.TIME)
+    public long timed(long value) {
+        return mix(value);
+    }
+
+    @Metric(value = "work.increment", type = Metric.Types.INCREMENT)
+    public long increment(long value) {
+        return mix(value);
+    }
+
+    @Metric(value = "work.concurrency", type = Metric.Types.CONCURRENCY)
+    public long concurrency(long value) {
+        return mix(value);
+    }
+
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,24 @@
+package com.mastfrog.email.server;
+
+/**
+ * Implemented by template enums whose mail is often rendered with the same
+ * subject, body and model - digests and alerts sent to many people - so
+ * HtmlMessageFormatter keeps what it rendered and reuses it, rather than
+ * running the template again.
+ * <p>
+ * The model is copied and compared with equals(). Mail is only cached if
+ * every value in it is of a type which cannot change - strings, boxed
+ * primitives, BigInteger and BigDecimal, enums, UUIDs and java.time types;
+ * with anything else (collections, java.util.Date, beans) the template is
+ * run every time. Output is kept until the template changes, or until more
+ * than <code>email.render.cache.size</code> characters of it are held.
+ *
+ * @author Tim Boudreau
+ */
+public interface CachedTemplate {
+
+    /**
+     * Whether mail using this template should have its output cached.
+     */
+    boolean cacheRenderedOutput();
+}
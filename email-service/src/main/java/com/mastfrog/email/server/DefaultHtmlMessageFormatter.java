@@ -2,69 +2,292 @@ package com.mastfrog.email.server;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_RENDER_CACHE_SIZE;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RENDER_CACHE_SIZE;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.util.preconditions.Exceptions;
-import com.mastfrog.util.streams.Streams;
+import freemarker.template.ObjectWrapper;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import freemarker.template.SimpleCollection;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.HashMap;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 @Singleton
 final class DefaultHtmlMessageFormatter implements HtmlMessageFormatter {
 
+    // A thread's buffer is thrown away rather than kept if rendering made it
+    // larger than this many characters
+    private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+    private static final ThreadLocal<RenderBuffer> BUFFERS = new ThreadLocal<>();
     private final HtmlTemplateProvider provider;
     private final boolean escape;
+    // Null if turned off
+    private final RenderCache cache;
     @Inject
     DefaultHtmlMessageFormatter(HtmlTemplateProvider prov, Settings settings) {
         this.provider = prov;
         escape = settings.getBoolean("email.escape.html", true);
+        long cacheSize = settings.getLong(SETTINGS_KEY_EMAIL_RENDER_CACHE_SIZE, DEFAULT_EMAIL_RENDER_CACHE_SIZE);
+        cache = cacheSize > 0 ? new RenderCache(cacheSize) : null;
     }
 
     private String escape(String s) {
         if (!escape) {
             return s;
         }
-        return s.replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;")
-                .replace("\n", "</p><p>")
-                .replace("@", "&#064;");
+        return escapeHtml(s);
+    }
+
+    /**
+     * Escape &amp;, &lt;, &gt; and &#064;, and turn newlines into paragraph
+     * breaks, in one pass; returns the string itself if there is nothing to
+     * escape.
+     */
+    static String escapeHtml(String s) {
+        if (s == null) {
+            return null;
+        }
+        int len = s.length();
+        int start = 0;
+        while (start < len && replacement(s.charAt(start)) == null) {
+            start++;
+        }
+        if (start == len) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(len + 16);
+        sb.append(s, 0, start);
+        for (int i = start; i < len; i++) {
+            char c = s.charAt(i);
+            String rep = replacement(c);
+            if (rep == null) {
+                sb.append(c);
+            } else {
+                sb.append(rep);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String replacement(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '\n':
+                return "</p><p>";
+            case '@':
+                return "&#064;";
+            default:
+                return null;
+        }
     }
 
     @Override
     public String format(EmailAddress sender, String subject, String body, Map<String, Object> injected) {
-        Template tpl = provider.template(null);
-        Map<String, Object> model = new HashMap<>(injected);
-        model.put("subject", escape(subject));
-        model.put("message", escape(body));
-        model.put("from", sender.toString());
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            tpl.process(model, new OutputStreamWriter(out, "UTF-8"));
-            String result = Streams.readString(new ByteArrayInputStream(out.toByteArray()), "UTF-8", 256);
-            return result;
-        } catch (TemplateException | IOException ex) {
-            return Exceptions.chuck(ex);
-        }
+        return render(provider.template(null), sender, subject, body, injected);
     }
 
     @Override
     public <T extends Enum<T>> String format(T template, EmailAddress sender, String subject, String body, Map<String, Object> injected) {
         Template tpl = provider.template(template);
-        Map<String, Object> model = new HashMap<>(injected);
-        model.put("subject", escape(subject));
-        model.put("message", escape(body));
-        model.put("from", sender.toString());
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            tpl.process(model, new OutputStreamWriter(out, "UTF-8"));
-            String result = Streams.readString(new ByteArrayInputStream(out.toByteArray()), "UTF-8", 256);
-            return result;
+        if (cache == null || !RenderCache.isCached(template)) {
+            return render(tpl, sender, subject, body, injected);
+        }
+        RenderCache.Key key = RenderCache.key(template, tpl, subject, body, sender.toString(), injected);
+        if (key == null) {
+            return render(tpl, sender, subject, body, injected);
+        }
+        String result = cache.get(key);
+        if (result == null) {
+            result = render(tpl, sender, subject, body, injected);
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    private String render(Template tpl, EmailAddress sender, String subject, String body, Map<String, Object> injected) {
+        Model model = new Model(tpl.getObjectWrapper(), escape(subject), escape(body), sender.toString(), injected);
+        RenderBuffer buffer = BUFFERS.get();
+        if (buffer == null || buffer.inUse) {
+            // First use on this thread, or a template which sends mail
+            buffer = new RenderBuffer();
+            if (BUFFERS.get() == null) {
+                BUFFERS.set(buffer);
+            }
+        }
+        buffer.inUse = true;
+        try {
+            tpl.process(model, buffer);
+            return buffer.sb.toString();
         } catch (TemplateException | IOException ex) {
             return Exceptions.chuck(ex);
+        } finally {
+            buffer.inUse = false;
+            if (buffer.sb.capacity() > MAX_RETAINED_BUFFER) {
+                // A nested render's buffer is not the thread's, which the
+                // outer render is still writing to
+                if (buffer == BUFFERS.get()) {
+                    BUFFERS.remove();
+                }
+            } else {
+                buffer.sb.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * The subject, message and sender, over the caller's values - what
+     * putting them into a copy of the caller's map would give, without the
+     * copy (FreeMarker uses a TemplateHashModel as it is, where it would
+     * copy a Map). Listing it, or its keys or values, sees the same entries
+     * the map would have, minus nulls.
+     */
+    private static final class Model implements TemplateHashModelEx {
+
+        private final ObjectWrapper wrapper;
+        private final String subject;
+        private final String message;
+        private final String from;
+        private final Map<String, Object> injected;
+
+        Model(ObjectWrapper wrapper, String subject, String message, String from, Map<String, Object> injected) {
+            this.wrapper = wrapper;
+            this.subject = subject;
+            this.message = message;
+            this.from = from;
+            this.injected = injected;
+        }
+
+        @Override
+        public TemplateModel get(String key) throws TemplateModelException {
+            Object value;
+            switch (key) {
+                case "subject":
+                    value = subject;
+                    break;
+                case "message":
+                    value = message;
+                    break;
+                case "from":
+                    value = from;
+                    break;
+                default:
+                    value = injected == null ? null : injected.get(key);
+            }
+            return value == null ? null : wrapper.wrap(value);
+        }
+
+        private List<String> names() {
+            List<String> result = new ArrayList<>(3 + (injected == null ? 0 : injected.size()));
+            if (subject != null) {
+                result.add("subject");
+            }
+            if (message != null) {
+                result.add("message");
+            }
+            result.add("from");
+            if (injected != null) {
+                for (Map.Entry<String, Object> e : injected.entrySet()) {
+                    switch (e.getKey()) {
+                        case "subject":
+                        case "message":
+                        case "from":
+                            break;
+                        default:
+                            if (e.getValue() != null) {
+                                result.add(e.getKey());
+                            }
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public int size() {
+            return names().size();
+        }
+
+        @Override
+        public TemplateCollectionModel keys() {
+            return new SimpleCollection(names(), wrapper);
+        }
+
+        @Override
+        public TemplateCollectionModel values() throws TemplateModelException {
+            List<String> names = names();
+            List<TemplateModel> values = new ArrayList<>(names.size());
+            for (String name : names) {
+                values.add(get(name));
+            }
+            return new SimpleCollection(values, wrapper);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+    }
+
+    /**
+     * Unsynchronized StringWriter, reused by each thread.
+     */
+    private static final class RenderBuffer extends Writer {
+
+        final StringBuilder sb = new StringBuilder(4096);
+        boolean inUse;
+
+        @Override
+        public void write(int c) {
+            sb.append((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            sb.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            sb.append(str, off, off + len);
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            sb.append(csq);
+            return this;
+        }
+
+        @Override
+        public Writer append(CharSequence csq, int start, int end) {
+            sb.append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public Writer append(char c) {
+            sb.append(c);
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
         }
     }
 }
@@ -24,6 +24,8 @@
 package com.mastfrog.email.server;
 
 import com.google.inject.ImplementedBy;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  *
@@ -36,6 +38,14 @@ public abstract class DefaultTemplate {
 
     protected abstract Class<?> relativeTo();
 
+    /**
+     * A model to render the template with when warming it up at startup; by
+     * default, an empty map.
+     */
+    protected Map<String, Object> sampleModel() {
+        return Collections.emptyMap();
+    }
+
     public static DefaultTemplate create(Class<?> relativeTo, String resourceName) {
         return new DTImpl(relativeTo, resourceName);
     }
@@ -0,0 +1,48 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_DOMAIN_BURST;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_DOMAIN_RATE;
+import com.mastfrog.settings.Settings;
+import java.util.function.Function;
+
+/**
+ * Creates the token bucket for a recipient domain from settings:
+ * <code>email.domain.rate</code> and <code>email.domain.burst</code> apply
+ * to every domain, and either can be overridden for one domain by appending
+ * it to the key, e.g. <code>email.domain.rate.example.com</code>.
+ *
+ * @author Tim Boudreau
+ */
+final class DomainLimits implements Function<String, TokenBucket> {
+
+    private final Settings settings;
+    private final double defaultRate;
+    private final double defaultBurst;
+
+    DomainLimits(Settings settings) {
+        this.settings = settings;
+        this.defaultRate = settings.getDouble(SETTINGS_KEY_EMAIL_DOMAIN_RATE, 0);
+        this.defaultBurst = settings.getDouble(SETTINGS_KEY_EMAIL_DOMAIN_BURST, 0);
+    }
+
+    /**
+     * Get a bucket for a domain.
+     *
+     * @param domain The domain
+     * @return A new bucket, or null if mail to the domain is not limited
+     */
+    @Override
+    public TokenBucket apply(String domain) {
+        double rate = defaultRate;
+        double burst = defaultBurst;
+        if (!domain.isEmpty()) {
+            rate = settings.getDouble(SETTINGS_KEY_EMAIL_DOMAIN_RATE + '.' + domain, rate);
+            burst = settings.getDouble(SETTINGS_KEY_EMAIL_DOMAIN_BURST + '.' + domain, burst);
+        }
+        if (rate <= 0) {
+            return null;
+        }
+        // By default allow about a second's worth at once
+        return new TokenBucket(rate, burst > 0 ? burst : Math.max(1, rate), System.nanoTime());
+    }
+}
@@ -1,7 +1,11 @@
 package com.mastfrog.email.server;
 
 import com.google.inject.ImplementedBy;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.stream.Stream;
+import org.netbeans.validation.api.InvalidInputException;
 import org.apache.commons.mail.Email;
 
 /**
@@ -11,6 +15,70 @@ import org.apache.commons.mail.Email;
  */
 @ImplementedBy(EmailSendServiceImpl.class)
 public interface EmailSendService {
+    /**
+     * Send an email using the default template. The email is validated,
+     * rendered and queued on other threads; problems, such as an invalid
+     * address, are passed to the listener's onFailure() rather than thrown.
+     *
+     * @throws QueueFullException if too many emails are waiting to be
+     * processed
+     */
     <E extends Email> void send(PublishListener<E> l, String subject, String body, Map<String, Object> injected, EmailAddress from, String... to);
+    /**
+     * Send an email using a template; if the template enum implements
+     * PrioritizedTemplate, the email is queued at its priority.
+     */
     <E extends Email, T extends Enum<T>> void send(T template, PublishListener<E> l, String subject, String body, Map<String, Object> injected, EmailAddress from, String... to);
+
+    /**
+     * Send one template to many recipients, each with their own values for
+     * some of the model's keys - a mail merge. Recipients are pulled from the
+     * stream as the mail queue has room for them, so the stream can be
+     * longer than would fit in memory; this method returns once all of them
+     * are queued.
+     * <p>
+     * If the template is a {@link MergeableTemplate}, it is rendered once and
+     * each recipient's values are put into the result; otherwise, or if it
+     * turns out to do more with them than print them, each email is
+     * rendered in full. Empty per-recipient values always get a full
+     * rendering.
+     * <p>
+     * Emails are queued at the template's priority if it is a
+     * PrioritizedTemplate, otherwise at MailPriority.BULK. Recipients with
+     * invalid addresses are skipped, and passed to the listener's
+     * onFailure() with a null email.
+     *
+     * @param template The template, or null for the default
+     * @param l A listener notified about each email, or null
+     * @param subject The subject
+     * @param body The message body
+     * @param shared Model values for every recipient, or null
+     * @param from The sender
+     * @param recipients The recipients
+     * @return How many emails were queued and how many were skipped
+     * @throws QueueFullException If the queue stayed full for longer than
+     * <code>email.merge.queue.wait.ms</code>; emails already queued are
+     * still sent
+     */
+    default <E extends Email, T extends Enum<T>> MailMergeResult sendMerge(T template, PublishListener<E> l, String subject, String body, Map<String, Object> shared, EmailAddress from, Stream<MergeRecipient> recipients) {
+        // Implementations which can render the shared content once should
+        // override this
+        int queued = 0;
+        int invalid = 0;
+        for (Iterator<MergeRecipient> it = recipients.iterator(); it.hasNext();) {
+            MergeRecipient recipient = it.next();
+            Map<String, Object> model = shared == null ? new HashMap<String, Object>() : new HashMap<>(shared);
+            model.putAll(recipient.values());
+            try {
+                send(template, l, subject, body, model, from, recipient.address());
+                queued++;
+            } catch (InvalidInputException ex) {
+                invalid++;
+                if (l != null) {
+                    l.onFailure(ex, null);
+                }
+            }
+        }
+        return new MailMergeResult(queued, invalid);
+    }
 }
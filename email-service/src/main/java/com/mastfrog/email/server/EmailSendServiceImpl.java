@@ -1,18 +1,34 @@
 package com.mastfrog.email.server;
 
 import com.google.inject.Inject;
+import static com.mastfrog.email.server.EmailServerService.LOGGER;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_MERGE_BATCH;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_MERGE_QUEUE_WAIT;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_MERGE_BATCH;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_MERGE_QUEUE_WAIT;
+import com.mastfrog.settings.Settings;
 import com.mastfrog.util.preconditions.Checks;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import org.apache.commons.mail.Email;
 import org.apache.commons.mail.EmailException;
 import org.apache.commons.mail.HtmlEmail;
+import org.netbeans.validation.api.InvalidInputException;
 
 /**
  * MessageService implementation which takes a Message and formats it into an
@@ -22,58 +38,286 @@ import org.apache.commons.mail.HtmlEmail;
  */
 final class EmailSendServiceImpl implements EmailSendService {
 
+    // Past this many different sets of per-recipient keys in one merge,
+    // emails are just rendered in full
+    private static final int MAX_MERGE_TEMPLATES = 16;
     private final List<String> bccList = new ArrayList<String>();
     private final EmailServerService sender;
     private final HtmlMessageFormatter formatter;
+    private final SendPipeline pipeline;
+    private final int mergeBatch;
+    private final long mergeQueueWait;
 
     @Inject
-    public EmailSendServiceImpl(EmailServerService sender, HtmlMessageFormatter formatter) {
+    public EmailSendServiceImpl(EmailServerService sender, HtmlMessageFormatter formatter, SendPipeline pipeline, Settings settings) {
         this.sender = sender;
         this.formatter = formatter;
+        this.pipeline = pipeline;
+        mergeBatch = Math.max(1, settings.getInt(SETTINGS_KEY_EMAIL_MERGE_BATCH, DEFAULT_EMAIL_MERGE_BATCH));
+        mergeQueueWait = settings.getLong(SETTINGS_KEY_EMAIL_MERGE_QUEUE_WAIT, DEFAULT_EMAIL_MERGE_QUEUE_WAIT);
     }
 
     private <T extends Enum<T>> String generateHtmlBody(T enumValue, EmailAddress sender, String subject, String body, Map<String, Object> injected) {
         return formatter.format(enumValue, sender, subject, body, injected);
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Hands the email to the send pipeline and returns; problems, including
+     * invalid addresses, are passed to the listener's onFailure().
+     *
+     * @throws QueueFullException if too many emails are already waiting to
+     * be validated
+     */
+    @Override
     public <E extends Email, T extends Enum<T>> void send(T template, PublishListener<E> l, String subject, String body, Map<String, Object> injected, EmailAddress from, String... to) {
         Checks.notEmptyOrNull("to", to);
-        for (String s : to) {
-            new EmailAddress(s).getProblems().throwIfFatalPresent();
+        Send<E, T> send = new Send<>(template, l, subject, body, injected, from, to);
+        pipeline.start(send.key, send::validate);
+    }
+
+    /**
+     * One email on its way through the pipeline; each stage does its part
+     * and hands it to the next.
+     */
+    private final class Send<E extends Email, T extends Enum<T>> {
+
+        private final T template;
+        private final PublishListener<E> listener;
+        private final String subject;
+        private final String body;
+        private final Map<String, Object> injected;
+        private final EmailAddress from;
+        private final String[] to;
+        // Picks the lane in each stage, so mail to one recipient stays in order
+        final String key;
+        private List<InternetAddress> replyTo;
+        private String htmlBody;
+        private HtmlEmail email;
+
+        Send(T template, PublishListener<E> listener, String subject, String body, Map<String, Object> injected, EmailAddress from, String[] to) {
+            this.template = template;
+            this.listener = listener;
+            this.subject = subject;
+            this.body = body;
+            this.injected = injected;
+            this.from = from;
+            this.to = to;
+            key = to[0] == null ? "" : to[0].toLowerCase(Locale.ROOT);
+        }
+
+        void validate() {
+            try {
+                for (String s : to) {
+                    new EmailAddress(s).getProblems().throwIfFatalPresent();
+                }
+                replyTo = Arrays.<InternetAddress>asList(InternetAddress.parse(from.toString()));
+                next(pipeline.render, this::render);
+            } catch (AddressException | RuntimeException ex) {
+                failed(ex);
+            }
+        }
+
+        void render() {
+            try {
+                htmlBody = generateHtmlBody(template, from, subject, body, injected);
+                next(pipeline.build, this::build);
+            } catch (Exception ex) {
+                // Including a TemplateException, rethrown unchecked
+                failed(ex);
+            }
+        }
+
+        void build() {
+            try {
+                email = new HtmlEmail();
+                email.setSubject(subject);
+                for (String a : to) {
+                    email.addTo(a);
+                }
+                for (String a : bccList) {
+                    email.addBcc(a);
+                }
+                email.setReplyTo(replyTo);
+                email.setFrom(from.toString());
+                if (htmlBody != null) {
+                    email.setHtmlMsg(htmlBody);
+                }
+                email.setTextMsg(body);
+                htmlBody = null;
+                next(pipeline.queue, this::enqueue);
+            } catch (EmailException | RuntimeException ex) {
+                failed(ex);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void enqueue() {
+            LOGGER.log(Level.FINE, "Sending message {0}", email);
+            try {
+                sender.send((E) email, MailPriority.of(template), listener);
+            } catch (RuntimeException ex) {
+                failed(ex);
+            }
+        }
+
+        private void next(MailStage stage, Runnable task) {
+            try {
+                stage.put(key, task);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failed(ex);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void failed(Exception ex) {
+            LOGGER.log(Level.INFO, "Could not send email to " + Arrays.toString(to), ex);
+            notifyFailure(listener, ex, (E) email);
         }
+    }
+
+    @Override
+    public <E extends Email> void send(PublishListener<E> l, String subject, String body, Map<String, Object> injected, EmailAddress from, String... to) {
+        this.send(null, l, subject, body, injected, from, to);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E extends Email, T extends Enum<T>> MailMergeResult sendMerge(T template, PublishListener<E> l, String subject, String body, Map<String, Object> shared, EmailAddress from, Stream<MergeRecipient> recipients) {
+        Checks.notNull("from", from);
+        Checks.notNull("recipients", recipients);
+        Map<String, Object> model = shared == null ? Collections.<String, Object>emptyMap() : shared;
+        MailPriority priority = template instanceof PrioritizedTemplate ? MailPriority.of(template) : MailPriority.BULK;
+        List<InternetAddress> replyTo;
         try {
+            replyTo = Arrays.<InternetAddress>asList(InternetAddress.parse(from.toString()));
+        } catch (AddressException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+        // Absent if the template does more with those keys' values than
+        // print them
+        Map<Set<String>, Optional<MergeTemplate>> merges = new HashMap<>();
+        MergeRecipient[] batch = new MergeRecipient[mergeBatch];
+        MergeTemplate[] batchMerges = new MergeTemplate[mergeBatch];
+        Object[] prepared = new Object[mergeBatch];
+        int queued = 0;
+        int invalid = 0;
+        Iterator<MergeRecipient> it = recipients.iterator();
+        while (it.hasNext()) {
+            int count = 0;
+            while (count < mergeBatch && it.hasNext()) {
+                MergeRecipient recipient = it.next();
+                batchMerges[count] = mergeTemplate(merges, template, from, subject, body, model, recipient);
+                batch[count++] = recipient;
+            }
+            // Validating and rendering are what take the time; do them in
+            // parallel, then queue in the order we were given them
+            IntStream.range(0, count).parallel().forEach(i -> {
+                prepared[i] = prepare(template, batch[i], batchMerges[i], from, replyTo, subject, body, model);
+            });
+            for (int i = 0; i < count; i++) {
+                Object item = prepared[i];
+                batch[i] = null;
+                batchMerges[i] = null;
+                prepared[i] = null;
+                if (item instanceof HtmlEmail) {
+                    E email = (E) item;
+                    try {
+                        sender.sendAsync(email, priority, QueueFullPolicy.BLOCK, mergeQueueWait, TimeUnit.MILLISECONDS)
+                                .whenComplete((sent, failure) -> {
+                                    if (failure != null) {
+                                        notifyFailure(l, failure, email);
+                                    } else if (l != null) {
+                                        l.onSuccess(sent);
+                                    }
+                                });
+                    } catch (QueueFullException ex) {
+                        throw new QueueFullException("Mail queue full for " + mergeQueueWait + "ms after queueing "
+                                + queued + " emails of a merge", ex);
+                    }
+                    queued++;
+                } else {
+                    invalid++;
+                    notifyFailure(l, (Exception) item, null);
+                }
+            }
+        }
+        return new MailMergeResult(queued, invalid);
+    }
+
+    private <T extends Enum<T>> MergeTemplate mergeTemplate(Map<Set<String>, Optional<MergeTemplate>> merges, T template, EmailAddress from, String subject, String body, Map<String, Object> shared, MergeRecipient recipient) {
+        if (!(template instanceof MergeableTemplate) || !((MergeableTemplate) template).mergeable()) {
+            // Could test a value, which two renders with markers can't detect
+            return null;
+        }
+        Map<String, String> values = recipient.values();
+        if (values.isEmpty() || values.containsValue(null) || values.containsValue("")) {
+            // Would not print the same as a marker
+            return null;
+        }
+        Optional<MergeTemplate> result = merges.get(values.keySet());
+        if (result == null) {
+            if (merges.size() >= MAX_MERGE_TEMPLATES) {
+                return null;
+            }
+            List<String> keys = new ArrayList<>(values.keySet());
+            result = Optional.ofNullable(MergeTemplate.compile(model
+                    -> generateHtmlBody(template, from, subject, body, model), shared, keys));
+            if (result.isPresent()) {
+                // Catches a condition on a value if this recipient's takes a
+                // different branch than the markers did
+                Map<String, Object> model = new HashMap<>(shared);
+                model.putAll(values);
+                if (!generateHtmlBody(template, from, subject, body, model).equals(result.get().apply(values))) {
+                    LOGGER.log(Level.WARNING, "Template {0} is a MergeableTemplate, but does more with {1} "
+                            + "than print them; rendering each email of the merge in full", new Object[]{template, keys});
+                    result = Optional.empty();
+                }
+            } else {
+                LOGGER.log(Level.INFO, "Template {0} uses {1} other than by printing them; "
+                        + "rendering each email of the merge in full", new Object[]{template, keys});
+            }
+            merges.put(new HashSet<>(values.keySet()), result);
+        }
+        return result.orElse(null);
+    }
+
+    private <T extends Enum<T>> Object prepare(T template, MergeRecipient recipient, MergeTemplate merge, EmailAddress from, List<InternetAddress> replyTo, String subject, String body, Map<String, Object> shared) {
+        try {
+            new EmailAddress(recipient.address(), true);
+            String htmlBody;
+            if (merge != null) {
+                htmlBody = merge.apply(recipient.values());
+            } else {
+                Map<String, Object> model = new HashMap<>(shared);
+                model.putAll(recipient.values());
+                htmlBody = generateHtmlBody(template, from, subject, body, model);
+            }
             HtmlEmail email = new HtmlEmail();
             email.setSubject(subject);
-            for (String a : to) {
-                email.addTo(a);
-            }
+            email.addTo(recipient.address());
             for (String a : bccList) {
-                if (a == null) {
-                    System.err.println("NULL IN BCC LIST");
-                }
                 email.addBcc(a);
             }
-            email.setReplyTo(Arrays.<InternetAddress>asList(InternetAddress.parse(from.toString())));
-            if (from != null) {
-                email.setFrom(from.toString());
-            }
-            String htmlBody = generateHtmlBody(template, from, subject, body, injected);
+            email.setReplyTo(replyTo);
+            email.setFrom(from.toString());
             if (htmlBody != null) {
                 email.setHtmlMsg(htmlBody);
             }
-            String plainBody = body;
-            email.setTextMsg(plainBody);
-            System.out.println("Sending message " + email);
-            sender.send((E)email, l); ///XXX
-        } catch (EmailException | AddressException ex) {
-            Logger.getLogger(EmailSendServiceImpl.class.getName()).log(Level.SEVERE, null, ex);
-            throw new IllegalStateException(ex); //for now
+            email.setTextMsg(body);
+            return email;
+        } catch (InvalidInputException | EmailException ex) {
+            return ex;
         }
     }
 
-    @Override
-    public <E extends Email> void send(PublishListener<E> l, String subject, String body, Map<String, Object> injected, EmailAddress from, String... to) {
-        this.send(null, l, subject, body, injected, from, to);
+    private static <E extends Email> void notifyFailure(PublishListener<E> l, Throwable failure, E email) {
+        if (l != null) {
+            try {
+                l.onFailure(failure, email);
+            } catch (Exception e) {
+                LOGGER.log(Level.INFO, "Exception in send listener", e);
+            }
+        }
     }
 }
@@ -1,6 +1,8 @@
 package com.mastfrog.email.server;
 
 import com.google.inject.ImplementedBy;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import org.apache.commons.mail.Email;
 
@@ -17,5 +19,86 @@ public interface EmailServerService {
     static final String EMAIL_REDIRECT_SETTINGS_KEY = "redirect.ALL.outbound.emails.to";
     static final String EMAIL_BOUNCE_ADDRESS_SETTINGS_KEY = "smtp.bounce.address";
     <E extends Email> void send(E email, PublishListener<E> listener) throws QueueFullException;
+
+    /**
+     * Queue an email at a priority; if the queue for that priority is full
+     * the listener's onFailure() is passed a QueueFullException.
+     *
+     * @param email The email
+     * @param priority Where it goes in the queue
+     * @param listener A listener, or null
+     */
+    default <E extends Email> void send(E email, MailPriority priority, PublishListener<E> listener) throws QueueFullException {
+        // Implementations which can prioritize should override this
+        send(email, listener);
+    }
+
+    /**
+     * Queue an email, failing at once with a QueueFullException if the queue
+     * is full.
+     *
+     * @param email The email
+     * @return A stage which completes with the email once it is delivered,
+     * or exceptionally if delivery fails
+     */
+    default <E extends Email> CompletionStage<E> sendAsync(E email) {
+        return sendAsync(email, QueueFullPolicy.FAIL, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue an email at a priority, failing at once with a QueueFullException
+     * if the queue for that priority is full.
+     *
+     * @param email The email
+     * @param priority Where it goes in the queue
+     * @return A stage which completes with the email once it is delivered,
+     * or exceptionally if delivery fails
+     */
+    default <E extends Email> CompletionStage<E> sendAsync(E email, MailPriority priority) {
+        return sendAsync(email, priority, QueueFullPolicy.FAIL, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue an email at a priority, applying the passed policy if the queue
+     * for that priority is full.
+     *
+     * @param email The email
+     * @param priority Where it goes in the queue
+     * @param policy What to do if the queue is full
+     * @param timeout How long to wait for room, for QueueFullPolicy.BLOCK
+     * @param unit The unit of the timeout
+     * @return A stage which completes with the email once it is delivered,
+     * or exceptionally if delivery fails or it was dropped
+     */
+    default <E extends Email> CompletionStage<E> sendAsync(E email, MailPriority priority, QueueFullPolicy policy, long timeout, TimeUnit unit) {
+        return sendAsync(email, policy, timeout, unit);
+    }
+
+    /**
+     * Queue an email, applying the passed policy if the queue is full.
+     *
+     * @param email The email
+     * @param policy What to do if the queue is full
+     * @param timeout How long to wait for room, for QueueFullPolicy.BLOCK
+     * @param unit The unit of the timeout
+     * @return A stage which completes with the email once it is delivered,
+     * or exceptionally if delivery fails or it was dropped
+     * @throws QueueFullException If the queue is full and the policy is FAIL,
+     * or is BLOCK and no room became available within the timeout
+     */
+    default <E extends Email> CompletionStage<E> sendAsync(E email, QueueFullPolicy policy, long timeout, TimeUnit unit) {
+        // Implementations which can wait for room should override this
+        FutureListener<E> listener = new FutureListener<>();
+        try {
+            send(email, listener);
+        } catch (QueueFullException ex) {
+            if (policy != QueueFullPolicy.DROP) {
+                throw ex;
+            }
+            listener.future.completeExceptionally(ex);
+        }
+        return listener.future;
+    }
+
     String getDefaultFromAddress();
 }
@@ -13,9 +13,48 @@ import com.mastfrog.util.preconditions.Exceptions;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 /**
- * Configures mail sending
+ * Configures mail sending. Mail is delivered by
+ * <code>email.send.threads</code> workers (default 2) in parallel; mail to
+ * any one recipient is still delivered in the order it was sent.
+ * Setting <code>email.send.virtual.threads</code> runs the workers on
+ * virtual threads where the JVM supports them.
+ * <p>
+ * If <code>email.journal.dir</code> is set, each message is written to a
+ * memory-mapped journal in that directory before it is queued, and mail left
+ * unsent by a previous run is sent on startup; the queue is then bounded by
+ * <code>email.journal.max.size</code> bytes of journal rather than by a count
+ * of messages held in memory.
+ * <p>
+ * Mail which fails with an SMTP 4xx reply or a network error is retried
+ * with exponential backoff, up to <code>email.retry.max.attempts</code>
+ * times; a retried email goes to the back of its recipient's queue. An
+ * email to several domains is sent to each in its own transaction, and a
+ * retry only goes to the recipients which have not yet been sent to.
+ * <p>
+ * Workers take mail from each recipient domain in turn. Setting
+ * <code>email.domain.rate</code> limits how many messages per second go to
+ * any one domain, and <code>email.domain.rate.<i>domain</i></code> sets the
+ * limit for a particular domain; while one domain is held back, mail to
+ * others is still sent.
+ * <p>
+ * Mail can be sent at a {@link MailPriority}; each priority has its own
+ * queue, and workers share their time between them by weight.
+ * <p>
+ * EmailSendService.send() validates, renders and queues mail on threads of
+ * its own, in stages configured by <code>email.stage.threads.<i>stage</i></code>
+ * and <code>email.stage.capacity.<i>stage</i></code>. Listeners are called
+ * on the <code>listener</code> stage's threads rather than the workers', in
+ * order for each listener, so a slow one does not hold up delivery.
+ * <p>
+ * {@link EmailSendService#sendMerge} sends one template to many recipients,
+ * rendering it once if it is a {@link MergeableTemplate}, and waiting for
+ * room in the queue rather than holding the whole list in memory. Templates which implement
+ * {@link CachedTemplate} have their output kept and reused when the same
+ * message and model are rendered again. In production mode, every template
+ * is compiled in the background at startup.
  *
  * @author Tim Boudreau
  */
@@ -23,6 +62,180 @@ public final class EmailServiceModule extends AbstractModule {
 
     private final Settings settings;
     public static final String SETTINGS_KEY_EMAIL_SEND_THREADS = "email.send.threads";
+    public static final int DEFAULT_EMAIL_SEND_THREADS = 2;
+    /**
+     * If true, and the JVM has virtual threads (Java 21 or later), each
+     * mail queue worker runs on a virtual thread, so many more messages can
+     * be in flight to slow SMTP servers than there are OS threads. The
+     * number of workers - and so of messages in flight, and of open SMTP
+     * connections - is still <code>email.send.threads</code>, which then
+     * defaults to 100 on Java 24 or later. On Java 21 to 23 a virtual thread
+     * waiting on the SMTP server inside JavaMail's synchronized Transport
+     * methods keeps its carrier thread, so no more sends than there are CPUs
+     * can be in flight, and the default stays at 2.
+     */
+    public static final String SETTINGS_KEY_EMAIL_SEND_VIRTUAL_THREADS = "email.send.virtual.threads";
+    public static final int DEFAULT_EMAIL_SEND_VIRTUAL_THREADS = 100;
+    public static final String SETTINGS_KEY_EMAIL_JOURNAL_DIR = "email.journal.dir";
+    public static final String SETTINGS_KEY_EMAIL_JOURNAL_SEGMENT_SIZE = "email.journal.segment.size";
+    public static final int DEFAULT_EMAIL_JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final String SETTINGS_KEY_EMAIL_JOURNAL_MAX_SIZE = "email.journal.max.size";
+    public static final long DEFAULT_EMAIL_JOURNAL_MAX_SIZE = 1024L * 1024 * 1024;
+    /**
+     * If true, force each journaled message to disk before queueing it, so
+     * it survives an operating system crash as well as a process restart.
+     */
+    public static final String SETTINGS_KEY_EMAIL_JOURNAL_SYNC = "email.journal.sync";
+    /**
+     * How many times mail which fails with a transient error (an SMTP 4xx
+     * reply, or a network failure) is retried.
+     */
+    public static final String SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS = "email.retry.max.attempts";
+    public static final int DEFAULT_EMAIL_RETRY_MAX_ATTEMPTS = 5;
+    /**
+     * Delay before the first retry, in milliseconds; each later retry waits
+     * about twice as long as the one before.
+     */
+    public static final String SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY = "email.retry.initial.delay.ms";
+    public static final long DEFAULT_EMAIL_RETRY_INITIAL_DELAY = 30000;
+    public static final String SETTINGS_KEY_EMAIL_RETRY_MAX_DELAY = "email.retry.max.delay.ms";
+    public static final long DEFAULT_EMAIL_RETRY_MAX_DELAY = 30 * 60 * 1000;
+    /**
+     * If true (the default), an email to recipients in more than one domain
+     * is sent as one SMTP transaction per domain, so one domain's failures
+     * do not fail the rest, and listeners hear what happened to each
+     * recipient.
+     */
+    public static final String SETTINGS_KEY_EMAIL_RECIPIENTS_BY_DOMAIN = "email.recipients.by.domain";
+    public static final boolean DEFAULT_EMAIL_RECIPIENTS_BY_DOMAIN = true;
+    /**
+     * Prefix for the number of emails which may be held in memory at each
+     * priority, e.g. <code>email.queue.capacity.bulk=10000</code>; the
+     * default is 1000. Ignored if mail is journaled.
+     */
+    public static final String SETTINGS_KEY_EMAIL_QUEUE_CAPACITY = "email.queue.capacity";
+    /**
+     * Prefix for each priority's share of deliveries when several have mail
+     * queued, e.g. <code>email.priority.weight.transactional=16</code>.
+     */
+    public static final String SETTINGS_KEY_EMAIL_PRIORITY_WEIGHT = "email.priority.weight";
+    /**
+     * Messages per second which may be sent to any one recipient domain; 0
+     * (the default) for no limit. Append a domain to the key to set the rate
+     * for that domain, e.g. <code>email.domain.rate.example.com=5</code>.
+     */
+    public static final String SETTINGS_KEY_EMAIL_DOMAIN_RATE = "email.domain.rate";
+    /**
+     * How many messages may be sent to a domain at once, after a quiet
+     * period, before its rate limit applies; defaults to one second's worth.
+     * Can be set per domain like <code>email.domain.rate</code>.
+     */
+    public static final String SETTINGS_KEY_EMAIL_DOMAIN_BURST = "email.domain.burst";
+    /**
+     * How many recipients of a mail merge are validated and rendered at a
+     * time, in parallel, before being queued.
+     */
+    public static final String SETTINGS_KEY_EMAIL_MERGE_BATCH = "email.merge.batch";
+    public static final int DEFAULT_EMAIL_MERGE_BATCH = 256;
+    /**
+     * How long, in milliseconds, a mail merge waits for room in a full mail
+     * queue before giving up with a QueueFullException.
+     */
+    public static final String SETTINGS_KEY_EMAIL_MERGE_QUEUE_WAIT = "email.merge.queue.wait.ms";
+    public static final long DEFAULT_EMAIL_MERGE_QUEUE_WAIT = 5 * 60 * 1000;
+    /**
+     * Prefix for the number of threads in each stage EmailSendService.send()
+     * hands mail through - <code>validate</code>, <code>render</code>,
+     * <code>build</code> and <code>queue</code> - and the
+     * <code>listener</code> stage which calls PublishListeners, e.g.
+     * <code>email.stage.threads.render=4</code>. Rendering defaults to one
+     * thread per CPU, listeners to two, the others to one.
+     */
+    public static final String SETTINGS_KEY_EMAIL_STAGE_THREADS = "email.stage.threads";
+    /**
+     * Prefix for the number of emails which may wait for each stage, e.g.
+     * <code>email.stage.capacity.validate=5000</code>.
+     */
+    public static final String SETTINGS_KEY_EMAIL_STAGE_CAPACITY = "email.stage.capacity";
+    public static final int DEFAULT_EMAIL_STAGE_CAPACITY = 1000;
+    /**
+     * How many characters of rendered HTML to keep for templates which are a
+     * {@link CachedTemplate}; 0 turns the cache off.
+     */
+    public static final String SETTINGS_KEY_EMAIL_RENDER_CACHE_SIZE = "email.render.cache.size";
+    public static final long DEFAULT_EMAIL_RENDER_CACHE_SIZE = 4 * 1024 * 1024;
+    /**
+     * Whether to compile every email template in the background at startup,
+     * logging how long each took. Defaults to true in production mode.
+     */
+    public static final String SETTINGS_KEY_EMAIL_TEMPLATE_WARMUP = "email.template.warmup";
+    /**
+     * Whether template warmup also renders each template with its
+     * provider's sample model, so FreeMarker has introspected the model's
+     * classes before real mail is sent.
+     */
+    public static final String SETTINGS_KEY_EMAIL_TEMPLATE_WARMUP_RENDER = "email.template.warmup.render";
+    /**
+     * Gauge in the default MetricRegistry: the number of emails queued.
+     * There is also one for each priority, named with the priority appended,
+     * e.g. <code>email.queue.depth.bulk</code>.
+     */
+    public static final String METRIC_EMAIL_QUEUE_DEPTH = "email.queue.depth";
+    /**
+     * Histogram in the default MetricRegistry: how long emails wait in the
+     * queue before a worker starts sending them. There is also one for each
+     * priority, e.g. <code>email.queue.wait.transactional</code>.
+     */
+    public static final String METRIC_EMAIL_QUEUE_WAIT = "email.queue.wait";
+    /**
+     * Counter in the default MetricRegistry: emails refused or dropped
+     * because the queue was full.
+     */
+    public static final String METRIC_EMAIL_QUEUE_REJECTED = "email.queue.rejected";
+    /**
+     * Counter in the default MetricRegistry: retries scheduled after
+     * transient failures.
+     */
+    public static final String METRIC_EMAIL_RETRIES = "email.retries";
+    /**
+     * Gauge in the default MetricRegistry: emails waiting to be retried.
+     */
+    public static final String METRIC_EMAIL_RETRY_PENDING = "email.retry.pending";
+    /**
+     * Gauge in the default MetricRegistry: domains with mail queued which are
+     * waiting for their rate limit to allow another message.
+     */
+    public static final String METRIC_EMAIL_THROTTLED_DOMAINS = "email.throttled.domains";
+    /**
+     * Prefix for gauges in the default MetricRegistry: emails waiting for
+     * each send stage, e.g. <code>email.stage.depth.render</code>.
+     */
+    public static final String METRIC_EMAIL_STAGE_DEPTH = "email.stage.depth";
+    /**
+     * Prefix for histograms in the default MetricRegistry: how long emails
+     * wait for each send stage, e.g. <code>email.stage.wait.render</code>.
+     */
+    public static final String METRIC_EMAIL_STAGE_WAIT = "email.stage.wait";
+    /**
+     * Prefix for histograms in the default MetricRegistry: how long each
+     * send stage takes per email, e.g. <code>email.stage.time.render</code>.
+     */
+    public static final String METRIC_EMAIL_STAGE_TIME = "email.stage.time";
+    /**
+     * Counter in the default MetricRegistry: emails refused by send()
+     * because too many were already waiting to be validated.
+     */
+    public static final String METRIC_EMAIL_STAGE_REJECTED = "email.stage.rejected";
+    /**
+     * Counter in the default MetricRegistry: emails using a CachedTemplate
+     * whose HTML was already rendered.
+     */
+    public static final String METRIC_EMAIL_RENDER_CACHE_HITS = "email.render.cache.hits";
+    /**
+     * Counter in the default MetricRegistry: emails using a CachedTemplate
+     * which had to be rendered.
+     */
+    public static final String METRIC_EMAIL_RENDER_CACHE_MISSES = "email.render.cache.misses";
 
     public EmailServiceModule(Settings settings) {
         this.settings = settings;
@@ -39,12 +252,41 @@ public final class EmailServiceModule extends AbstractModule {
             System.out.println("Development mode - will not send real emails");
         }
         bind(ShutdownMailqueue.class).asEagerSingleton();
-        bind(ExecutorService.class).annotatedWith(Names.named("mailqueue")).toInstance(Executors.newFixedThreadPool(
-                settings.getInt(SETTINGS_KEY_EMAIL_SEND_THREADS, 2)));
+        if (settings.getBoolean(SETTINGS_KEY_EMAIL_TEMPLATE_WARMUP, Dependencies.isProductionMode(settings))) {
+            bind(TemplateWarmup.class).asEagerSingleton();
+        }
+        bind(ExecutorService.class).annotatedWith(Names.named("mailqueue")).toInstance(
+                virtualThreads(settings) ? VirtualThreads.newThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(sendThreads(settings)));
         // Guice requires this even if none get bound elsewhere
         Multibinder<EnumHtmlEmailTemplateProvider<?>> placeholder
                 = Multibinder.newSetBinder(binder(), ENUM_EMAIL_TEMPLATE_PROVIDER_LITERAL);
     }
+
+    /**
+     * Whether mail is delivered on virtual threads - if configured to be and
+     * this JVM has them.
+     */
+    static boolean virtualThreads(Settings settings) {
+        if (!settings.getBoolean(SETTINGS_KEY_EMAIL_SEND_VIRTUAL_THREADS, false)) {
+            return false;
+        }
+        if (!VirtualThreads.isSupported()) {
+            EmailServerService.LOGGER.log(Level.WARNING, "{0} is set, but virtual threads need Java 21 or "
+                    + "later; delivering mail on platform threads", SETTINGS_KEY_EMAIL_SEND_VIRTUAL_THREADS);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The number of mail queue workers.
+     */
+    static int sendThreads(Settings settings) {
+        int dflt = settings.getBoolean(SETTINGS_KEY_EMAIL_SEND_VIRTUAL_THREADS, false) && VirtualThreads.isSupported()
+                && !VirtualThreads.pinsInMonitors() ? DEFAULT_EMAIL_SEND_VIRTUAL_THREADS : DEFAULT_EMAIL_SEND_THREADS;
+        return Math.max(1, settings.getInt(SETTINGS_KEY_EMAIL_SEND_THREADS, dflt));
+    }
     public static TypeLiteral<EnumHtmlEmailTemplateProvider<?>> ENUM_EMAIL_TEMPLATE_PROVIDER_LITERAL = new TL();
 
     private static class TL extends TypeLiteral<EnumHtmlEmailTemplateProvider<?>> {
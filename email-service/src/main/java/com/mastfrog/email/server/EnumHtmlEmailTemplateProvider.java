@@ -2,6 +2,8 @@ package com.mastfrog.email.server;
 
 import com.mastfrog.util.preconditions.Checks;
 import freemarker.template.Template;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * Registered in a Guice Multibinder for EnumHtmlEmailTemplateProvider&lt;?&gt;, these can look up an email
@@ -36,4 +38,13 @@ public abstract class EnumHtmlEmailTemplateProvider<T extends Enum<T>> implement
     }
 
     protected abstract Template findTemplate(T template);
+
+    /**
+     * A model to render a template with when warming it up at startup, so
+     * FreeMarker has looked at the classes of the values real mail will
+     * pass. By default, an empty map.
+     */
+    protected Map<String, Object> sampleModel(T template) {
+        return Collections.emptyMap();
+    }
 }
@@ -5,17 +5,15 @@ import com.google.inject.Singleton;
 import com.mastfrog.util.preconditions.Checks;
 import com.mastfrog.util.preconditions.ConfigurationError;
 import com.mastfrog.util.preconditions.Exceptions;
-import freemarker.template.Configuration;
 import freemarker.template.Template;
-import freemarker.template.TemplateExceptionHandler;
-import freemarker.template.Version;
 import java.io.File;
 import java.io.IOException;
 
 /**
  * Convenience implementation of EnumHtmlEmailTemplateProvider which takes a
  * folder on disk and an optional filename, and uses toString() on the passed
- * enum if no file name is passed to its constructor.
+ * enum if no file name is passed to its constructor. Templates are compiled
+ * once, and recompiled when their files change.
  *
  * @author Tim Boudreau
  * @param <T>
@@ -23,8 +21,7 @@ import java.io.IOException;
 @Singleton
 public abstract class EnumHtmlTemplateProviderOverFiles<T extends Enum<T>> extends EnumHtmlEmailTemplateProvider<T> {
 
-    private volatile Configuration config;
-    private volatile long lastLoad;
+    private final TemplateCache templates;
     protected final File file;
     protected final String templateName;
 
@@ -48,36 +45,7 @@ public abstract class EnumHtmlTemplateProviderOverFiles<T extends Enum<T>> exten
             }
         }
         templateName = fileName;
-    }
-
-    private long lastModified() {
-        // XXX expensive check - can configuration be forced to reload
-        // if the file is modified?
-        long lastModified = 0;
-        for (File f : file.listFiles()) {
-            lastModified = Math.max(lastModified, f.lastModified());
-        }
-        return lastModified;
-    }
-
-    private Configuration config() throws IOException {
-        if (config == null || (file != null && lastModified() > lastLoad)) {
-            synchronized (this) {
-                if (config == null || (file != null && file.lastModified() > lastLoad)) {
-                    config = new Configuration();
-                    config.setDefaultEncoding("UTF-8");
-                    config.setIncompatibleImprovements(new Version(2, 3, 20));
-                    config.setTemplateExceptionHandler(TemplateExceptionHandler.HTML_DEBUG_HANDLER);
-                    if (file == null) {
-                        config.setClassForTemplateLoading(EnumHtmlTemplateProviderOverFiles.class, "");
-                    } else {
-                        config.setDirectoryForTemplateLoading(file);
-                        lastLoad = lastModified();
-                    }
-                }
-            }
-        }
-        return config;
+        templates = TemplateCache.forDirectory(file);
     }
 
     @Override
@@ -86,7 +54,7 @@ public abstract class EnumHtmlTemplateProviderOverFiles<T extends Enum<T>> exten
             return findTemplate(type.cast(template));
         }
         try {
-            return config().getTemplate("message-template.html");
+            return templates.get("message-template.html");
         } catch (IOException ex) {
             return Exceptions.chuck(ex);
         }
@@ -99,7 +67,7 @@ public abstract class EnumHtmlTemplateProviderOverFiles<T extends Enum<T>> exten
             fn = template.toString();
         }
         try {
-            return config().getTemplate(fn);
+            return templates.get(fn);
         } catch (IOException ex) {
             return Exceptions.chuck(ex);
         }
@@ -0,0 +1,27 @@
+package com.mastfrog.email.server;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Completes a future when an email is delivered or fails.
+ *
+ * @author Tim Boudreau
+ */
+final class FutureListener<E> implements PublishListener<E> {
+
+    final CompletableFuture<E> future = new CompletableFuture<>();
+
+    @Override
+    public void progress(int i, int steps, String string, E email) {
+    }
+
+    @Override
+    public void onSuccess(E email) {
+        future.complete(email);
+    }
+
+    @Override
+    public void onFailure(Throwable failure, E message) {
+        future.completeExceptionally(failure);
+    }
+}
@@ -0,0 +1,43 @@
+package com.mastfrog.email.server;
+
+import java.io.ByteArrayInputStream;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+
+/**
+ * An email which was composed and serialized into the mail journal before it
+ * was queued; sending it parses the saved MIME message rather than building
+ * one, so it goes out exactly as it was written, using whatever SMTP settings
+ * the server applies when it sends.
+ *
+ * @author Tim Boudreau
+ */
+final class JournaledEmail extends Email {
+
+    private final byte[] mime;
+
+    JournaledEmail(byte[] mime) {
+        this.mime = mime;
+    }
+
+    @Override
+    public Email setMsg(String msg) {
+        throw new UnsupportedOperationException("Journaled email is already composed");
+    }
+
+    @Override
+    public void buildMimeMessage() throws EmailException {
+        try {
+            message = new MimeMessage(getMailSession(), new ByteArrayInputStream(mime));
+        } catch (MessagingException ex) {
+            throw new EmailException(ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JournaledEmail(" + mime.length + " bytes)";
+    }
+}
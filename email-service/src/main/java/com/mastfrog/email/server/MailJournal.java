@@ -0,0 +1,348 @@
+package com.mastfrog.email.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of outbound mail, kept in memory-mapped segment files,
+ * so queued mail survives a restart and the queue can grow far beyond what
+ * is reasonable to hold on the heap.
+ * <p>
+ * Each record holds the serialized MIME message, the key it is ordered by
+ * and a state byte which is flipped in place once the message has been sent
+ * or has failed. A segment is deleted as soon as it is full and none of its
+ * records are still pending; on startup, any pending records left in
+ * existing segments are returned by <code>pending()</code> for replay, in the
+ * order they were written. Delivery is at-least-once: a message whose send
+ * completed just before a crash may be sent again.
+ * <p>
+ * Record layout: int payload length (written last, so a record torn by a
+ * crash reads as the end of the segment), byte state, int CRC-32 of the
+ * payload, then the payload - a short key length, the UTF-8 key, and the
+ * MIME bytes.
+ *
+ * @author Tim Boudreau
+ */
+final class MailJournal implements AutoCloseable {
+
+    static final byte PENDING = 1;
+    static final byte SENT = 2;
+    static final byte FAILED = 3;
+    private static final int HEADER_SIZE = 4 + 1 + 4;
+    private static final int STATE_OFFSET = 4;
+    private static final String PREFIX = "mail-";
+    private static final String SUFFIX = ".journal";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final boolean sync;
+    private final AtomicLong bytes = new AtomicLong();
+    private final Set<Segment> segments = Collections.newSetFromMap(new ConcurrentHashMap<Segment, Boolean>());
+    private final List<Entry> pending = new ArrayList<>();
+    private Segment current;
+    private long nextSegment;
+
+    /**
+     * Open the journal in a directory, reading any records left pending by a
+     * previous run.
+     *
+     * @param dir The directory, created if needed
+     * @param segmentSize The size of each segment file
+     * @param maxBytes The total size segment files may use before further
+     * appends fail
+     * @param sync If true, force each record to disk as it is appended
+     * @throws IOException If the directory or an existing segment cannot be
+     * read
+     */
+    MailJournal(Path dir, int segmentSize, long maxBytes, boolean sync) throws IOException {
+        if (segmentSize < HEADER_SIZE * 2) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.sync = sync;
+        Files.createDirectories(dir);
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                existing.add(file);
+            }
+        }
+        // Names are zero-padded, so this is the order they were written in
+        Collections.sort(existing);
+        for (Path file : existing) {
+            long number = segmentNumber(file);
+            if (number < 0) {
+                continue;
+            }
+            nextSegment = Math.max(nextSegment, number + 1);
+            replay(file, number);
+        }
+    }
+
+    /**
+     * Records which were still pending when the journal was last closed, in
+     * the order they were written.
+     */
+    List<Entry> pending() {
+        return Collections.unmodifiableList(pending);
+    }
+
+    /**
+     * Total bytes used by segment files.
+     */
+    long size() {
+        return bytes.get();
+    }
+
+    /**
+     * Add a message.
+     *
+     * @param key The key the message is ordered by
+     * @param mime The serialized MIME message
+     * @return A handle for reading the message back and marking it done
+     * @throws IOException If a new segment file cannot be created
+     * @throws QueueFullException If the journal has reached its size limit
+     */
+    synchronized Entry append(String key, byte[] mime) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+        int payload = 2 + keyBytes.length + mime.length;
+        int recordSize = HEADER_SIZE + payload;
+        if (current == null || current.buffer.capacity() - current.writePosition < recordSize) {
+            roll(recordSize);
+        }
+        Segment seg = current;
+        int offset = seg.writePosition;
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes.length >>> 8);
+        crc.update(keyBytes.length);
+        crc.update(keyBytes);
+        crc.update(mime);
+
+        ByteBuffer buf = seg.buffer.duplicate();
+        buf.position(offset + STATE_OFFSET);
+        buf.put(PENDING);
+        buf.putInt((int) crc.getValue());
+        buf.putShort((short) keyBytes.length);
+        buf.put(keyBytes);
+        buf.put(mime);
+        buf.putInt(offset, payload);
+        seg.writePosition = offset + recordSize;
+        seg.live.incrementAndGet();
+        if (sync) {
+            seg.buffer.force();
+        }
+        return new Entry(seg, offset, offset + HEADER_SIZE + 2 + keyBytes.length, mime.length, key);
+    }
+
+    /**
+     * Read back the MIME bytes of a message.
+     */
+    byte[] read(Entry entry) {
+        byte[] result = new byte[entry.mimeLength];
+        ByteBuffer buf = entry.segment.buffer.duplicate();
+        buf.position(entry.mimeOffset);
+        buf.get(result);
+        return result;
+    }
+
+    /**
+     * Mark a message as no longer pending, so it is not replayed, deleting
+     * its segment if that was the last pending record in a full segment.
+     *
+     * @param entry The entry
+     * @param sent Whether it was sent or failed
+     */
+    void complete(Entry entry, boolean sent) {
+        if (!entry.completed.compareAndSet(false, true)) {
+            return;
+        }
+        Segment seg = entry.segment;
+        seg.buffer.put(entry.offset + STATE_OFFSET, sent ? SENT : FAILED);
+        if (seg.live.decrementAndGet() == 0 && seg.sealed) {
+            delete(seg);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment seg : segments) {
+            seg.buffer.force();
+            try {
+                seg.channel.close();
+            } catch (IOException ex) {
+                EmailServerService.LOGGER.log(Level.WARNING, "Closing " + seg.path, ex);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MailJournal(" + dir + ", " + segments.size() + " segments, " + bytes.get() + " bytes)";
+    }
+
+    private void roll(int recordSize) throws IOException {
+        int size = Math.max(segmentSize, recordSize);
+        if (bytes.get() + size > maxBytes) {
+            throw new QueueFullException("Mail journal in " + dir + " is full. Limit is " + maxBytes + " bytes");
+        }
+        Segment old = current;
+        long number = nextSegment++;
+        Path file = dir.resolve(String.format("%s%016d%s", PREFIX, number, SUFFIX));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        current = new Segment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        segments.add(current);
+        bytes.addAndGet(size);
+        if (old != null) {
+            old.sealed = true;
+            if (old.live.get() == 0) {
+                delete(old);
+            }
+        }
+    }
+
+    private void replay(Path file, long number) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        if (fileSize > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Not a mail journal segment: " + file);
+        }
+        Segment seg = new Segment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize));
+        seg.sealed = true;
+        segments.add(seg);
+        bytes.addAndGet(fileSize);
+        MappedByteBuffer buf = seg.buffer;
+        int offset = 0;
+        CRC32 crc = new CRC32();
+        while (offset + HEADER_SIZE <= buf.capacity()) {
+            int payload = buf.getInt(offset);
+            if (payload <= 0) {
+                break;
+            }
+            if (payload < 2 || (long) offset + HEADER_SIZE + payload > buf.capacity()) {
+                EmailServerService.LOGGER.log(Level.WARNING, "Bad record length {0} at {1} in {2}",
+                        new Object[]{payload, offset, file});
+                break;
+            }
+            byte state = buf.get(offset + STATE_OFFSET);
+            int expectedCrc = buf.getInt(offset + STATE_OFFSET + 1);
+            ByteBuffer data = buf.duplicate();
+            data.position(offset + HEADER_SIZE);
+            data.limit(offset + HEADER_SIZE + payload);
+            crc.reset();
+            crc.update(data.slice());
+            if ((int) crc.getValue() != expectedCrc) {
+                // Torn write from a crash - nothing after it can be trusted
+                EmailServerService.LOGGER.log(Level.WARNING, "Corrupt record at {0} in {1}; ignoring the rest "
+                        + "of the segment", new Object[]{offset, file});
+                break;
+            }
+            if (state == PENDING) {
+                int keyLength = data.getShort() & 0xFFFF;
+                byte[] key = new byte[keyLength];
+                data.get(key);
+                int mimeOffset = data.position();
+                seg.live.incrementAndGet();
+                pending.add(new Entry(seg, offset, mimeOffset, payload - 2 - keyLength,
+                        new String(key, StandardCharsets.UTF_8)));
+            }
+            offset += HEADER_SIZE + payload;
+        }
+        seg.writePosition = offset;
+        if (seg.live.get() == 0) {
+            delete(seg);
+        }
+    }
+
+    private void delete(Segment seg) {
+        if (!seg.deleted.compareAndSet(false, true)) {
+            return;
+        }
+        segments.remove(seg);
+        bytes.addAndGet(-seg.buffer.capacity());
+        try {
+            seg.channel.close();
+            Files.deleteIfExists(seg.path);
+        } catch (IOException ex) {
+            // Probably still mapped on a platform which won't delete mapped
+            // files; it has nothing pending, so it is deleted on next start
+            EmailServerService.LOGGER.log(Level.FINE, "Could not delete " + seg.path, ex);
+        }
+    }
+
+    private static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * A message in the journal.
+     */
+    static final class Entry {
+
+        final String key;
+        private final Segment segment;
+        private final int offset;
+        private final int mimeOffset;
+        private final int mimeLength;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        Entry(Segment segment, int offset, int mimeOffset, int mimeLength, String key) {
+            this.segment = segment;
+            this.offset = offset;
+            this.mimeOffset = mimeOffset;
+            this.mimeLength = mimeLength;
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return "Journaled(" + key + ", " + mimeLength + " bytes in " + segment.path.getFileName() + ")";
+        }
+    }
+
+    private static final class Segment {
+
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final AtomicInteger live = new AtomicInteger();
+        final AtomicBoolean deleted = new AtomicBoolean();
+        volatile boolean sealed;
+        int writePosition;
+
+        Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
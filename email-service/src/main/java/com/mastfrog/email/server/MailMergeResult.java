@@ -0,0 +1,36 @@
+package com.mastfrog.email.server;
+
+/**
+ * What happened to the recipients of a mail merge.
+ *
+ * @author Tim Boudreau
+ */
+public final class MailMergeResult {
+
+    private final int queued;
+    private final int invalid;
+
+    MailMergeResult(int queued, int invalid) {
+        this.queued = queued;
+        this.invalid = invalid;
+    }
+
+    /**
+     * The number of emails queued for sending.
+     */
+    public int queued() {
+        return queued;
+    }
+
+    /**
+     * The number of recipients skipped because their address was invalid.
+     */
+    public int invalid() {
+        return invalid;
+    }
+
+    @Override
+    public String toString() {
+        return queued + " queued, " + invalid + " invalid";
+    }
+}
@@ -0,0 +1,68 @@
+package com.mastfrog.email.server;
+
+import java.util.Locale;
+
+/**
+ * How urgent an email is. Each priority has its own queue with its own
+ * capacity; workers drain them in proportion to their weights, so a large
+ * bulk mailing does not hold up password resets, while bulk mail still
+ * moves when there is plenty of urgent mail.
+ * <p>
+ * Capacities and weights can be set with
+ * <code>email.queue.capacity.<i>priority</i></code> and
+ * <code>email.priority.weight.<i>priority</i></code>, where
+ * <i>priority</i> is the lower-case name, e.g.
+ * <code>email.priority.weight.bulk=2</code>.
+ *
+ * @author Tim Boudreau
+ */
+public enum MailPriority {
+    /**
+     * Mail a user is waiting for - password resets, confirmations.
+     */
+    TRANSACTIONAL(16),
+    /**
+     * The default.
+     */
+    NORMAL(4),
+    /**
+     * Newsletters and other mass mailings.
+     */
+    BULK(1);
+
+    private final int defaultWeight;
+
+    MailPriority(int defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    /**
+     * The share of deliveries this priority gets, relative to the others,
+     * when all of them have mail queued and no weight is configured.
+     */
+    public int defaultWeight() {
+        return defaultWeight;
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Get the priority for an email template: the template's own if it is
+     * a PrioritizedTemplate, otherwise NORMAL.
+     *
+     * @param template A template enum constant, or null
+     * @return A priority
+     */
+    public static MailPriority of(Object template) {
+        if (template instanceof PrioritizedTemplate) {
+            MailPriority result = ((PrioritizedTemplate) template).priority();
+            if (result != null) {
+                return result;
+            }
+        }
+        return NORMAL;
+    }
+}
@@ -0,0 +1,558 @@
+package com.mastfrog.email.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+
+/**
+ * Queue of outbound mail drained by several workers at once, which keeps the
+ * messages for any one key (the recipient) and priority in the order they
+ * were added.
+ * <p>
+ * Each priority has its own capacity, and within it each key has its own
+ * FIFO lane, and lanes are grouped by domain. A domain with work in it sits
+ * in its priority's ready queue; a worker picks a priority in proportion to
+ * the priorities' weights, takes the next lane from the domain at the head
+ * of its ready queue, puts the domain back at the tail, delivers one message
+ * from the lane and then puts the lane back at the tail of its domain. So no
+ * two workers ever deliver to the same recipient at the same time, a slow
+ * recipient only holds up its own mail, busy domains - and busy recipients
+ * within a domain - are served round-robin, and urgent mail overtakes bulk
+ * mail without starving it.
+ * <p>
+ * A domain may have a token bucket, shared by all priorities, limiting how
+ * fast mail is sent to it. When it runs out of tokens the domain is set
+ * aside until it has one again, and the workers carry on with other domains
+ * meanwhile.
+ *
+ * @author Tim Boudreau
+ */
+final class MailQueue<T> {
+
+    // Idle domains' buckets which have not refilled are kept until there are
+    // this many, so a domain cannot get a fresh bucket by briefly going idle
+    private static final int BUCKET_SWEEP_THRESHOLD = 1024;
+    // Cached for domains with no limit
+    private static final TokenBucket UNLIMITED = new TokenBucket(1, 1, 0);
+    private final Tier[] tiers;
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    // Domains out of tokens, until they have one again
+    private final DelayQueue<Domain<T>> throttled = new DelayQueue<>();
+    private final Function<String, String> domainOf;
+    private final Function<String, TokenBucket> limits;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Delivery<T> delivery;
+    // Guards the tiers' ready queues and weights, readyCount and stopped. A
+    // Lock rather than a monitor, so idle workers on virtual threads unmount
+    // instead of pinning their carrier thread while they wait
+    private final ReentrantLock readyLock = new ReentrantLock();
+    private final Condition readyOrStopped = readyLock.newCondition();
+    private int readyCount;
+    private boolean stopped;
+    private volatile boolean shutdown;
+    private volatile CountDownLatch workersExited = new CountDownLatch(0);
+    private volatile int workerCount;
+    private volatile int sweepAt = BUCKET_SWEEP_THRESHOLD;
+    // Moves throttled domains back to the ready queue; started when first
+    // needed
+    private Thread timer;
+
+    MailQueue(int capacity, Delivery<T> delivery) {
+        this(delivery, priority -> capacity, MailPriority::defaultWeight, key -> "", domain -> null);
+    }
+
+    /**
+     * Create a queue.
+     *
+     * @param delivery Delivers items
+     * @param capacity The maximum number of items queued at each priority
+     * @param weight The relative share of deliveries each priority gets when
+     * others have mail queued too
+     * @param domainOf Gets the domain for a key
+     * @param limits Creates the token bucket for a domain, or returns null
+     * if delivery to it is not limited
+     */
+    @SuppressWarnings("unchecked")
+    MailQueue(Delivery<T> delivery, ToIntFunction<MailPriority> capacity, ToIntFunction<MailPriority> weight,
+            Function<String, String> domainOf, Function<String, TokenBucket> limits) {
+        this.delivery = delivery;
+        this.domainOf = domainOf;
+        this.limits = limits;
+        MailPriority[] priorities = MailPriority.values();
+        tiers = new MailQueue.Tier[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            tiers[i] = new Tier(priorities[i], capacity.applyAsInt(priorities[i]),
+                    Math.max(1, weight.applyAsInt(priorities[i])));
+        }
+    }
+
+    /**
+     * Delivers one queued item; called by worker threads.
+     */
+    interface Delivery<T> {
+
+        void deliver(T item);
+    }
+
+    /**
+     * Create the workers which drain this queue; each should be run on its
+     * own thread. May be called once.
+     *
+     * @param count The number of workers
+     * @return The workers
+     */
+    synchronized Runnable[] workers(int count) {
+        if (workerCount != 0) {
+            throw new IllegalStateException("Workers already created");
+        }
+        Runnable[] result = new Runnable[count];
+        workersExited = new CountDownLatch(count);
+        workerCount = count;
+        for (int i = 0; i < count; i++) {
+            result[i] = new Worker();
+        }
+        return result;
+    }
+
+    int size() {
+        return pending.get();
+    }
+
+    int size(MailPriority priority) {
+        return tiers[priority.ordinal()].size.get();
+    }
+
+    boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * The number of domains currently waiting for their token buckets to
+     * refill.
+     */
+    int throttledDomains() {
+        return throttled.size();
+    }
+
+    /**
+     * Add an item behind any other items with the same key and priority.
+     *
+     * @param priority The priority
+     * @param key The ordering key
+     * @param item The item
+     * @throws QueueFullException if the queue for the priority is at
+     * capacity
+     */
+    void add(MailPriority priority, String key, T item) throws QueueFullException {
+        Tier tier = tiers[priority.ordinal()];
+        if (!tier.space.tryAcquire()) {
+            throw new QueueFullException("The " + priority + " email queue is full. Limit is " + tier.capacity);
+        }
+        enqueue(tier, key, item);
+    }
+
+    /**
+     * Add an item behind any other items with the same key and priority,
+     * waiting for room if the queue for the priority is full.
+     *
+     * @param priority The priority
+     * @param key The ordering key
+     * @param item The item
+     * @param timeout How long to wait
+     * @param unit The unit of the timeout
+     * @throws QueueFullException if no room became available in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void add(MailPriority priority, String key, T item, long timeout, TimeUnit unit) throws QueueFullException, InterruptedException {
+        Tier tier = tiers[priority.ordinal()];
+        if (!tier.space.tryAcquire(timeout, unit)) {
+            throw new QueueFullException("The " + priority + " email queue is full. Limit is " + tier.capacity
+                    + "; waited " + timeout + " " + unit);
+        }
+        enqueue(tier, key, item);
+    }
+
+    private void enqueue(Tier tier, String key, T item) {
+        // Count first, so shutdown() cannot miss an item added concurrently
+        pending.incrementAndGet();
+        tier.size.incrementAndGet();
+        if (shutdown) {
+            tier.size.decrementAndGet();
+            pending.decrementAndGet();
+            tier.space.release();
+            throw new IllegalStateException("Already shut down");
+        }
+        for (;;) {
+            Lane<T> lane = tier.lanes.get(key);
+            if (lane == null) {
+                Lane<T> nue = new Lane<>(tier, key, domainOf.apply(key));
+                lane = tier.lanes.putIfAbsent(key, nue);
+                if (lane == null) {
+                    lane = nue;
+                }
+            }
+            synchronized (lane) {
+                if (lane.retired) {
+                    // A worker emptied and removed it after we looked it up
+                    continue;
+                }
+                lane.items.add(item);
+                if (!lane.scheduled) {
+                    lane.scheduled = true;
+                    schedule(lane);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Put a lane with work in it at the tail of its domain, and the domain in
+     * the ready queue if it is not already there. Called under the lane's
+     * lock.
+     */
+    private void schedule(Lane<T> lane) {
+        Tier tier = lane.tier;
+        for (;;) {
+            Domain<T> domain = tier.domains.get(lane.domain);
+            if (domain == null) {
+                Domain<T> nue = new Domain<>(tier, lane.domain);
+                domain = tier.domains.putIfAbsent(lane.domain, nue);
+                if (domain == null) {
+                    domain = nue;
+                }
+            }
+            synchronized (domain) {
+                if (domain.retired) {
+                    continue;
+                }
+                domain.lanes.add(lane);
+                if (!domain.scheduled) {
+                    domain.scheduled = true;
+                    ready(domain);
+                }
+                return;
+            }
+        }
+    }
+
+    private void ready(Domain<T> domain) {
+        readyLock.lock();
+        try {
+            domain.tier.ready.add(domain);
+            readyCount++;
+            readyOrStopped.signal();
+        } finally {
+            readyLock.unlock();
+        }
+    }
+
+    /**
+     * Take a domain from the ready queue of the priority whose turn it is -
+     * a smooth weighted round-robin among the priorities with work.
+     *
+     * @param wait Whether to wait for one
+     * @return A domain, or null if not waiting and there is none, or if the
+     * workers have been stopped
+     */
+    private Domain<T> take(boolean wait) throws InterruptedException {
+        readyLock.lock();
+        try {
+            while (readyCount == 0) {
+                if (stopped || !wait) {
+                    return null;
+                }
+                readyOrStopped.await();
+            }
+            Tier best = null;
+            int total = 0;
+            for (Tier tier : tiers) {
+                if (tier.ready.isEmpty()) {
+                    tier.current = 0;
+                } else {
+                    tier.current += tier.weight;
+                    total += tier.weight;
+                    if (best == null || tier.current > best.current) {
+                        best = tier;
+                    }
+                }
+            }
+            best.current -= total;
+            readyCount--;
+            return best.ready.poll();
+        } finally {
+            readyLock.unlock();
+        }
+    }
+
+    /**
+     * Take the next lane to deliver from a domain which was in the ready
+     * queue, if its bucket has a token; otherwise set the domain aside until
+     * it will have one.
+     *
+     * @return A lane, or null if the domain is throttled
+     */
+    private Lane<T> next(Domain<T> domain) {
+        TokenBucket bucket = bucket(domain.name);
+        synchronized (domain) {
+            if (bucket != null) {
+                long now = System.nanoTime();
+                long wait = bucket.tryTake(now);
+                if (wait > 0) {
+                    domain.dueNanos = now + wait;
+                    throttled.add(domain);
+                    startTimer();
+                    return null;
+                }
+            }
+            Lane<T> lane = domain.lanes.poll();
+            if (!domain.lanes.isEmpty()) {
+                ready(domain);
+            } else {
+                domain.scheduled = false;
+                domain.retired = true;
+                domain.tier.domains.remove(domain.name, domain);
+            }
+            return lane;
+        }
+    }
+
+    private TokenBucket bucket(String domain) {
+        TokenBucket result = buckets.get(domain);
+        if (result == null) {
+            TokenBucket nue = limits.apply(domain);
+            if (nue == null) {
+                nue = UNLIMITED;
+            }
+            result = buckets.putIfAbsent(domain, nue);
+            if (result == null) {
+                result = nue;
+                if (buckets.size() > sweepAt) {
+                    sweep();
+                }
+            }
+        }
+        return result == UNLIMITED ? null : result;
+    }
+
+    /**
+     * Forget buckets which have refilled, which are no different from new
+     * ones.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket == UNLIMITED || bucket.isFull(now));
+        sweepAt = Math.max(BUCKET_SWEEP_THRESHOLD, buckets.size() * 2);
+    }
+
+    private synchronized void startTimer() {
+        if (timer == null) {
+            timer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (;;) {
+                            ready(throttled.take());
+                        }
+                    } catch (InterruptedException ex) {
+                        // done
+                    }
+                }
+            }, "mail-throttle");
+            timer.setDaemon(true);
+            timer.start();
+        }
+    }
+
+    private synchronized void stopTimer() {
+        if (timer != null) {
+            timer.interrupt();
+            timer = null;
+        }
+    }
+
+    /**
+     * Stop accepting items; the workers exit once everything already queued
+     * has been delivered.
+     */
+    void shutdown() {
+        shutdown = true;
+        if (pending.get() == 0) {
+            stopWorkers();
+        }
+    }
+
+    /**
+     * Wait for the workers to deliver what is queued and exit.
+     *
+     * @return true if they did so within the timeout
+     */
+    boolean awaitTermination(long amount, TimeUnit unit) throws InterruptedException {
+        return workersExited.await(amount, unit);
+    }
+
+    private void stopWorkers() {
+        readyLock.lock();
+        try {
+            stopped = true;
+            readyOrStopped.signalAll();
+        } finally {
+            readyLock.unlock();
+        }
+    }
+
+    private void deliverOne(Lane<T> lane) {
+        T item;
+        synchronized (lane) {
+            item = lane.items.poll();
+        }
+        try {
+            if (item != null) {
+                delivery.deliver(item);
+            }
+        } catch (RuntimeException | Error e) {
+            EmailServerService.LOGGER.log(Level.SEVERE, "Exception delivering " + item, e);
+        } finally {
+            Tier tier = lane.tier;
+            synchronized (lane) {
+                if (lane.items.isEmpty()) {
+                    lane.scheduled = false;
+                    lane.retired = true;
+                    tier.lanes.remove(lane.key, lane);
+                } else {
+                    schedule(lane);
+                }
+            }
+            if (item != null) {
+                tier.size.decrementAndGet();
+                tier.space.release();
+                if (pending.decrementAndGet() == 0 && shutdown) {
+                    stopWorkers();
+                }
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            boolean interrupted = false;
+            try {
+                for (;;) {
+                    Domain<T> domain;
+                    try {
+                        // If the executor is being shut down under us,
+                        // deliver whatever is ready without blocking, then
+                        // exit
+                        domain = take(!interrupted);
+                    } catch (InterruptedException ex) {
+                        if (!shutdown) {
+                            EmailServerService.LOGGER.log(Level.WARNING,
+                                    "Mail worker interrupted with {0} messages queued", pending.get());
+                        }
+                        interrupted = true;
+                        continue;
+                    }
+                    if (domain == null) {
+                        return;
+                    }
+                    Lane<T> lane = next(domain);
+                    if (lane != null) {
+                        deliverOne(lane);
+                    }
+                }
+            } finally {
+                workersExited.countDown();
+                if (workersExited.getCount() == 0) {
+                    stopTimer();
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * The queue for one priority.
+     */
+    private final class Tier {
+
+        final MailPriority priority;
+        final int capacity;
+        final int weight;
+        // One permit per free slot, so producers can wait for room
+        final Semaphore space;
+        final AtomicInteger size = new AtomicInteger();
+        final ConcurrentMap<String, Lane<T>> lanes = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, Domain<T>> domains = new ConcurrentHashMap<>();
+        // Guarded by readyLock
+        final ArrayDeque<Domain<T>> ready = new ArrayDeque<>();
+        int current;
+
+        Tier(MailPriority priority, int capacity, int weight) {
+            this.priority = priority;
+            this.capacity = capacity;
+            this.weight = weight;
+            this.space = new Semaphore(capacity);
+        }
+    }
+
+    private static final class Lane<T> {
+
+        final MailQueue<T>.Tier tier;
+        final String key;
+        final String domain;
+        final ArrayDeque<T> items = new ArrayDeque<>(4);
+        boolean scheduled;
+        boolean retired;
+
+        Lane(MailQueue<T>.Tier tier, String key, String domain) {
+            this.tier = tier;
+            this.key = key;
+            this.domain = domain;
+        }
+    }
+
+    /**
+     * The lanes for one domain and priority which have work in them.
+     */
+    private static final class Domain<T> implements Delayed {
+
+        final MailQueue<T>.Tier tier;
+        final String name;
+        final ArrayDeque<Lane<T>> lanes = new ArrayDeque<>(4);
+        // In the ready queue, throttled, or being taken from by a worker
+        boolean scheduled;
+        boolean retired;
+        // When a throttled domain will have a token
+        long dueNanos;
+
+        Domain(MailQueue<T>.Tier tier, String name) {
+            this.tier = tier;
+            this.name = name;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(dueNanos, ((Domain<?>) o).dueNanos);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServerService.LOGGER;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_STAGE_CAPACITY;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_STAGE_DEPTH;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_STAGE_TIME;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_STAGE_WAIT;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_STAGE_CAPACITY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_STAGE_THREADS;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.statistics.MetricHistogram;
+import com.mastfrog.statistics.MetricRegistry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * One stage of work done on an email off the thread which asked for it:
+ * one or more lanes, each a thread with a bounded queue of its own. Tasks
+ * with the same key always go to the same lane, so they run in the order
+ * they were handed over.
+ * <p>
+ * Threads and capacity are set by
+ * <code>email.stage.threads.<i>name</i></code> and
+ * <code>email.stage.capacity.<i>name</i></code>; how long tasks wait and
+ * run is recorded in <code>email.stage.wait.<i>name</i></code> and
+ * <code>email.stage.time.<i>name</i></code>.
+ *
+ * @author Tim Boudreau
+ */
+final class MailStage {
+
+    private final String name;
+    private final Lane[] lanes;
+    private final MetricHistogram wait;
+    private final MetricHistogram time;
+
+    MailStage(String name, Settings settings, int defaultThreads) {
+        this.name = name;
+        int threads = Math.max(1, settings.getInt(SETTINGS_KEY_EMAIL_STAGE_THREADS + '.' + name, defaultThreads));
+        int capacity = Math.max(1, settings.getInt(SETTINGS_KEY_EMAIL_STAGE_CAPACITY + '.' + name,
+                DEFAULT_EMAIL_STAGE_CAPACITY));
+        // Split between the lanes
+        int laneCapacity = Math.max(1, capacity / threads);
+        lanes = new Lane[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = new Lane(laneCapacity, "email-" + name + "-" + i);
+        }
+        wait = MetricRegistry.getDefault().histogram(METRIC_EMAIL_STAGE_WAIT + '.' + name);
+        time = MetricRegistry.getDefault().histogram(METRIC_EMAIL_STAGE_TIME + '.' + name);
+        MetricRegistry.getDefault().gauge(METRIC_EMAIL_STAGE_DEPTH + '.' + name, this::size);
+    }
+
+    private Lane lane(Object key) {
+        return lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    /**
+     * Hand this stage a task if there is room for it.
+     *
+     * @return false if the key's lane is full
+     * @throws IllegalStateException if the stage has been shut down
+     */
+    boolean offer(Object key, Runnable task) {
+        Lane lane = lane(key);
+        if (lane.stopped) {
+            throw new IllegalStateException("Already shut down");
+        }
+        return lane.queue.offer(new Task(task));
+    }
+
+    /**
+     * Hand this stage a task, waiting for room if it is full; if the stage
+     * has been shut down, the task is run on this thread.
+     */
+    void put(Object key, Runnable task) throws InterruptedException {
+        Lane lane = lane(key);
+        if (lane.stopped && !lane.thread.isAlive()) {
+            task.run();
+            return;
+        }
+        Task t = new Task(task);
+        lane.queue.put(t);
+        if (lane.stopped) {
+            // The lane's thread may have seen an empty queue and exited
+            // just before the task went into it
+            lane.thread.join(TimeUnit.SECONDS.toMillis(StubMailServer.SHUTDOWN_WAIT_SECONDS));
+            if (lane.queue.remove(t)) {
+                task.run();
+            }
+        }
+    }
+
+    int size() {
+        int result = 0;
+        for (Lane lane : lanes) {
+            result += lane.queue.size();
+        }
+        return result;
+    }
+
+    /**
+     * Stop taking tasks, and wait for those already taken to run.
+     */
+    void shutdown() {
+        for (Lane lane : lanes) {
+            lane.stopped = true;
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.thread.join(TimeUnit.SECONDS.toMillis(StubMailServer.SHUTDOWN_WAIT_SECONDS));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (lane.thread.isAlive()) {
+                LOGGER.log(Level.WARNING, "{0} tasks still waiting in {1} stage at shutdown",
+                        new Object[]{lane.queue.size(), name});
+            }
+        }
+    }
+
+    private final class Lane implements Runnable {
+
+        final BlockingQueue<Task> queue;
+        final Thread thread;
+        volatile boolean stopped;
+
+        Lane(int capacity, String name) {
+            queue = new ArrayBlockingQueue<>(capacity);
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                Task task;
+                try {
+                    task = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (task == null) {
+                    if (stopped) {
+                        return;
+                    }
+                    continue;
+                }
+                long start = System.nanoTime();
+                wait.record(start - task.created);
+                try {
+                    task.run.run();
+                } catch (Exception | Error ex) {
+                    // Checked exceptions can be rethrown unchecked; don't
+                    // let one end the lane
+                    LOGGER.log(Level.SEVERE, "Exception in " + name + " stage", ex);
+                } finally {
+                    time.record(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    private static final class Task {
+
+        final Runnable run;
+        final long created = System.nanoTime();
+
+        Task(Runnable run) {
+            this.run = run;
+        }
+    }
+}
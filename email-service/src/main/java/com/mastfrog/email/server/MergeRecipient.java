@@ -0,0 +1,44 @@
+package com.mastfrog.email.server;
+
+import com.mastfrog.util.preconditions.Checks;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One recipient of a mail merge: an address, and the values which differ
+ * for that recipient, which take the place of the same keys in the shared
+ * model.
+ *
+ * @author Tim Boudreau
+ */
+public final class MergeRecipient {
+
+    private final String address;
+    private final Map<String, String> values;
+
+    /**
+     * Create a recipient.
+     *
+     * @param address The email address
+     * @param values Values for this recipient only, e.g. a first name; may
+     * be null
+     */
+    public MergeRecipient(String address, Map<String, String> values) {
+        Checks.notNull("address", address);
+        this.address = address;
+        this.values = values == null ? Collections.<String, String>emptyMap() : values;
+    }
+
+    public String address() {
+        return address;
+    }
+
+    public Map<String, String> values() {
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return address + values;
+    }
+}
@@ -0,0 +1,186 @@
+package com.mastfrog.email.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A rendered email body with holes where each recipient's values go, so a
+ * mail merge renders its template once instead of once per recipient.
+ * <p>
+ * The template is rendered twice, with each per-recipient value replaced by
+ * a marker - a different length of marker each time. If both renders
+ * contain every marker intact, either as it is or HTML-escaped, and the
+ * text between them is the same, filling the holes gives what rendering
+ * would have - as long as the template does not test the values. If it
+ * measures or transforms one of them, there is no template to merge with
+ * and each email has to be rendered in full. A condition such as
+ * <code>&lt;#if name == "admin"&gt;</code> takes the same branch for both
+ * markers and cannot be detected here, which is why only a
+ * {@link MergeableTemplate} is merged.
+ *
+ * @author Tim Boudreau
+ */
+final class MergeTemplate {
+
+    private static final char START = '\uFDD0';
+    private static final char END = '\uFDD1';
+    // Comes out differently if the template HTML-escapes the value or
+    // changes its case
+    private static final String PROBE = "<&\"xX";
+    private static final String ESCAPED_PROBE = "&lt;&amp;&quot;xX";
+    private static final String[] PADS = {"", "________"};
+
+    // One more than there are holes
+    private final String[] text;
+    private final String[] keys;
+    private final boolean[] escaped;
+    private final int textLength;
+
+    private MergeTemplate(String[] text, String[] keys, boolean[] escaped) {
+        this.text = text;
+        this.keys = keys;
+        this.escaped = escaped;
+        int len = 0;
+        for (String t : text) {
+            len += t.length();
+        }
+        textLength = len;
+    }
+
+    /**
+     * Render a template with markers in place of the per-recipient values,
+     * and split it where they land.
+     *
+     * @param render Renders the template with a model
+     * @param shared The values shared by all recipients
+     * @param keys The keys which have a different value for each recipient
+     * @return A template, or null if the values are used other than by
+     * printing them
+     */
+    static MergeTemplate compile(Function<Map<String, Object>, String> render, Map<String, Object> shared, List<String> keys) {
+        Parsed[] parsed = new Parsed[PADS.length];
+        for (int i = 0; i < PADS.length; i++) {
+            Map<String, Object> model = new HashMap<>(shared);
+            for (int k = 0; k < keys.size(); k++) {
+                model.put(keys.get(k), START + Integer.toString(k) + PROBE + PADS[i] + END);
+            }
+            parsed[i] = Parsed.parse(render.apply(model), keys.size(), PADS[i]);
+            if (parsed[i] == null || (i > 0 && !parsed[i].equals(parsed[0]))) {
+                return null;
+            }
+        }
+        Parsed p = parsed[0];
+        String[] holeKeys = new String[p.holes.size()];
+        boolean[] holeEscaped = new boolean[holeKeys.length];
+        for (int i = 0; i < holeKeys.length; i++) {
+            int hole = p.holes.get(i);
+            // Encoded as key index * 2 + 1 if escaped
+            holeKeys[i] = keys.get(hole / 2);
+            holeEscaped[i] = (hole & 1) != 0;
+        }
+        return new MergeTemplate(p.text.toArray(new String[p.text.size()]), holeKeys, holeEscaped);
+    }
+
+    /**
+     * Fill in one recipient's values.
+     *
+     * @param values Values for every key the template was compiled with,
+     * none of them empty
+     * @return The email body
+     */
+    String apply(Map<String, String> values) {
+        StringBuilder sb = new StringBuilder(textLength + keys.length * 32);
+        sb.append(text[0]);
+        for (int i = 0; i < keys.length; i++) {
+            String value = values.get(keys[i]);
+            if (escaped[i]) {
+                escape(value, sb);
+            } else {
+                sb.append(value);
+            }
+            sb.append(text[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    // What FreeMarker's ?html does
+    private static void escape(String s, StringBuilder into) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    into.append("&amp;");
+                    break;
+                case '<':
+                    into.append("&lt;");
+                    break;
+                case '>':
+                    into.append("&gt;");
+                    break;
+                case '"':
+                    into.append("&quot;");
+                    break;
+                default:
+                    into.append(c);
+            }
+        }
+    }
+
+    private static final class Parsed {
+
+        final List<String> text = new ArrayList<>();
+        final List<Integer> holes = new ArrayList<>();
+
+        static Parsed parse(String rendered, int keyCount, String pad) {
+            Parsed result = new Parsed();
+            int last = 0;
+            for (int start = rendered.indexOf(START); start >= 0; start = rendered.indexOf(START, last)) {
+                int pos = start + 1;
+                int key = 0;
+                while (pos < rendered.length() && Character.isDigit(rendered.charAt(pos)) && key < keyCount) {
+                    key = key * 10 + (rendered.charAt(pos++) - '0');
+                }
+                if (pos == start + 1 || key >= keyCount) {
+                    return null;
+                }
+                boolean escaped;
+                if (rendered.startsWith(PROBE, pos)) {
+                    escaped = false;
+                    pos += PROBE.length();
+                } else if (rendered.startsWith(ESCAPED_PROBE, pos)) {
+                    escaped = true;
+                    pos += ESCAPED_PROBE.length();
+                } else {
+                    return null;
+                }
+                if (!rendered.startsWith(pad, pos) || !rendered.startsWith(Character.toString(END), pos + pad.length())) {
+                    return null;
+                }
+                result.text.add(rendered.substring(last, start));
+                result.holes.add(key * 2 + (escaped ? 1 : 0));
+                last = pos + pad.length() + 1;
+            }
+            result.text.add(rendered.substring(last));
+            for (String t : result.text) {
+                if (t.indexOf(END) >= 0) {
+                    // Part of a marker, cut up by the template
+                    return null;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Parsed && ((Parsed) o).text.equals(text) && ((Parsed) o).holes.equals(holes);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode() * 31 + holes.hashCode();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.mastfrog.email.server;
+
+/**
+ * Implemented by template enums which only print a mail merge's
+ * per-recipient values - <code>${name}</code> or <code>${name?html}</code> -
+ * never test them in an <code>&lt;#if&gt;</code>, compare, measure or
+ * transform them. EmailSendService.sendMerge() then renders the template
+ * once and puts each recipient's values into the result, rather than
+ * rendering it for each recipient.
+ * <p>
+ * That cannot be fully checked: the first recipient's email is rendered in
+ * full and compared, which catches a condition only if that recipient's
+ * value takes a different branch. A template which does test a value must
+ * not implement this.
+ *
+ * @author Tim Boudreau
+ */
+public interface MergeableTemplate {
+
+    /**
+     * Whether mail merges using this template may render it once.
+     */
+    boolean mergeable();
+}
@@ -0,0 +1,12 @@
+package com.mastfrog.email.server;
+
+/**
+ * Implemented by template enums whose mail should not be sent at normal
+ * priority, so EmailSendService queues it accordingly.
+ *
+ * @author Tim Boudreau
+ */
+public interface PrioritizedTemplate {
+
+    MailPriority priority();
+}
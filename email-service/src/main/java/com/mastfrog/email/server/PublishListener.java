@@ -13,4 +13,16 @@ public interface PublishListener<T> {
     public void onSuccess(T email);
 
     public void onFailure(Throwable failure, T message);
+
+    /**
+     * Called, before onSuccess() or onFailure(), for each recipient of an
+     * email which was sent one SMTP transaction per recipient domain.
+     *
+     * @param email The email
+     * @param recipient The recipient's address
+     * @param failure Why the recipient was not sent to, or null if the
+     * server accepted it
+     */
+    default void onRecipientResult(T email, String recipient, Throwable failure) {
+    }
 }
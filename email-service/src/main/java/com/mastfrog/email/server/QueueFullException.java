@@ -1,9 +1,9 @@
 package com.mastfrog.email.server;
 
 /**
- * Indicates that the Email Queue has reached its limits.  In practice, should
- * never be thrown - see javadoc for ArrayBlockingQueue.offer() and its one
- * unlikely failure mode for why this exists at all.
+ * Indicates that the Email Queue has reached its limits.  Thrown by
+ * EmailServerService.sendAsync() according to its QueueFullPolicy; send()
+ * instead passes it to the listener's onFailure().
  * 
  * @author Tim Boudreau
  */
@@ -0,0 +1,23 @@
+package com.mastfrog.email.server;
+
+/**
+ * What EmailServerService.sendAsync() does when the mail queue is full.
+ *
+ * @author Tim Boudreau
+ */
+public enum QueueFullPolicy {
+    /**
+     * Wait up to the passed timeout for room in the queue, then throw
+     * QueueFullException.
+     */
+    BLOCK,
+    /**
+     * Throw QueueFullException at once.
+     */
+    FAIL,
+    /**
+     * Discard the email; the returned CompletionStage fails with a
+     * QueueFullException, but nothing is thrown to the caller.
+     */
+    DROP
+}
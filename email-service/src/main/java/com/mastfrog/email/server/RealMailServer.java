@@ -3,15 +3,26 @@ package com.mastfrog.email.server;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_RECIPIENTS_BY_DOMAIN;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RECIPIENTS_BY_DOMAIN;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
 import com.mastfrog.util.preconditions.ConfigurationError;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
 import org.apache.commons.mail.Email;
 import org.apache.commons.mail.EmailException;
 
 /**
- * Mail server which actually delivers mail to an SMTP server.
+ * Mail server which actually delivers mail to an SMTP server, over
+ * connections kept open by an SmtpConnectionPool. Mail to recipients in more
+ * than one domain is sent as one transaction per domain, unless
+ * <code>email.recipients.by.domain</code> is false.
  *
  * @author Tim Boudreau
  */
@@ -19,17 +30,21 @@ import org.apache.commons.mail.EmailException;
 final class RealMailServer extends StubMailServer {
 
     private final SmtpConfig smtpConfig;
+    private final SmtpConnectionPool connections;
     private boolean debug;
+    private final boolean byDomain;
 
     @Inject
-    public RealMailServer(SmtpConfig smtpConfig, EmailAddressesConfig config, @Named("mailqueue") ExecutorService threadPool, Settings settings, ShutdownHookRegistry vmShutdown) {
+    public RealMailServer(SmtpConfig smtpConfig, EmailAddressesConfig config, @Named("mailqueue") ExecutorService threadPool, Settings settings, ShutdownHookRegistry vmShutdown, SmtpConnectionPool connections) {
         super(config, threadPool, settings, vmShutdown);
         this.smtpConfig = smtpConfig;
+        this.connections = connections;
         if ((smtpConfig.getUsername() == null) != (smtpConfig.getPassword() == null)) {
             throw new ConfigurationError("Both SMTP username and password must be configured, not just one - "
                     + " username=" + smtpConfig.getUsername() + " password " + smtpConfig.getPassword());
         }
         debug = settings.getBoolean(SETTINGS_KEY_SMTP_DEBUG, false);
+        byDomain = settings.getBoolean(SETTINGS_KEY_EMAIL_RECIPIENTS_BY_DOMAIN, DEFAULT_EMAIL_RECIPIENTS_BY_DOMAIN);
     }
 
     @Override
@@ -42,15 +57,93 @@ final class RealMailServer extends StubMailServer {
 
     @Override
     protected void reallySend(Email email) throws EmailException {
-        email.setTLS(smtpConfig.isUseTLS());
-        if (smtpConfig.getUsername() != null) {
-            email.setAuthentication(smtpConfig.getUsername(), smtpConfig.getPassword());
+        MimeMessage message = compose(email);
+        try {
+            connections.send(email.getMailSession(), message, message.getAllRecipients());
+        } catch (MessagingException ex) {
+            throw sendFailed(ex);
         }
-        email.setHostName(smtpConfig.getHost().toString());
-        email.setSmtpPort(smtpConfig.getPort());
-        email.setSSL(smtpConfig.isUseSSL());
+    }
+
+    /**
+     * Send an email to more than one domain as one transaction per domain,
+     * each with a RCPT TO for each of that domain's recipients, so the
+     * server can refuse one domain's recipients without failing the rest;
+     * recipients which fail with a transient error are the only ones sent to
+     * when the email is retried.
+     */
+    @Override
+    void reallySend(Email email, RecipientResults results) throws EmailException {
+        if (!byDomain) {
+            reallySend(email);
+            return;
+        }
+        MimeMessage message = compose(email);
+        Map<String, List<Address>> domains;
+        try {
+            Address[] all = message.getAllRecipients();
+            domains = RecipientResults.byDomain(results.begin(all));
+            if (domains.size() < 2 && !results.isUsed()) {
+                connections.send(email.getMailSession(), message, all);
+                return;
+            }
+        } catch (MessagingException ex) {
+            throw sendFailed(ex);
+        }
+        boolean failed = false;
+        for (List<Address> domain : domains.values()) {
+            Address[] recipients = domain.toArray(new Address[domain.size()]);
+            try {
+                connections.send(email.getMailSession(), message, recipients);
+                results.accepted(recipients);
+            } catch (MessagingException ex) {
+                LOGGER.log(Level.FINE, "Sending to " + domain + " failed", ex);
+                results.failed(recipients, ex);
+                failed = true;
+            }
+        }
+        if (failed) {
+            throw sendFailed(results.failure());
+        }
+    }
+
+    private EmailException sendFailed(MessagingException ex) {
+        return new EmailException("Sending the email to " + smtpConfig.getHost() + ":"
+                + smtpConfig.getPort() + " failed", ex);
+    }
+
+    private MimeMessage compose(Email email) throws EmailException {
         super.reallySend(email);
-        email.setDebug(debug);
-        email.send();
+        if (email.getMimeMessage() == null) {
+            // Otherwise this is a retry, and the session these configure was
+            // created by the first attempt - Email refuses to change it
+            email.setTLS(smtpConfig.isUseTLS());
+            if (smtpConfig.getUsername() != null) {
+                email.setAuthentication(smtpConfig.getUsername(), smtpConfig.getPassword());
+            }
+            email.setHostName(smtpConfig.getHost().toString());
+            email.setSmtpPort(smtpConfig.getPort());
+            email.setSSL(smtpConfig.isUseSSL());
+            email.setDebug(debug);
+            email.buildMimeMessage();
+            if (!(email instanceof JournaledEmail)) {
+                // Fixes the headers, Message-ID included, once, so every
+                // domain's transaction and every retry send the same message;
+                // a journaled one was saved before it was written
+                try {
+                    email.getMimeMessage().saveChanges();
+                } catch (MessagingException ex) {
+                    throw sendFailed(ex);
+                }
+            }
+        }
+        return email.getMimeMessage();
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        connections.close();
+        LOGGER.log(Level.INFO, "Mail server shut down: {0}", connections);
     }
 }
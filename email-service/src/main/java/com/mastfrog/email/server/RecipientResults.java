@@ -0,0 +1,153 @@
+package com.mastfrog.email.server;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * What happened to each recipient of an email sent one SMTP transaction per
+ * recipient domain, over all the attempts to send it. A recipient is either
+ * accepted, refused for good, or unsent - refused or not tried because of
+ * something which may not happen next time - and only the unsent ones are
+ * sent to when the email is retried.
+ * <p>
+ * Only touched by whichever thread currently owns the email.
+ *
+ * @author Tim Boudreau
+ */
+final class RecipientResults {
+
+    private final Set<Address> accepted = new LinkedHashSet<>();
+    private final Map<Address, Exception> refused = new LinkedHashMap<>();
+    private Map<Address, Exception> unsent = new LinkedHashMap<>();
+    private boolean used;
+
+    /**
+     * Group recipients by domain, in the order each domain first appears.
+     */
+    static Map<String, List<Address>> byDomain(Address[] recipients) {
+        Map<String, List<Address>> result = new LinkedHashMap<>();
+        for (Address address : recipients) {
+            result.computeIfAbsent(domainOf(address), d -> new ArrayList<>(4)).add(address);
+        }
+        return result;
+    }
+
+    private static String domainOf(Address address) {
+        String s = address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString();
+        return s == null ? "" : s.substring(s.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Start an attempt to send the email.
+     *
+     * @param all All of the email's recipients
+     * @return The recipients to send to - all of them the first time, and
+     * those which were not sent to after that
+     */
+    Address[] begin(Address[] all) {
+        if (!used) {
+            return all;
+        }
+        Address[] result = unsent.keySet().toArray(new Address[unsent.size()]);
+        unsent = new LinkedHashMap<>();
+        return result;
+    }
+
+    /**
+     * True if recipients have been sent to separately, and this has been
+     * told what happened to them.
+     */
+    boolean isUsed() {
+        return used;
+    }
+
+    void accepted(Address[] recipients) {
+        used = true;
+        accepted.addAll(Arrays.asList(recipients));
+    }
+
+    /**
+     * Record that a transaction for some recipients failed. Recipients the
+     * server refused permanently are not tried again. If some were refused,
+     * the others were only not sent because JavaMail does not send to part
+     * of a transaction, and are tried again; otherwise the failure decides.
+     */
+    void failed(Address[] recipients, MessagingException failure) {
+        used = true;
+        Set<Address> invalid = new LinkedHashSet<>();
+        if (failure instanceof SendFailedException && ((SendFailedException) failure).getInvalidAddresses() != null) {
+            invalid.addAll(Arrays.asList(((SendFailedException) failure).getInvalidAddresses()));
+        }
+        boolean retry = !invalid.isEmpty() || SmtpFailures.isTransient(failure);
+        for (Address address : recipients) {
+            Exception why = failureFor(address, failure);
+            if (invalid.contains(address) || !retry) {
+                refused.put(address, why);
+            } else {
+                unsent.put(address, why);
+            }
+        }
+    }
+
+    private static Exception failureFor(Address address, MessagingException failure) {
+        // JavaMail chains one exception per refused RCPT TO
+        for (Exception e = failure; e != null;
+                e = e instanceof MessagingException ? ((MessagingException) e).getNextException() : null) {
+            if (e instanceof SMTPAddressFailedException && address.equals(((SMTPAddressFailedException) e).getAddress())) {
+                return e;
+            }
+        }
+        return failure;
+    }
+
+    boolean hasUnsent() {
+        return !unsent.isEmpty();
+    }
+
+    boolean hasRefused() {
+        return !refused.isEmpty();
+    }
+
+    /**
+     * Pass what happened to each recipient to a listener.
+     */
+    <E> void report(PublishListener<E> listener, E email) {
+        for (Address address : accepted) {
+            listener.onRecipientResult(email, addressOf(address), null);
+        }
+        for (Map.Entry<Address, Exception> e : refused.entrySet()) {
+            listener.onRecipientResult(email, addressOf(e.getKey()), e.getValue());
+        }
+        for (Map.Entry<Address, Exception> e : unsent.entrySet()) {
+            listener.onRecipientResult(email, addressOf(e.getKey()), e.getValue());
+        }
+    }
+
+    private static String addressOf(Address address) {
+        return address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString();
+    }
+
+    /**
+     * The exception to fail the email with, if any recipient was not sent
+     * to; its valid sent addresses are those which were.
+     */
+    SendFailedException failure() {
+        int failures = refused.size() + unsent.size();
+        Exception first = !unsent.isEmpty() ? unsent.values().iterator().next()
+                : refused.isEmpty() ? null : refused.values().iterator().next();
+        return new SendFailedException("Not sent to " + failures + " of " + (accepted.size() + failures) + " recipients",
+                first, accepted.toArray(new Address[accepted.size()]), unsent.keySet().toArray(new Address[unsent.size()]),
+                refused.keySet().toArray(new Address[refused.size()]));
+    }
+}
@@ -0,0 +1,167 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_RENDER_CACHE_HITS;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_RENDER_CACHE_MISSES;
+import com.mastfrog.statistics.MetricCounter;
+import com.mastfrog.statistics.MetricRegistry;
+import freemarker.template.Template;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Rendered HTML for templates which are a {@link CachedTemplate}, keyed by
+ * the compiled template and everything passed to it, least recently used
+ * first out once more than a set number of characters are held.
+ * <p>
+ * TemplateCache hands out a new Template when a template's file changes,
+ * so output from the old one can never be found again; it is dropped the
+ * first time the new one is asked for.
+ *
+ * @author Tim Boudreau
+ */
+final class RenderCache {
+
+    private final long maxChars;
+    // Guarded by this
+    private final LinkedHashMap<Key, String> rendered = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Enum<?>, Template> current = new IdentityHashMap<>();
+    private long chars;
+    private final MetricCounter hits = MetricRegistry.getDefault().counter(METRIC_EMAIL_RENDER_CACHE_HITS);
+    private final MetricCounter misses = MetricRegistry.getDefault().counter(METRIC_EMAIL_RENDER_CACHE_MISSES);
+
+    RenderCache(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    static boolean isCached(Enum<?> template) {
+        return template instanceof CachedTemplate && ((CachedTemplate) template).cacheRenderedOutput();
+    }
+
+    /**
+     * Make a key; the model is copied, so later changes to the caller's map
+     * cannot change what a cached entry was rendered from.
+     *
+     * @return The key, or null if the model holds a value which could be
+     * changed after the copy is made, and the output should not be cached
+     */
+    static Key key(Enum<?> template, Template compiled, String subject, String body, String from, Map<String, Object> model) {
+        if (model == null || model.isEmpty()) {
+            return new Key(template, compiled, subject, body, from, null);
+        }
+        for (Object value : model.values()) {
+            if (!isImmutable(value)) {
+                return null;
+            }
+        }
+        return new Key(template, compiled, subject, body, from, new HashMap<>(model));
+    }
+
+    /**
+     * Whether a model value is of a type which cannot change, so a copy of
+     * the model holding it can be kept as a key. Not every Number is
+     * (AtomicLong, LongAdder), nor is java.util.Date.
+     */
+    static boolean isImmutable(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean
+                || value instanceof Character || value instanceof Enum<?> || value instanceof UUID) {
+            return true;
+        }
+        Class<?> type = value.getClass();
+        if (type == Integer.class || type == Long.class || type == Short.class || type == Byte.class
+                || type == Double.class || type == Float.class
+                || type == BigInteger.class || type == BigDecimal.class) {
+            return true;
+        }
+        // LocalDate, Instant, ZonedDateTime, Duration and the rest
+        return type.getName().startsWith("java.time.");
+    }
+
+    synchronized String get(Key key) {
+        Template previous = current.put(key.template, key.compiled);
+        if (previous != null && previous != key.compiled) {
+            // Reloaded - nothing rendered from the old one can be used
+            Iterator<Map.Entry<Key, String>> it = rendered.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, String> e = it.next();
+                if (e.getKey().template == key.template) {
+                    chars -= e.getValue().length();
+                    it.remove();
+                }
+            }
+        }
+        String result = rendered.get(key);
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    synchronized void put(Key key, String html) {
+        // Too big to be worth keeping, or rendered from a template which has
+        // been reloaded since
+        if (html.length() > maxChars / 4 || current.get(key.template) != key.compiled) {
+            return;
+        }
+        String old = rendered.put(key, html);
+        chars += html.length() - (old == null ? 0 : old.length());
+        Iterator<String> it = rendered.values().iterator();
+        while (chars > maxChars && it.hasNext()) {
+            chars -= it.next().length();
+            it.remove();
+        }
+    }
+
+    synchronized int size() {
+        return rendered.size();
+    }
+
+    static final class Key {
+
+        final Enum<?> template;
+        final Template compiled;
+        private final String subject;
+        private final String body;
+        private final String from;
+        private final Map<String, Object> model;
+        private final int hash;
+
+        Key(Enum<?> template, Template compiled, String subject, String body, String from, Map<String, Object> model) {
+            this.template = template;
+            this.compiled = compiled;
+            this.subject = subject;
+            this.body = body;
+            this.from = from;
+            this.model = model;
+            hash = Objects.hash(System.identityHashCode(template), System.identityHashCode(compiled),
+                    subject, body, from, model);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && template == k.template && compiled == k.compiled
+                    && Objects.equals(subject, k.subject) && Objects.equals(body, k.body)
+                    && Objects.equals(from, k.from) && Objects.equals(model, k.model);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.mastfrog.email.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Holds mail which failed with a transient error until it is due to be tried
+ * again, then hands it back to the queue. Waiting costs no worker thread:
+ * everything waits in one DelayQueue, drained by a single timer thread.
+ * <p>
+ * Delays grow exponentially from the initial delay up to the maximum, with
+ * jitter so that a burst of failures - say, while the SMTP server was down -
+ * is not retried all at once.
+ *
+ * @author Tim Boudreau
+ */
+final class RetryScheduler<T> implements AutoCloseable {
+
+    private final DelayQueue<Retry<T>> waiting = new DelayQueue<>();
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final Consumer<T> requeue;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Create a scheduler.
+     *
+     * @param maxAttempts How many times an item may be retried
+     * @param initialDelayMillis The delay before the first retry
+     * @param maxDelayMillis The longest delay between retries
+     * @param requeue Called on the timer thread with each item when it is
+     * due
+     */
+    RetryScheduler(int maxAttempts, long initialDelayMillis, long maxDelayMillis, Consumer<T> requeue) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = Math.max(1, initialDelayMillis);
+        this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+        this.requeue = requeue;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "mail-retry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Whether an item which has been tried this many times may be retried.
+     */
+    boolean mayRetry(int attempts) {
+        return attempts <= maxAttempts && !closed;
+    }
+
+    /**
+     * The delay before retry number <code>attempt</code> (starting at 1):
+     * between half and all of initialDelay * 2^(attempt-1), capped at the
+     * maximum delay.
+     */
+    long delayMillis(int attempt) {
+        long base = initialDelayMillis << Math.min(attempt - 1, 30);
+        if (base <= 0 || base > maxDelayMillis) {
+            base = maxDelayMillis;
+        }
+        long half = base / 2;
+        return half + ThreadLocalRandom.current().nextLong(base - half + 1);
+    }
+
+    /**
+     * Schedule an item to be requeued after a delay.
+     *
+     * @return false if the scheduler is closed
+     */
+    boolean schedule(T item, long delayMillis) {
+        if (closed) {
+            return false;
+        }
+        waiting.add(new Retry<>(item, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+        return true;
+    }
+
+    int size() {
+        return waiting.size();
+    }
+
+    boolean isShutdown() {
+        return closed;
+    }
+
+    /**
+     * Stop the timer thread.
+     *
+     * @return Whatever was still waiting to be retried
+     */
+    List<T> shutdown() {
+        closed = true;
+        thread.interrupt();
+        List<Retry<T>> left = new ArrayList<>();
+        waiting.drainTo(left);
+        // drainTo() only takes expired elements
+        left.addAll(waiting);
+        waiting.clear();
+        List<T> result = new ArrayList<>(left.size());
+        for (Retry<T> r : left) {
+            result.add(r.item);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    private void drain() {
+        while (!closed) {
+            Retry<T> due;
+            try {
+                due = waiting.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            try {
+                requeue.accept(due.item);
+            } catch (RuntimeException | Error e) {
+                EmailServerService.LOGGER.log(Level.SEVERE, "Exception requeueing " + due.item, e);
+            }
+        }
+    }
+
+    private static final class Retry<T> implements Delayed {
+
+        final T item;
+        final long dueNanos;
+
+        Retry(T item, long dueNanos) {
+            this.item = item;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(dueNanos, ((Retry<?>) o).dueNanos);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.mastfrog.email.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_STAGE_REJECTED;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
+import com.mastfrog.statistics.MetricCounter;
+import com.mastfrog.statistics.MetricRegistry;
+
+/**
+ * The stages an email goes through between EmailSendService.send() and the
+ * mail queue - validating its addresses, rendering its template, building
+ * the MIME message and queueing it - each with its own threads and a
+ * bounded queue, so the caller's thread only pays for handing the email to
+ * the first stage.
+ * <p>
+ * Each stage has one or more lanes, a thread with a queue of its own. Mail
+ * to one recipient goes through the same lane of every stage, so it reaches
+ * the mail queue in the order it was sent. A caller gets a
+ * QueueFullException if the first stage is full; a stage handing work to a
+ * full one waits for room.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class SendPipeline {
+
+    final MailStage validate;
+    final MailStage render;
+    final MailStage build;
+    final MailStage queue;
+    private final MetricCounter rejected = MetricRegistry.getDefault().counter(METRIC_EMAIL_STAGE_REJECTED);
+
+    @Inject
+    SendPipeline(Settings settings, ShutdownHookRegistry reg) {
+        validate = new MailStage("validate", settings, 1);
+        // The one which does real work
+        render = new MailStage("render", settings, Runtime.getRuntime().availableProcessors());
+        build = new MailStage("build", settings, 1);
+        queue = new MailStage("queue", settings, 1);
+        // Before the mail server stops taking mail
+        reg.addFirst(this::shutdown);
+    }
+
+    /**
+     * Hand a task to the first stage, without waiting.
+     *
+     * @param key The recipient, which determines the lane
+     * @param task The task
+     * @throws QueueFullException if the stage's lane is full
+     */
+    void start(String key, Runnable task) {
+        if (!validate.offer(key, task)) {
+            rejected.increment();
+            throw new QueueFullException("Too many emails waiting to be validated");
+        }
+    }
+
+    /**
+     * Stop taking work and wait for what has been taken to reach the mail
+     * queue.
+     */
+    void shutdown() {
+        // In order, so each finishes handing its work to the next
+        for (MailStage stage : new MailStage[]{validate, render, build, queue}) {
+            stage.shutdown();
+        }
+    }
+}
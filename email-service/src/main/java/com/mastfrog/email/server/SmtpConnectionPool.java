@@ -0,0 +1,269 @@
+package com.mastfrog.email.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.settings.Settings;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Keeps an open, authenticated SMTP connection for each thread which sends
+ * mail, so that the mail queue's workers each send many messages over one
+ * connection instead of doing a TCP connect, TLS handshake, EHLO and AUTH for
+ * every message.
+ * <p>
+ * A connection is replaced when it has been idle for
+ * <code>smtp.connection.idle.timeout.seconds</code> (default 30), after
+ * <code>smtp.connection.max.messages</code> messages (default 100), and
+ * after any failure. If a reused connection turns out to have been dropped
+ * by the server, the message is sent again over a new one. Idle connections
+ * are not reaped in the background; they are closed when their thread next
+ * sends, or when the pool is closed.
+ * <p>
+ * Inject this to read pool statistics.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class SmtpConnectionPool implements AutoCloseable {
+
+    public static final String SETTINGS_KEY_SMTP_CONNECTION_IDLE_TIMEOUT = "smtp.connection.idle.timeout.seconds";
+    public static final int DEFAULT_SMTP_CONNECTION_IDLE_TIMEOUT = 30;
+    public static final String SETTINGS_KEY_SMTP_CONNECTION_MAX_MESSAGES = "smtp.connection.max.messages";
+    public static final int DEFAULT_SMTP_CONNECTION_MAX_MESSAGES = 100;
+
+    private final long idleTimeoutNanos;
+    private final int maxMessages;
+    private final ThreadLocal<Connection> connection = new ThreadLocal<>();
+    private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong resent = new AtomicLong();
+    private volatile boolean shutdown;
+
+    @Inject
+    SmtpConnectionPool(Settings settings) {
+        this(TimeUnit.SECONDS.toNanos(settings.getInt(SETTINGS_KEY_SMTP_CONNECTION_IDLE_TIMEOUT,
+                DEFAULT_SMTP_CONNECTION_IDLE_TIMEOUT)),
+                settings.getInt(SETTINGS_KEY_SMTP_CONNECTION_MAX_MESSAGES, DEFAULT_SMTP_CONNECTION_MAX_MESSAGES));
+    }
+
+    SmtpConnectionPool(long idleTimeoutNanos, int maxMessages) {
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.maxMessages = Math.max(1, maxMessages);
+    }
+
+    /**
+     * Send a message over this thread's connection, opening one using the
+     * passed session if there is none or it cannot be reused.
+     *
+     * @param session The session, which supplies the server and credentials
+     * @param message The message, with changes saved
+     * @param recipients The recipients
+     * @throws MessagingException If sending fails
+     */
+    void send(Session session, Message message, Address[] recipients) throws MessagingException {
+        if (shutdown) {
+            throw new MessagingException("Connection pool closed");
+        }
+        Connection conn = connection.get();
+        if (conn != null && !conn.reusableFor(session)) {
+            discard(conn);
+            conn = null;
+        }
+        boolean wasOpen = conn != null;
+        if (conn == null) {
+            conn = open(session);
+        }
+        try {
+            conn.send(message, recipients);
+        } catch (SendFailedException ex) {
+            // The server refused the message or some recipients; sending it
+            // again will not help
+            failed.incrementAndGet();
+            discard(conn);
+            throw ex;
+        } catch (MessagingException | RuntimeException ex) {
+            discard(conn);
+            if (!wasOpen) {
+                failed.incrementAndGet();
+                throw ex;
+            }
+            // Most likely the server closed the connection while it was
+            // idle - try once more on a new one
+            EmailServerService.LOGGER.log(Level.FINE, "Reused SMTP connection failed; reconnecting", ex);
+            resent.incrementAndGet();
+            conn = open(session);
+            try {
+                conn.send(message, recipients);
+            } catch (MessagingException | RuntimeException ex2) {
+                failed.incrementAndGet();
+                discard(conn);
+                throw ex2;
+            }
+        }
+        sent.incrementAndGet();
+        if (wasOpen) {
+            reused.incrementAndGet();
+        }
+    }
+
+    private Connection open(Session session) throws MessagingException {
+        Transport transport;
+        try {
+            transport = session.getTransport();
+            transport.connect();
+        } catch (MessagingException | RuntimeException ex) {
+            failed.incrementAndGet();
+            throw ex;
+        }
+        Connection conn = new Connection(session, transport);
+        opened.incrementAndGet();
+        open.add(conn);
+        connection.set(conn);
+        return conn;
+    }
+
+    private void discard(Connection conn) {
+        if (connection.get() == conn) {
+            connection.remove();
+        }
+        if (open.remove(conn)) {
+            closed.incrementAndGet();
+            conn.close();
+        }
+    }
+
+    /**
+     * The number of connections opened.
+     */
+    public long connectionsOpened() {
+        return opened.get();
+    }
+
+    /**
+     * The number of connections closed, for any reason.
+     */
+    public long connectionsClosed() {
+        return closed.get();
+    }
+
+    /**
+     * The number of connections currently open.
+     */
+    public int openConnections() {
+        return open.size();
+    }
+
+    /**
+     * The number of messages sent.
+     */
+    public long messagesSent() {
+        return sent.get();
+    }
+
+    /**
+     * The number of messages sent over a connection which had already sent
+     * something.
+     */
+    public long messagesSentOnReusedConnections() {
+        return reused.get();
+    }
+
+    /**
+     * The number of times a reused connection failed and the message was
+     * sent again over a new one.
+     */
+    public long resends() {
+        return resent.get();
+    }
+
+    /**
+     * The number of messages which could not be sent.
+     */
+    public long failures() {
+        return failed.get();
+    }
+
+    /**
+     * Close all connections; subsequent sends fail.
+     */
+    @Override
+    public void close() {
+        shutdown = true;
+        for (Connection conn : open) {
+            if (open.remove(conn)) {
+                closed.incrementAndGet();
+                conn.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SmtpConnectionPool(open=" + openConnections() + " opened=" + opened.get()
+                + " closed=" + closed.get() + " sent=" + sent.get() + " reused=" + reused.get()
+                + " resent=" + resent.get() + " failed=" + failed.get() + ")";
+    }
+
+    private final class Connection {
+
+        private final Transport transport;
+        // Sessions are built per message, but from the same settings; a
+        // connection may be reused for any session which would connect the
+        // same way and use the same envelope sender
+        private final Properties properties;
+        // Used only by the thread it belongs to, apart from close(), so the
+        // only shared state is this flag; no monitor, which would pin a
+        // virtual thread for the whole SMTP transaction
+        private long lastUsed = System.nanoTime();
+        private int count;
+        private volatile boolean closed;
+
+        Connection(Session session, Transport transport) {
+            this.transport = transport;
+            this.properties = session.getProperties();
+        }
+
+        boolean reusableFor(Session session) {
+            return count < maxMessages
+                    && System.nanoTime() - lastUsed < idleTimeoutNanos
+                    && properties.equals(session.getProperties());
+        }
+
+        void send(Message message, Address[] recipients) throws MessagingException {
+            // Not Transport.isConnected(), which costs a NOOP round trip
+            if (closed) {
+                throw new MessagingException("Connection closed");
+            }
+            count++;
+            try {
+                transport.sendMessage(message, recipients);
+            } finally {
+                lastUsed = System.nanoTime();
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                transport.close();
+            } catch (MessagingException ex) {
+                EmailServerService.LOGGER.log(Level.FINE, "Closing SMTP connection", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.mastfrog.email.server;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+
+/**
+ * Decides whether a failure to send mail is worth retrying. An SMTP reply
+ * code decides it if there is one - 4xx replies are transient and 5xx
+ * permanent; otherwise an I/O failure (refused connection, timeout, dropped
+ * connection) is transient and anything else permanent.
+ *
+ * @author Tim Boudreau
+ */
+final class SmtpFailures {
+
+    private SmtpFailures() {
+        throw new AssertionError();
+    }
+
+    static boolean isTransient(Throwable failure) {
+        int code = replyCode(failure);
+        if (code > 0) {
+            return code >= 400 && code < 500;
+        }
+        boolean io = false;
+        for (Throwable t : chain(failure)) {
+            if (t instanceof AuthenticationFailedException) {
+                // Bad credentials stay bad
+                return false;
+            }
+            io |= t instanceof IOException;
+        }
+        return io;
+    }
+
+    /**
+     * Find the SMTP reply code which caused a failure.
+     *
+     * @return The code, or -1 if there is none
+     */
+    static int replyCode(Throwable failure) {
+        for (Throwable t : chain(failure)) {
+            if (t instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException) t).getReturnCode();
+            } else if (t instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException) t).getReturnCode();
+            }
+        }
+        return -1;
+    }
+
+    private static Iterable<Throwable> chain(Throwable failure) {
+        // MessagingException keeps a chain of its own alongside getCause();
+        // outermost first
+        Set<Throwable> result = new LinkedHashSet<>();
+        add(failure, result);
+        return result;
+    }
+
+    private static void add(Throwable t, Set<Throwable> into) {
+        while (t != null && into.add(t)) {
+            if (t instanceof MessagingException) {
+                add(((MessagingException) t).getNextException(), into);
+            }
+            t = t.getCause();
+        }
+    }
+}
@@ -2,15 +2,52 @@ package com.mastfrog.email.server;
 
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_JOURNAL_MAX_SIZE;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_JOURNAL_SEGMENT_SIZE;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_RETRY_INITIAL_DELAY;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_RETRY_MAX_ATTEMPTS;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_RETRY_MAX_DELAY;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_QUEUE_DEPTH;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_QUEUE_REJECTED;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_QUEUE_WAIT;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_RETRIES;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_RETRY_PENDING;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_THROTTLED_DOMAINS;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_JOURNAL_DIR;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_JOURNAL_MAX_SIZE;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_JOURNAL_SEGMENT_SIZE;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_JOURNAL_SYNC;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_PRIORITY_WEIGHT;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_QUEUE_CAPACITY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_MAX_DELAY;
 import com.mastfrog.giulius.Dependencies;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
-import java.util.ArrayList;
+import com.mastfrog.statistics.MetricCounter;
+import com.mastfrog.statistics.MetricHistogram;
+import com.mastfrog.statistics.MetricRegistry;
+import com.mastfrog.url.Host;
+import com.mastfrog.util.preconditions.ConfigurationError;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
 import org.apache.commons.mail.Email;
 import org.apache.commons.mail.EmailException;
 
@@ -30,8 +67,22 @@ class StubMailServer implements EmailServerService {
     public static final int STEPS = 3;
     // Initial Buffer for the Queue
     public static final int QUEUE_BUFFER = 1000;
-    // The Queue Thread
-    private EmailSender runner;
+    // How long shutdown waits for queued mail to be delivered
+    static final long SHUTDOWN_WAIT_SECONDS = 10;
+    private final MailQueue<EmailAndListener<?>> queue;
+    // Null unless email.journal.dir is set
+    private final MailJournal journal;
+    private final MetricHistogram queueWait = MetricRegistry.getDefault().histogram(METRIC_EMAIL_QUEUE_WAIT);
+    // Indexed by MailPriority.ordinal()
+    private final MetricHistogram[] queueWaitByPriority = new MetricHistogram[MailPriority.values().length];
+    private final MetricCounter rejected = MetricRegistry.getDefault().counter(METRIC_EMAIL_QUEUE_REJECTED);
+    private final MetricCounter retried = MetricRegistry.getDefault().counter(METRIC_EMAIL_RETRIES);
+    private final RetryScheduler<EmailAndListener<?>> retries;
+    // Runs listener callbacks, so a slow listener cannot hold up delivery
+    private final MailStage listeners;
+    // Gauges read this server's queues; removed on shutdown so the default
+    // registry does not keep it alive
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
 
     @Inject
     public StubMailServer(EmailAddressesConfig config, @Named("mailqueue") ExecutorService threadPool, Settings settings, ShutdownHookRegistry vmShutdown) {
@@ -39,10 +90,63 @@ class StubMailServer implements EmailServerService {
             throw new Error("Will not use a mail server which does not actually send mail in production mode");
         }
         this.addressConfig = config;
-        // Start the Thread
-        runner = new EmailSender();
-        threadPool.execute(runner);
+        String journalDir = settings.getString(SETTINGS_KEY_EMAIL_JOURNAL_DIR);
+        if (journalDir != null) {
+            try {
+                journal = new MailJournal(Paths.get(journalDir),
+                        settings.getInt(SETTINGS_KEY_EMAIL_JOURNAL_SEGMENT_SIZE, DEFAULT_EMAIL_JOURNAL_SEGMENT_SIZE),
+                        settings.getLong(SETTINGS_KEY_EMAIL_JOURNAL_MAX_SIZE, DEFAULT_EMAIL_JOURNAL_MAX_SIZE),
+                        settings.getBoolean(SETTINGS_KEY_EMAIL_JOURNAL_SYNC, false));
+            } catch (IOException ex) {
+                throw new ConfigurationError("Could not open mail journal in " + journalDir, ex);
+            }
+        } else {
+            journal = null;
+        }
+        // Start the workers; mail to any one recipient is delivered in order
+        // by one worker at a time, mail to different recipients in parallel.
+        // With a journal, queued mail lives on disk, and the journal's size
+        // limit applies instead of the in-memory one. Each priority has its
+        // own queue; domains are served round-robin, each limited to the
+        // rate configured for it
+        boolean journaled = journal != null;
+        queue = new MailQueue<>(new Deliverer(),
+                priority -> journaled ? Integer.MAX_VALUE
+                        : settings.getInt(SETTINGS_KEY_EMAIL_QUEUE_CAPACITY + '.' + priority, QUEUE_BUFFER),
+                priority -> settings.getInt(SETTINGS_KEY_EMAIL_PRIORITY_WEIGHT + '.' + priority, priority.defaultWeight()),
+                StubMailServer::domainOf, new DomainLimits(settings));
+        // Mail which fails with a transient error waits here, not on a worker
+        retries = new RetryScheduler<>(
+                settings.getInt(SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS, DEFAULT_EMAIL_RETRY_MAX_ATTEMPTS),
+                settings.getLong(SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY, DEFAULT_EMAIL_RETRY_INITIAL_DELAY),
+                settings.getLong(SETTINGS_KEY_EMAIL_RETRY_MAX_DELAY, DEFAULT_EMAIL_RETRY_MAX_DELAY),
+                new Requeue());
+        listeners = new MailStage("listener", settings, 2);
+        int workers = EmailServiceModule.sendThreads(settings);
+        for (Runnable worker : queue.workers(workers)) {
+            threadPool.execute(worker);
+        }
+        gauge(METRIC_EMAIL_QUEUE_DEPTH, queue::size);
+        for (MailPriority priority : MailPriority.values()) {
+            gauge(METRIC_EMAIL_QUEUE_DEPTH + '.' + priority, () -> queue.size(priority));
+            queueWaitByPriority[priority.ordinal()] = MetricRegistry.getDefault().histogram(METRIC_EMAIL_QUEUE_WAIT + '.' + priority);
+        }
+        gauge(METRIC_EMAIL_RETRY_PENDING, retries::size);
+        gauge(METRIC_EMAIL_THROTTLED_DOMAINS, queue::throttledDomains);
         vmShutdown.add(new Shutdown());
+        if (journal != null && !journal.pending().isEmpty()) {
+            LOGGER.log(Level.INFO, "Sending {0} emails left unsent in {1}",
+                    new Object[]{journal.pending().size(), journalDir});
+            // The journal does not record priorities
+            for (MailJournal.Entry entry : journal.pending()) {
+                queue.add(MailPriority.NORMAL, entry.key, new EmailAndListener<Email>(null, null, entry, MailPriority.NORMAL));
+            }
+        }
+    }
+
+    private void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+        MetricRegistry.getDefault().gauge(name, supplier);
     }
 
     final class Shutdown implements Runnable {
@@ -58,24 +162,45 @@ class StubMailServer implements EmailServerService {
      * shuting down
      */
     public void shutdown() {
-        runner.shutdown();
+        List<EmailAndListener<?>> waiting = retries.shutdown();
+        if (!waiting.isEmpty()) {
+            LOGGER.log(Level.WARNING, "Shutting down with {0} emails waiting to be retried", waiting.size());
+            for (EmailAndListener<?> item : waiting) {
+                giveUp(item, new IllegalStateException("Shut down before retrying"));
+            }
+        }
+        queue.shutdown();
+        try {
+            if (!queue.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.log(Level.WARNING, journal == null ? "Mail queue shut down with {0} emails unsent"
+                        : "Mail queue shut down with {0} emails unsent; they will be sent on restart", queue.size());
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "Interrupted waiting for mail queue to empty", ex);
+        } finally {
+            // Once no more can be added
+            listeners.shutdown();
+            if (journal != null) {
+                journal.close();
+            }
+            for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+                MetricRegistry.getDefault().removeGauge(e.getKey(), e.getValue());
+            }
+        }
     }
 
+    /**
+     * Queue an email; if the queue is full it is dropped, and the listener's
+     * onFailure() is passed a QueueFullException.
+     */
     @Override
     public <E extends Email> void send(E email, PublishListener<E> listener) throws QueueFullException {
-        if (runner.isShutdown()) {
-            throw new IllegalStateException("Already shut down");
-        }
-        // Add the Email to the Queue
+        send(email, MailPriority.NORMAL, listener);
+    }
 
-        final EmailAndListener<E> emailAndListener = new EmailAndListener<E>(email, listener);
-        try {
-            runner.add(emailAndListener);
-            // If there is a listener, then set some info
-        } catch (QueueFullException e) {
-            // If Queue is Full - should never happen in practice
-            LOGGER.log(Level.SEVERE, "RealMailServer.send(): Queue is FULL.");
-        }
+    @Override
+    public <E extends Email> void send(E email, MailPriority priority, PublishListener<E> listener) throws QueueFullException {
+        enqueue(email, priority, listener, QueueFullPolicy.DROP, 0, TimeUnit.MILLISECONDS);
 
         //1. set up the outgoing server, user name, password if
         //necessary to use SMTP
@@ -90,6 +215,90 @@ class StubMailServer implements EmailServerService {
         //PostListener (which may be null) on success or failure
     }
 
+    @Override
+    public <E extends Email> CompletionStage<E> sendAsync(E email, QueueFullPolicy policy, long timeout, TimeUnit unit) {
+        return sendAsync(email, MailPriority.NORMAL, policy, timeout, unit);
+    }
+
+    @Override
+    public <E extends Email> CompletionStage<E> sendAsync(E email, MailPriority priority, QueueFullPolicy policy, long timeout, TimeUnit unit) {
+        FutureListener<E> listener = new FutureListener<>();
+        enqueue(email, priority, listener, policy, timeout, unit);
+        return listener.future;
+    }
+
+    private <E extends Email> void enqueue(E email, MailPriority priority, PublishListener<E> listener, QueueFullPolicy policy, long timeout, TimeUnit unit) {
+        if (queue.isShutdown()) {
+            throw new IllegalStateException("Already shut down");
+        }
+        // Add the Email to the Queue
+        String key = orderingKey(email);
+        try {
+            EmailAndListener<E> item = journal == null
+                    ? new EmailAndListener<E>(email, listener, null, priority)
+                    : journal(key, email, listener, priority);
+            try {
+                if (policy == QueueFullPolicy.BLOCK) {
+                    queue.add(priority, key, item, timeout, unit);
+                } else {
+                    queue.add(priority, key, item);
+                }
+            } catch (InterruptedException | RuntimeException e) {
+                if (item.entry != null) {
+                    // Don't send it on restart either
+                    journal.complete(item.entry, false);
+                }
+                throw e;
+            }
+        } catch (QueueFullException e) {
+            rejected.increment();
+            if (policy != QueueFullPolicy.DROP) {
+                throw e;
+            }
+            // If Queue is Full - should never happen in practice
+            LOGGER.log(Level.SEVERE, "RealMailServer.send(): Queue is FULL.");
+            notifyFailure(listener, e, email);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            throw new QueueFullException("Interrupted waiting for room in the mail queue", e);
+        } catch (EmailException | IOException e) {
+            LOGGER.log(Level.SEVERE, "RealMailServer.send(): Could not journal " + email, e);
+            notifyFailure(listener, e, email);
+        }
+    }
+
+    private static <E extends Email> void notifyFailure(PublishListener<E> listener, Throwable failure, E email) {
+        if (listener != null) {
+            try {
+                listener.onFailure(failure, email);
+            } catch (Exception e1) {
+                Logger.getLogger(StubMailServer.class.getName()).log(Level.INFO, "Exception in send listener", e1);
+            }
+        }
+    }
+
+    /**
+     * Compose the message and write it to the journal; the email itself is
+     * only kept in memory if there is a listener to pass it to.
+     */
+    private <E extends Email> EmailAndListener<E> journal(String key, E email, PublishListener<E> listener, MailPriority priority) throws EmailException, IOException {
+        prepareToSend(email);
+        if (email.getHostName() == null) {
+            // Composing needs a session, but not a server
+            email.setMailSession(Session.getInstance(new Properties()));
+        }
+        email.buildMimeMessage();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        try {
+            email.getMimeMessage().writeTo(out);
+        } catch (MessagingException ex) {
+            throw new EmailException(ex);
+        }
+        MailJournal.Entry entry = journal.append(key, out.toByteArray());
+        return new EmailAndListener<E>(listener == null ? null : email, listener, entry, priority);
+    }
+
     @Override
     public String getDefaultFromAddress() {
         return addressConfig.getDefaultSender().toString();
@@ -103,163 +312,219 @@ class StubMailServer implements EmailServerService {
     }
 
     /**
-     * In order to control the set of emails to be send, this Queue Class will
-     * control de flow of Emails to be send. Eventually, some of sort of
-     * Management Mechanism could be attach in here and provide features such
-     * as: 1. Prioritize 2. Cancel (before gets send)
+     * Deliver an email, recording in the passed results what happened to
+     * each recipient if they are sent to separately; the default sends it to
+     * everyone at once with reallySend().
      */
-    private final class EmailSender implements Runnable {
-
-        // A reference of a Thread, so we can do some locking
-        private Thread thread;
-        // A reference of a Collection, containing all the Emails
-        // Queue containing all the Emails to be send
-        // [PENDING: A alternative will be to persist somewhere, instead of having
-        //           everything in Memory]
-        private ArrayBlockingQueue<EmailAndListener<? extends Email>> emails;
-
-        public EmailSender() {
-            emails = new ArrayBlockingQueue<>(QUEUE_BUFFER);
-        }
+    void reallySend(Email email, RecipientResults results) throws EmailException {
+        reallySend(email);
+    }
 
-        private volatile boolean shutdown;
+    /**
+     * Mail to the same key is delivered in the order it was sent; this is the
+     * first recipient, so mail to one person arrives in order.
+     */
+    static String orderingKey(Email email) {
+        List<InternetAddress> to = email.getToAddresses();
+        if (to.isEmpty()) {
+            to = email.getCcAddresses();
+        }
+        if (to.isEmpty()) {
+            to = email.getBccAddresses();
+        }
+        if (to.isEmpty() || to.get(0).getAddress() == null) {
+            return "";
+        }
+        return to.get(0).getAddress().toLowerCase(Locale.ROOT);
+    }
 
-        boolean isShutdown() {
-            return shutdown;
+    /**
+     * The domain whose rate limit applies to mail with an ordering key - the
+     * registered domain of the address, so mail to mx1.example.com and
+     * mx2.example.com counts against example.com.
+     */
+    static String domainOf(String orderingKey) {
+        int at = orderingKey.lastIndexOf('@');
+        if (at < 0) {
+            return "";
         }
+        Host domain = new EmailAddress(orderingKey).getDomain();
+        return domain == null ? orderingKey.substring(at + 1) : domain.toString().toLowerCase(Locale.ROOT);
+    }
 
-        private <E extends Email> void doOne(EmailAndListener<E> emailAndListener) {
-            PublishListener<E> listener = emailAndListener.getListener();
-            E email = emailAndListener.getEmail();
-            sendOneEmail(email, listener);
-            if (Thread.interrupted()) {
-                List<EmailAndListener<?>> remaining = new ArrayList<EmailAndListener<?>>(emails);
-                for (EmailAndListener<?> rem : remaining) {
-                    sendOneEmail(rem);
-                }
-                return;
+    /**
+     * Run a listener callback on the listener stage. Callbacks for one
+     * listener are run in order, one at a time; if the stage is full, this
+     * waits for room rather than losing the callback.
+     */
+    private void callListener(PublishListener<?> listener, Runnable callback) {
+        if (listener == null) {
+            return;
+        }
+        Runnable safe = () -> {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                Logger.getLogger(StubMailServer.class.getName()).log(Level.INFO, "Exception in send listener", e);
             }
+        };
+        try {
+            listeners.put(System.identityHashCode(listener), safe);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            safe.run();
         }
+    }
 
-        private <E extends Email> void sendOneEmail(EmailAndListener<E> l) {
-            sendOneEmail(l.email, l.listener);
-        }
+    /**
+     * Called by the queue workers to deliver each email and notify its
+     * listener.
+     */
+    private final class Deliverer implements MailQueue.Delivery<EmailAndListener<?>> {
 
         @Override
-        public void run() {
-            try {
-                LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Delivery Email Queue STARTED");
-                synchronized (this) {
-                    thread = Thread.currentThread();
-                }
-                EmailAndListener<?> emailAndListener = null;
-                try {
-                    while ((emailAndListener = emails.take()) != null) {
-                        doOne(emailAndListener);
-                    }
-                } catch (InterruptedException e) {
-                    // IT SHOULD BE EXPECT a InterruptException,
-                    // when the shutdown() method is called (the only case)
-                    LOGGER.log(Level.WARNING, "RealMailServer.Queue.run(): INTERRUPTED EXCEPTION: {0}", e.getMessage());
-                    if (shutdown) {
-                        return;
-                    }
-                } catch (IllegalMonitorStateException e) {
-                    LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): ILLEGAL MONITOR EXCEPTION: {0}", e.getMessage());
-                }
-                LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Delivery Email Queue ENDED");
-            } finally {
-                shutdown = true;
-            }
+        public void deliver(EmailAndListener<?> item) {
+            long waited = System.nanoTime() - item.queuedAt;
+            queueWait.record(waited);
+            queueWaitByPriority[item.priority.ordinal()].record(waited);
+            sendOneEmail(item);
         }
 
-        private <E extends Email> void sendOneEmail(E email, PublishListener<E> listener) {
+        private <E extends Email> void sendOneEmail(EmailAndListener<E> l) {
+            E email = l.email;
+            PublishListener<E> listener = l.listener;
+            // A journaled email was prepared before it was written
+            Email toSend = l.entry == null ? email : new JournaledEmail(journal.read(l.entry));
+            boolean sent = false;
+            boolean retrying = false;
             // SEND IT
-            LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Sending Email to {0}", email.getToAddresses());
+            LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Sending Email to {0}", email == null ? toSend : email.getToAddresses());
             try {
-                prepareToSend(email);
+                if (l.entry == null) {
+                    prepareToSend(toSend);
+                }
 
-                if (listener != null) {
-                    try {
-                        listener.progress(1, STEPS, "Delivering", email);
-                    } catch (Exception e) {
-                        Logger.getLogger(EmailSender.class.getName()).log(Level.INFO, "Exception in send listener", e);
-                    }
+                callListener(listener, () -> listener.progress(1, STEPS, "Delivering", email));
+                if (l.recipients == null) {
+                    l.recipients = new RecipientResults();
                 }
-                reallySend(email);
-                if (listener != null) {
-                    try {
-                        listener.progress(2, STEPS, "Delivered", email);
-                        listener.onSuccess(email);
-                    } catch (Exception e) {
-                        Logger.getLogger(EmailSender.class.getName()).log(Level.INFO, "Exception in send listener", e);
-                    }
+                l.attempts++;
+                reallySend(toSend, l.recipients);
+                sent = true;
+                if (l.recipients.hasRefused()) {
+                    // By an earlier attempt
+                    failed(l, new EmailException(l.recipients.failure()));
+                    return;
                 }
-                LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Delivery SUCESSFUL {0}", new Object[]{email});
+                RecipientResults recipients = l.recipients;
+                callListener(listener, () -> {
+                    if (recipients.isUsed()) {
+                        recipients.report(listener, email);
+                    }
+                    listener.progress(2, STEPS, "Delivered", email);
+                    listener.onSuccess(email);
+                });
+                LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Delivery SUCESSFUL {0}", new Object[]{toSend});
 
                 // EMAIL FAILURE: It might be due several reasons
-                // [PENDING: Try to come up with clear ways to handle failure]
             } catch (EmailException e) {
-                LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Email Exception: {0}", e.getMessage());
-                if (listener != null) {
-                    try {
-                        listener.progress(2, STEPS, "Delivery Failed", email);
-                        listener.onFailure(e.getCause() != null ? e.getCause() : e, email);
-                    } catch (Exception e1) {
-                        Logger.getLogger(EmailSender.class.getName()).log(Level.INFO, "Exception in send listener", e1);
-
+                // Sent to by domain, only the recipients not yet sent to are
+                // retried
+                boolean transientFailure = l.recipients.isUsed() ? l.recipients.hasUnsent() : SmtpFailures.isTransient(e);
+                if (transientFailure && retries.mayRetry(l.attempts)) {
+                    long delay = retries.delayMillis(l.attempts);
+                    if (retries.schedule(l, delay)) {
+                        retrying = true;
+                        retried.increment();
+                        LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Transient failure sending {0}; "
+                                + "attempt {1} will be retried in {2}ms: {3}",
+                                new Object[]{toSend, l.attempts, delay, e.getMessage()});
+                        callListener(listener, () -> listener.progress(2, STEPS, "Delivery Failed, will retry", email));
+                        return;
                     }
                 }
+                if (transientFailure && l.entry != null && retries.isShutdown()) {
+                    // Shutting down; a journaled email is left for the next
+                    // start to retry, so it has not failed
+                    retrying = true;
+                    LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Shutting down; {0} will be "
+                            + "retried on restart: {1}", new Object[]{toSend, e.getMessage()});
+                    callListener(listener, () -> listener.progress(2, STEPS, "Delivery deferred until restart", email));
+                    return;
+                }
+                LOGGER.log(Level.INFO, "RealMailServer.Queue.run(): Email Exception: {0}", e.getMessage());
+                failed(l, e);
+            } catch (RuntimeException e) {
+                // A bug, or a library refusing something; the listener must
+                // still hear about it, and the journal entry not stay pending
+                LOGGER.log(Level.SEVERE, "Exception sending " + toSend, e);
+                failed(l, new EmailException(e));
+            } finally {
+                if (l.entry != null && !retrying) {
+                    journal.complete(l.entry, sent);
+                }
             }
         }
+    }
 
-        /**
-         * If possible, get the Email out the queue
-         */
-        public boolean cancel(EmailAndListener<?> emailAndListener) {
-            return emails.remove(emailAndListener);
-        }
+    private <E extends Email> void failed(EmailAndListener<E> l, EmailException e) {
+        callListener(l.listener, () -> {
+            if (l.recipients != null && l.recipients.isUsed()) {
+                l.recipients.report(l.listener, l.email);
+            }
+            l.listener.progress(2, STEPS, "Delivery Failed", l.email);
+            l.listener.onFailure(e.getCause() != null ? e.getCause() : e, l.email);
+        });
+    }
+
+    /**
+     * Called on the retry timer thread when an email is due to be tried
+     * again.
+     */
+    private final class Requeue implements Consumer<EmailAndListener<?>> {
 
-        /**
-         * Add an Email to the Queue
-         */
-        public <E extends Email> void add(EmailAndListener<E> emailAndListener) throws QueueFullException {
+        @Override
+        public void accept(EmailAndListener<?> item) {
+            item.queuedAt = System.nanoTime();
             try {
-                emails.add(emailAndListener);
-            } catch (IllegalStateException e) {
-                // there isn't another room for more Emails
-                // because the Queue is full
-                throw new QueueFullException("Email Queue is full. Limit is " + String.valueOf(QUEUE_BUFFER), e.getCause());
+                queue.add(item.priority, item.entry == null ? orderingKey(item.email) : item.entry.key, item);
+            } catch (IllegalStateException | QueueFullException e) {
+                giveUp(item, e);
             }
         }
+    }
 
-        /**
-         * Flag the Thread that it should shutdown, as soon as all the Emails
-         * are done being sent
-         */
-        public void shutdown() {
-            synchronized (this) {
-                shutdown = true;
-                if (thread != null) {
-                    thread.interrupt();
-                }
-            }
+    private <E extends Email> void giveUp(EmailAndListener<E> item, Exception why) {
+        if (item.entry == null) {
+            LOGGER.log(Level.WARNING, "Could not retry {0}: {1}", new Object[]{item.email, why.getMessage()});
+            failed(item, new EmailException("Gave up retrying: " + why.getMessage(), why));
         }
+        // A journaled one stays pending, and is retried on restart
     }
 
     /**
      * This class bundles 2 basic information: Email and PublishListener Once
      * bundled, it's inserted into the Queue, so QueueThread can handle both
-     * Email and a (optional) PublishListener
+     * Email and a (optional) PublishListener. If the email is journaled, the
+     * entry is what gets sent, and the email is only held for the listener.
      */
     private final class EmailAndListener<E extends Email> {
 
         private final E email;
         private final PublishListener<E> listener;
-
-        public EmailAndListener(E email, PublishListener<E> listener) {
+        private final MailJournal.Entry entry;
+        private final MailPriority priority;
+        // Touched only by whichever thread currently owns it
+        private long queuedAt = System.nanoTime();
+        private int attempts;
+        // Created when first delivered
+        private RecipientResults recipients;
+
+        public EmailAndListener(E email, PublishListener<E> listener, MailJournal.Entry entry, MailPriority priority) {
             this.email = email;
             this.listener = listener;
+            this.entry = entry;
+            this.priority = priority;
         }
 
         public E getEmail() {
@@ -0,0 +1,200 @@
+package com.mastfrog.email.server;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateExceptionHandler;
+import freemarker.template.Version;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Compiled FreeMarker templates, loaded once and kept until their files
+ * change. A background WatchService reports changes to the template
+ * directory and only the changed templates are dropped, so getting a
+ * template does no file I/O except the first time and after an edit.
+ * <p>
+ * If the directory cannot be watched, FreeMarker's own periodic
+ * modification check is used instead.
+ *
+ * @author Tim Boudreau
+ */
+final class TemplateCache implements AutoCloseable {
+
+    private final Configuration config;
+    private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<>();
+    // Bumped on every change, so a template loaded while its file was being
+    // changed is not kept
+    private final AtomicLong changes = new AtomicLong();
+    private final Path root;
+    private final WatchService watcher;
+    private final ConcurrentMap<WatchKey, Path> watched = new ConcurrentHashMap<>();
+
+    private TemplateCache(Configuration config, Path root, WatchService watcher) {
+        this.config = config;
+        this.root = root;
+        this.watcher = watcher;
+    }
+
+    /**
+     * Create a cache over templates on the classpath, which cannot change.
+     */
+    static TemplateCache forClasspath(Class<?> relativeTo) {
+        Configuration config = configuration();
+        config.setClassForTemplateLoading(relativeTo, "");
+        config.setTemplateUpdateDelayMilliseconds(Long.MAX_VALUE);
+        return new TemplateCache(config, null, null);
+    }
+
+    /**
+     * Create a cache over templates in a directory, and start watching it.
+     */
+    static TemplateCache forDirectory(File dir) throws IOException {
+        Configuration config = configuration();
+        config.setDirectoryForTemplateLoading(dir);
+        Path root = dir.toPath().toAbsolutePath();
+        WatchService watcher;
+        try {
+            watcher = root.getFileSystem().newWatchService();
+        } catch (IOException | UnsupportedOperationException ex) {
+            EmailServerService.LOGGER.log(Level.WARNING, "Cannot watch " + root
+                    + " for changes; will check template files periodically", ex);
+            return new TemplateCache(config, root, null);
+        }
+        // We hear about changes; FreeMarker need not look for them
+        config.setTemplateUpdateDelayMilliseconds(Long.MAX_VALUE);
+        TemplateCache result = new TemplateCache(config, root, watcher);
+        result.register(root);
+        Thread thread = new Thread(result::watch, "email-template-watch");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    private static Configuration configuration() {
+        Configuration config = new Configuration();
+        config.setDefaultEncoding("UTF-8");
+        config.setIncompatibleImprovements(new Version(2, 3, 20));
+        config.setTemplateExceptionHandler(TemplateExceptionHandler.HTML_DEBUG_HANDLER);
+        return config;
+    }
+
+    /**
+     * Get a template, compiling it if it has not been fetched before or its
+     * file has changed since.
+     *
+     * @param name The template's path relative to the template directory
+     * @return The template
+     * @throws IOException If it does not exist or cannot be parsed
+     */
+    Template get(String name) throws IOException {
+        if (watcher == null && root != null) {
+            return config.getTemplate(name);
+        }
+        Template result = templates.get(name);
+        if (result == null) {
+            long before = changes.get();
+            result = config.getTemplate(name);
+            Template existing = templates.putIfAbsent(name, result);
+            if (existing != null) {
+                result = existing;
+            } else if (changes.get() != before) {
+                // Something changed while we loaded it, maybe this
+                templates.remove(name, result);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+                EmailServerService.LOGGER.log(Level.INFO, "Closing template watcher", ex);
+            }
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                watched.put(d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        for (;;) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            Path dir = watched.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    changedAll();
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                changed(changed);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        register(changed);
+                    } catch (IOException ex) {
+                        EmailServerService.LOGGER.log(Level.WARNING, "Cannot watch " + changed, ex);
+                    }
+                }
+            }
+            if (!key.reset()) {
+                watched.remove(key);
+            }
+        }
+    }
+
+    private void changed(Path file) {
+        // FreeMarker names use / on all platforms
+        String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+        changes.incrementAndGet();
+        // If it is a directory, everything under it may be gone or replaced
+        String under = name + '/';
+        templates.keySet().removeIf(cached -> cached.equals(name) || cached.startsWith(under));
+        try {
+            // Also forgets that it did not exist, if it was just created
+            config.removeTemplateFromCache(name);
+            if (Files.isDirectory(file) || !Files.exists(file)) {
+                // Can't tell what FreeMarker has under a directory
+                config.clearTemplateCache();
+            }
+        } catch (IOException ex) {
+            config.clearTemplateCache();
+        }
+        EmailServerService.LOGGER.log(Level.FINE, "Template changed: {0}", name);
+    }
+
+    private void changedAll() {
+        changes.incrementAndGet();
+        templates.clear();
+        config.clearTemplateCache();
+    }
+}
@@ -0,0 +1,162 @@
+package com.mastfrog.email.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import static com.mastfrog.email.server.EmailServerService.LOGGER;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_TEMPLATE_WARMUP_RENDER;
+import com.mastfrog.settings.Settings;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Compiles every email template at startup, in parallel, so the first
+ * email sent with each one after a deploy does not wait for FreeMarker to
+ * parse it; and, unless <code>email.template.warmup.render</code> is
+ * false, renders each with its provider's sample model so FreeMarker has
+ * already introspected the model's classes. Runs in the background; how
+ * long each template took is logged when it is done.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class TemplateWarmup {
+
+    private static final EmailAddress SAMPLE_SENDER = new EmailAddress("warmup@example.com");
+    private final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    @Inject
+    TemplateWarmup(HtmlTemplateProvider provider, HtmlMessageFormatter formatter,
+            Set<EnumHtmlEmailTemplateProvider<?>> bound, DefaultTemplate defaultTemplate, Settings settings) {
+        boolean render = settings.getBoolean(SETTINGS_KEY_EMAIL_TEMPLATE_WARMUP_RENDER, true);
+        List<Result> work = new ArrayList<>();
+        work.add(new Result(null, defaultTemplate.resourceName(), defaultTemplate.sampleModel()));
+        for (EnumHtmlEmailTemplateProvider<?> p : bound) {
+            addAll(p, work);
+        }
+        int threads = Math.min(work.size(), Runtime.getRuntime().availableProcessors());
+        AtomicInteger ids = new AtomicInteger();
+        ExecutorService exe = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "email-template-warmup-" + ids.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger remaining = new AtomicInteger(work.size());
+        long start = System.nanoTime();
+        for (Result r : work) {
+            exe.execute(() -> {
+                r.run(provider, formatter, render);
+                results.add(r);
+                if (remaining.decrementAndGet() == 0) {
+                    report(System.nanoTime() - start);
+                    done.countDown();
+                }
+            });
+        }
+        exe.shutdown();
+    }
+
+    private static <T extends Enum<T>> void addAll(EnumHtmlEmailTemplateProvider<T> p, List<Result> into) {
+        for (T constant : p.type.getEnumConstants()) {
+            into.add(new Result(constant, p.type.getSimpleName() + '.' + constant.name(), p.sampleModel(constant)));
+        }
+    }
+
+    /**
+     * Wait for warmup to finish, for tests.
+     *
+     * @return What happened to each template, slowest first
+     */
+    List<Result> await(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!done.await(timeout, unit)) {
+            return null;
+        }
+        return sorted();
+    }
+
+    private List<Result> sorted() {
+        List<Result> result;
+        synchronized (results) {
+            result = new ArrayList<>(results);
+        }
+        Collections.sort(result, (a, b) -> Long.compare(b.compileNanos + b.renderNanos, a.compileNanos + a.renderNanos));
+        return result;
+    }
+
+    private void report(long elapsed) {
+        List<Result> all = sorted();
+        StringBuilder sb = new StringBuilder("Warmed up ").append(all.size()).append(" email templates in ")
+                .append(millis(elapsed)).append(" ms:");
+        for (Result r : all) {
+            sb.append("\n  ").append(r);
+        }
+        LOGGER.log(Level.INFO, sb.toString());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1000000D);
+    }
+
+    static final class Result {
+
+        final Enum<?> template;
+        final String name;
+        private final Map<String, Object> sampleModel;
+        long compileNanos;
+        long renderNanos = -1;
+        Throwable failure;
+
+        Result(Enum<?> template, String name, Map<String, Object> sampleModel) {
+            this.template = template;
+            this.name = name;
+            this.sampleModel = sampleModel;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void run(HtmlTemplateProvider provider, HtmlMessageFormatter formatter, boolean render) {
+            long start = System.nanoTime();
+            try {
+                provider.template((Enum) template);
+                compileNanos = System.nanoTime() - start;
+                if (render) {
+                    start = System.nanoTime();
+                    if (template == null) {
+                        formatter.format(SAMPLE_SENDER, "Subject", "Body", sampleModel);
+                    } else {
+                        formatter.format((Enum) template, SAMPLE_SENDER, "Subject", "Body", sampleModel);
+                    }
+                    renderNanos = System.nanoTime() - start;
+                }
+            } catch (Exception | Error ex) {
+                // A template which needs more than its sample model is still
+                // compiled, and mail using it may well render fine
+                failure = ex;
+                if (compileNanos == 0) {
+                    compileNanos = System.nanoTime() - start;
+                }
+                LOGGER.log(Level.FINE, "Warming up " + name, ex);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name).append(": compiled in ").append(millis(compileNanos)).append(" ms");
+            if (renderNanos >= 0) {
+                sb.append(", rendered in ").append(millis(renderNanos)).append(" ms");
+            }
+            if (failure != null) {
+                sb.append(", failed: ").append(failure);
+            }
+            return sb.toString();
+        }
+    }
+}
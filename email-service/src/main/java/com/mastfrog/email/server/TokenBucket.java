@@ -0,0 +1,64 @@
+package com.mastfrog.email.server;
+
+/**
+ * Limits how fast mail goes to one domain: the bucket holds up to
+ * <code>burst</code> tokens and refills at <code>perSecond</code>, and each
+ * message takes one. Mail of every priority to a domain shares its bucket.
+ *
+ * @author Tim Boudreau
+ */
+final class TokenBucket {
+
+    private final double perNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+
+    TokenBucket(double perSecond, double burst, long now) {
+        if (perSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + perSecond);
+        }
+        this.perNano = perSecond / 1000000000D;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilledAt = now;
+    }
+
+    /**
+     * Take a token if there is one.
+     *
+     * @param now The current value of System.nanoTime()
+     * @return 0 if a token was taken, otherwise the number of nanoseconds
+     * until there will be one
+     */
+    synchronized long tryTake(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / perNano));
+    }
+
+    /**
+     * Whether the bucket has refilled completely, so that it is no different
+     * from a new one.
+     */
+    synchronized boolean isFull(long now) {
+        refill(now);
+        return tokens >= burst;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - refilledAt;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * perNano);
+            refilledAt = now;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket(" + (perNano * 1000000000D) + "/s, burst " + burst + ")";
+    }
+}
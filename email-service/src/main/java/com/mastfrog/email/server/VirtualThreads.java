@@ -0,0 +1,82 @@
+package com.mastfrog.email.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+/**
+ * Creates an executor which runs each task on a new virtual thread, on JDKs
+ * which have them (21 and later); this module is built for Java 8, so they
+ * are found reflectively.
+ * <p>
+ * Mail queue workers are long-lived, so each still keeps its own SMTP
+ * connection. Before Java 24, a virtual thread inside one of JavaMail's
+ * synchronized Transport methods - connect() and sendMessage() among them -
+ * holds on to its carrier thread while it waits for the server, so only as
+ * many SMTP transactions as there are carriers can be in flight at once.
+ *
+ * @author Tim Boudreau
+ */
+final class VirtualThreads {
+
+    // Null if this JVM has no virtual threads
+    private static final ThreadFactory FACTORY = factory();
+
+    private VirtualThreads() {
+        throw new AssertionError();
+    }
+
+    static boolean isSupported() {
+        return FACTORY != null;
+    }
+
+    /**
+     * Whether a virtual thread blocked inside a synchronized method pins its
+     * carrier thread, as it does before Java 24.
+     */
+    static boolean pinsInMonitors() {
+        return pinsInMonitors(System.getProperty("java.specification.version", "1.8"));
+    }
+
+    static boolean pinsInMonitors(String version) {
+        try {
+            return version.startsWith("1.") || Integer.parseInt(version) < 24;
+        } catch (NumberFormatException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Create an executor which starts a virtual thread for each task.
+     *
+     * @return An executor
+     * @throws UnsupportedOperationException if virtual threads are not
+     * available
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        if (FACTORY == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        try {
+            Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, FACTORY);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException(ex);
+        }
+    }
+
+    private static ThreadFactory factory() {
+        try {
+            // Thread.ofVirtual().name("mail-", 0).factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "mail-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            EmailServerService.LOGGER.log(Level.FINEST, "No virtual threads", ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.mastfrog.email.server;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_QUEUE_DEPTH;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_QUEUE_REJECTED;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_QUEUE_WAIT;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_JOURNAL_DIR;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_SEND_THREADS;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
+import com.mastfrog.statistics.MetricRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SimpleEmail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests sendAsync() and what it does when the queue is full.
+ *
+ * @author Tim Boudreau
+ */
+public class AsyncSendTest {
+
+    @Test
+    public void testQueueFullPolicies() throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .add(SETTINGS_KEY_EMAIL_SEND_THREADS, "1")
+                .build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE).add(new M()).build();
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        long rejectedBefore = metrics.counter(METRIC_EMAIL_QUEUE_REJECTED).get();
+        long waitsBefore = metrics.histogram(METRIC_EMAIL_QUEUE_WAIT).count();
+        try {
+            Gated server = (Gated) deps.getInstance(EmailServerService.class);
+            List<CompletableFuture<Email>> accepted = new ArrayList<>();
+            for (int i = 0; i < StubMailServer.QUEUE_BUFFER; i++) {
+                accepted.add(server.sendAsync(email(i)).toCompletableFuture());
+            }
+            assertEquals(StubMailServer.QUEUE_BUFFER, metrics.gauge(METRIC_EMAIL_QUEUE_DEPTH).get());
+
+            try {
+                server.sendAsync(email(-1), QueueFullPolicy.FAIL, 0, TimeUnit.MILLISECONDS);
+                fail("Queue should be full");
+            } catch (QueueFullException ex) {
+                // ok
+            }
+
+            CompletableFuture<Email> dropped = server.sendAsync(email(-2), QueueFullPolicy.DROP, 0,
+                    TimeUnit.MILLISECONDS).toCompletableFuture();
+            assertTrue(dropped.isCompletedExceptionally());
+
+            long start = System.nanoTime();
+            try {
+                server.sendAsync(email(-3), QueueFullPolicy.BLOCK, 100, TimeUnit.MILLISECONDS);
+                fail("Queue should still be full");
+            } catch (QueueFullException ex) {
+                assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            assertEquals(rejectedBefore + 3, metrics.counter(METRIC_EMAIL_QUEUE_REJECTED).get());
+
+            // Let one message through while a producer is blocked; it gets
+            // the freed slot
+            Email late = email(-4);
+            server.release(1, 200);
+            CompletableFuture<Email> blocked = server.sendAsync(late, QueueFullPolicy.BLOCK, 10,
+                    TimeUnit.SECONDS).toCompletableFuture();
+
+            server.release(StubMailServer.QUEUE_BUFFER, 0);
+            assertSame(late, blocked.get(10, TimeUnit.SECONDS));
+            for (CompletableFuture<Email> f : accepted) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+            try {
+                dropped.get();
+                fail("Dropped email should have failed");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof QueueFullException);
+            }
+            // The last future completes just before its slot is freed
+            for (int i = 0; i < 100 && metrics.gauge(METRIC_EMAIL_QUEUE_DEPTH).get() != 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, metrics.gauge(METRIC_EMAIL_QUEUE_DEPTH).get());
+            assertEquals(waitsBefore + StubMailServer.QUEUE_BUFFER + 1, metrics.histogram(METRIC_EMAIL_QUEUE_WAIT).count());
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    @Test
+    public void testUncheckedExceptionFailsTheSend() throws Exception {
+        Path dir = Files.createTempDirectory("mail-journal");
+        Settings settings = new SettingsBuilder()
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .add(SETTINGS_KEY_EMAIL_SEND_THREADS, "1")
+                .add(SETTINGS_KEY_EMAIL_JOURNAL_DIR, dir.toString())
+                .build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE).add(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ExecutorService.class).annotatedWith(Names.named("mailqueue")).toInstance(Executors.newFixedThreadPool(1));
+                bind(EmailServerService.class).to(Broken.class);
+                bind(EmailServiceModule.ShutdownMailqueue.class).asEagerSingleton();
+            }
+        }).build();
+        try {
+            Email email = email(1);
+            // The stub server does not fill in a sender, and journaling needs one
+            email.setFrom("sender@example.com");
+            CompletableFuture<Email> f = deps.getInstance(EmailServerService.class)
+                    .sendAsync(email).toCompletableFuture();
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                fail("Should have failed");
+            } catch (ExecutionException ex) {
+                assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            deps.shutdown();
+        }
+        // Not left in the journal to be sent again
+        try (MailJournal journal = new MailJournal(dir, 4096, Long.MAX_VALUE, false)) {
+            assertTrue(journal.pending().isEmpty());
+        }
+    }
+
+    @Test
+    public void testJournaledMailFailingAtShutdownIsDeferred() throws Exception {
+        Path dir = Files.createTempDirectory("mail-journal");
+        Settings settings = new SettingsBuilder()
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .add(SETTINGS_KEY_EMAIL_SEND_THREADS, "1")
+                .add(SETTINGS_KEY_EMAIL_JOURNAL_DIR, dir.toString())
+                .build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE).add(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ExecutorService.class).annotatedWith(Names.named("mailqueue")).toInstance(Executors.newFixedThreadPool(1));
+                bind(EmailServerService.class).to(Busy.class);
+                bind(EmailServiceModule.ShutdownMailqueue.class).asEagerSingleton();
+            }
+        }).build();
+        Busy server = (Busy) deps.getInstance(EmailServerService.class);
+        List<String> heard = Collections.synchronizedList(new ArrayList<String>());
+        Email email = email(1);
+        email.setFrom("sender@example.com");
+        server.send(email, new PublishListener<Email>() {
+            @Override
+            public void progress(int i, int steps, String string, Email email) {
+                heard.add(string);
+            }
+
+            @Override
+            public void onSuccess(Email email) {
+                heard.add("success");
+            }
+
+            @Override
+            public void onFailure(Throwable failure, Email message) {
+                heard.add("failure");
+            }
+        });
+        assertTrue(server.sending.await(10, TimeUnit.SECONDS));
+        // Fails with a 451 once retries are no longer being scheduled
+        deps.shutdown();
+        assertFalse(heard.toString(), heard.contains("failure"));
+        assertTrue(heard.toString(), heard.contains("Delivery deferred until restart"));
+        try (MailJournal journal = new MailJournal(dir, 4096, Long.MAX_VALUE, false)) {
+            assertEquals(1, journal.pending().size());
+        }
+    }
+
+    private static Email email(int i) throws Exception {
+        Email email = new SimpleEmail();
+        email.addTo("recipient" + (i % 7) + "@example.com");
+        email.setSubject(Integer.toString(i));
+        email.setMsg("Message " + i);
+        return email;
+    }
+
+    /**
+     * Holds each message until released, so the queue fills up.
+     */
+    static final class Gated extends StubMailServer {
+
+        private final Semaphore permits = new Semaphore(0);
+
+        @Inject
+        Gated(EmailAddressesConfig config, @Named("mailqueue") ExecutorService threadPool, Settings settings, ShutdownHookRegistry vmShutdown) {
+            super(config, threadPool, settings, vmShutdown);
+        }
+
+        void release(final int count, final long afterMillis) {
+            if (afterMillis == 0) {
+                permits.release(count);
+                return;
+            }
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(afterMillis);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    permits.release(count);
+                }
+            }.start();
+        }
+
+        @Override
+        protected void reallySend(Email email) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static final class Broken extends StubMailServer {
+
+        @Inject
+        Broken(EmailAddressesConfig config, @Named("mailqueue") ExecutorService threadPool, Settings settings, ShutdownHookRegistry vmShutdown) {
+            super(config, threadPool, settings, vmShutdown);
+        }
+
+        @Override
+        protected void reallySend(Email email) {
+            throw new IllegalStateException("Broken");
+        }
+    }
+
+    /**
+     * Fails each message with a transient error, a while after starting to
+     * send it.
+     */
+    static final class Busy extends StubMailServer {
+
+        final CountDownLatch sending = new CountDownLatch(1);
+
+        @Inject
+        Busy(EmailAddressesConfig config, @Named("mailqueue") ExecutorService threadPool, Settings settings, ShutdownHookRegistry vmShutdown) {
+            super(config, threadPool, settings, vmShutdown);
+        }
+
+        @Override
+        protected void reallySend(Email email) throws EmailException {
+            sending.countDown();
+            long until = System.currentTimeMillis() + 500;
+            while (System.currentTimeMillis() < until) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                    // Shutting down; keep going
+                }
+            }
+            throw new EmailException(new SMTPSendFailedException("DATA", 451, "451 4.3.0 Try again later", null, null, null, null));
+        }
+    }
+
+    static final class M extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            bind(ExecutorService.class).annotatedWith(Names.named("mailqueue")).toInstance(Executors.newFixedThreadPool(1));
+            bind(EmailServerService.class).to(Gated.class);
+            bind(EmailServiceModule.ShutdownMailqueue.class).asEagerSingleton();
+        }
+    }
+}
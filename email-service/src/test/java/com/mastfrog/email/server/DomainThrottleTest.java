@@ -0,0 +1,118 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_DOMAIN_BURST;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_DOMAIN_RATE;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that a rate-limited domain is held to its rate without holding up
+ * mail to other domains.
+ *
+ * @author Tim Boudreau
+ */
+public class DomainThrottleTest {
+
+    private static final int SLOW = 10;
+    private static final int FAST = 50;
+    private static final int SLOW_RATE = 20;
+
+    @Test
+    public void testThrottledDomainDoesNotHoldUpOthers() throws Exception {
+        Map<String, Long> deliveredAt = new ConcurrentHashMap<>();
+        List<String> delivered = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(SLOW + FAST);
+        MailQueue<String> queue = new MailQueue<>(item -> {
+            deliveredAt.put(item, System.nanoTime());
+            synchronized (delivered) {
+                delivered.add(item);
+            }
+            done.countDown();
+        }, priority -> 1000, MailPriority::defaultWeight, StubMailServer::domainOf,
+                domain -> "slow.com".equals(domain) ? new TokenBucket(SLOW_RATE, 1, System.nanoTime()) : null);
+        new Thread(queue.workers(1)[0], "worker").start();
+        long start = System.nanoTime();
+        // The throttled domain's mail is queued first
+        for (int i = 0; i < SLOW; i++) {
+            queue.add(MailPriority.NORMAL, "user" + (i % 3) + "@slow.com", "slow-" + i);
+        }
+        for (int i = 0; i < FAST; i++) {
+            queue.add(MailPriority.NORMAL, "user" + (i % 5) + "@mx.fast.com", "fast-" + i);
+        }
+        assertTrue("Timed out", done.await(10, TimeUnit.SECONDS));
+
+        long slowestFast = 0;
+        for (int i = 0; i < FAST; i++) {
+            slowestFast = Math.max(slowestFast, deliveredAt.get("fast-" + i) - start);
+        }
+        long lastSlow = deliveredAt.get("slow-" + (SLOW - 1)) - start;
+        // One message right away, the rest one per 50ms
+        long minimum = TimeUnit.MILLISECONDS.toNanos((SLOW - 1) * 1000 / SLOW_RATE);
+        assertTrue("Throttled domain sent too fast: " + TimeUnit.NANOSECONDS.toMillis(lastSlow) + "ms",
+                lastSlow >= minimum * 9 / 10);
+        assertTrue("Unthrottled domain was held up: " + TimeUnit.NANOSECONDS.toMillis(slowestFast)
+                + "ms", slowestFast < minimum / 2);
+
+        // Still in order for each recipient
+        int[] next = new int[3];
+        for (String item : delivered) {
+            if (item.startsWith("slow-")) {
+                int ix = Integer.parseInt(item.substring(5));
+                assertTrue(item + " out of order in " + delivered, ix >= next[ix % 3]);
+                next[ix % 3] = ix + 1;
+            }
+        }
+        assertEquals(0, queue.throttledDomains());
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTokenBucket() {
+        long second = TimeUnit.SECONDS.toNanos(1);
+        TokenBucket bucket = new TokenBucket(10, 2, 0);
+        assertTrue(bucket.isFull(0));
+        assertEquals(0, bucket.tryTake(0));
+        assertEquals(0, bucket.tryTake(0));
+        long wait = bucket.tryTake(0);
+        assertTrue("Should wait about 100ms, not " + wait, Math.abs(wait - second / 10) < 1000);
+        assertEquals(0, bucket.tryTake(wait + 1000));
+        assertFalse(bucket.isFull(wait + 1000));
+        assertTrue(bucket.isFull(second));
+    }
+
+    @Test
+    public void testDomainsAndLimits() throws Exception {
+        assertEquals("example.com", StubMailServer.domainOf("someone@mx.example.com"));
+        assertEquals("example.com", StubMailServer.domainOf("someone@example.com"));
+        assertEquals("", StubMailServer.domainOf(""));
+
+        Settings settings = new SettingsBuilder()
+                .add(SETTINGS_KEY_EMAIL_DOMAIN_RATE + ".example.com", "5")
+                .add(SETTINGS_KEY_EMAIL_DOMAIN_BURST + ".example.com", "2")
+                .build();
+        DomainLimits limits = new DomainLimits(settings);
+        assertNull(limits.apply("other.com"));
+        TokenBucket bucket = limits.apply("example.com");
+        assertNotNull(bucket);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryTake(now));
+        assertEquals(0, bucket.tryTake(now));
+        assertTrue(bucket.tryTake(now) > 0);
+
+        limits = new DomainLimits(new SettingsBuilder().add(SETTINGS_KEY_EMAIL_DOMAIN_RATE, "100").build());
+        assertNotNull(limits.apply("other.com"));
+    }
+}
@@ -0,0 +1,108 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_MAX_DELAY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_SEND_THREADS;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_HOST_SETTINGS_KEY;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_PORT_SETTINGS_KEY;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.mail.Email;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Sends mail through EmailSendService and the real mail server, as a
+ * production configuration does, to an in-process SMTP server which
+ * throttles and refuses some of it.
+ *
+ * @author Tim Boudreau
+ */
+public class EndToEndSendTest {
+
+    private static final EmailAddress FROM = new EmailAddress("sender@example.com");
+
+    @Test
+    public void testThrottledServerGetsEverything() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer().maxConnections(1).rateLimit(20)) {
+            send(server, 4, 40);
+            assertEquals(40, server.messages());
+            TestSmtpServer.Received first = server.received().get(0);
+            assertEquals("sender@example.com", first.from);
+            assertTrue(first.data, first.data.contains("text/html"));
+        }
+    }
+
+    @Test
+    public void testRandomFailuresAreRetried() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer().failRandomly(0.3, "451 4.3.0 Try again later")) {
+            send(server, 2, 40);
+            assertEquals(40, server.messages());
+        }
+    }
+
+    private static void send(TestSmtpServer server, int workers, int count) throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(Dependencies.SYSTEM_PROP_PRODUCTION_MODE, "true")
+                .add(SMTP_HOST_SETTINGS_KEY, server.host())
+                .add(SMTP_PORT_SETTINGS_KEY, Integer.toString(server.port()))
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, FROM.toString())
+                .add(SETTINGS_KEY_EMAIL_SEND_THREADS, Integer.toString(workers))
+                .add(SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS, "50")
+                .add(SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY, "10")
+                .add(SETTINGS_KEY_EMAIL_RETRY_MAX_DELAY, "100")
+                .build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE)
+                .add(new EmailServiceModule(settings)).build();
+        try {
+            EmailSendService service = deps.getInstance(EmailSendService.class);
+            Listener listener = new Listener(count);
+            // The default template has a subhead
+            Map<String, Object> model = Collections.<String, Object>singletonMap("subhead", "Test");
+            for (int i = 0; i < count; i++) {
+                service.send(listener, "Message " + i, "Hello " + i, model, FROM, "user" + i + "@example" + (i % 4) + ".com");
+            }
+            assertTrue("Not all sent", listener.remaining.await(30, TimeUnit.SECONDS));
+            assertTrue(listener.failures.toString(), listener.failures.isEmpty());
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    static final class Listener implements PublishListener<Email> {
+
+        final CountDownLatch remaining;
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Listener(int count) {
+            remaining = new CountDownLatch(count);
+        }
+
+        @Override
+        public void progress(int i, int steps, String string, Email email) {
+        }
+
+        @Override
+        public void onSuccess(Email email) {
+            remaining.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable failure, Email message) {
+            failures.add(failure);
+            remaining.countDown();
+        }
+    }
+}
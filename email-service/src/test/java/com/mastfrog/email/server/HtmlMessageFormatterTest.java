@@ -0,0 +1,196 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RENDER_CACHE_SIZE;
+import com.mastfrog.settings.SettingsBuilder;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests DefaultHtmlMessageFormatter's escaping and model without Guice.
+ *
+ * @author Tim Boudreau
+ */
+public class HtmlMessageFormatterTest {
+
+    @Test
+    public void testEscapingMatchesChainedReplace() {
+        Random rnd = new Random(42);
+        String chars = "abc &<>\n@xyz\u00e9";
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = rnd.nextInt(40); j > 0; j--) {
+                sb.append(chars.charAt(rnd.nextInt(chars.length())));
+            }
+            String s = sb.toString();
+            String expected = s.replace("&", "&amp;")
+                    .replace("<", "&lt;")
+                    .replace(">", "&gt;")
+                    .replace("\n", "</p><p>")
+                    .replace("@", "&#064;");
+            assertEquals(expected, DefaultHtmlMessageFormatter.escapeHtml(s));
+        }
+        String plain = "Nothing to escape here";
+        assertSame(plain, DefaultHtmlMessageFormatter.escapeHtml(plain));
+    }
+
+    @Test
+    public void testModel() throws Exception {
+        Template tpl = new Template("t", "<h1>${subject}</h1><p>${message}</p>${from} ${greeting} ${count}",
+                new Configuration());
+        DefaultHtmlMessageFormatter formatter = new DefaultHtmlMessageFormatter(new HtmlTemplateProvider() {
+            @Override
+            public <T extends Enum<T>> Template template(T template) {
+                return tpl;
+            }
+        }, new SettingsBuilder().build());
+        Map<String, Object> injected = new HashMap<>();
+        injected.put("greeting", "Hi");
+        injected.put("count", 1234);
+        // The message's own values win
+        injected.put("subject", "Not this");
+        String first = formatter.format(new EmailAddress("joe@example.com"), "Q&A", "one\ntwo", injected);
+        assertEquals("<h1>Q&amp;A</h1><p>one</p><p>two</p>joe@example.com Hi 1,234", first);
+        // The per-thread buffer is reused without leaking into the next one
+        String second = formatter.format(new EmailAddress("ann@example.com"), "Hello", "there", injected);
+        assertEquals("<h1>Hello</h1><p>there</p>ann@example.com Hi 1,234", second);
+        assertEquals(3, injected.size());
+    }
+
+    @Test
+    public void testModelCanBeListed() throws Exception {
+        Template tpl = new Template("t", "${.data_model?size}|<#list .data_model?keys as k>${k} </#list>|"
+                + "<#list .data_model as k, v>${k}=${v} </#list>|<#list .data_model?values as v>${v} </#list>",
+                new Configuration(Configuration.VERSION_2_3_32));
+        DefaultHtmlMessageFormatter formatter = new DefaultHtmlMessageFormatter(new HtmlTemplateProvider() {
+            @Override
+            public <T extends Enum<T>> Template template(T template) {
+                return tpl;
+            }
+        }, new SettingsBuilder().build());
+        Map<String, Object> injected = new LinkedHashMap<>();
+        injected.put("greeting", "Hi");
+        injected.put("subject", "Not this");
+        injected.put("nothing", null);
+        assertEquals("4|subject message from greeting |subject=S message=M from=joe@example.com greeting=Hi |"
+                + "S M joe@example.com Hi ",
+                formatter.format(new EmailAddress("joe@example.com"), "S", "M", injected));
+        assertEquals("3|subject message from |subject=S message=M from=joe@example.com |S M joe@example.com ",
+                formatter.format(new EmailAddress("joe@example.com"), "S", "M", null));
+    }
+
+    @Test
+    public void testBufferIsReleasedAfterAFailure() throws Exception {
+        Template[] tpl = {new Template("t", "${missing}", new Configuration())};
+        DefaultHtmlMessageFormatter formatter = new DefaultHtmlMessageFormatter(new HtmlTemplateProvider() {
+            @Override
+            public <T extends Enum<T>> Template template(T template) {
+                return tpl[0];
+            }
+        }, new SettingsBuilder().build());
+        try {
+            formatter.format(new EmailAddress("joe@example.com"), "s", "b", null);
+            fail("Missing variable should fail");
+        } catch (Exception ex) {
+            assertTrue(ex.toString(), ex instanceof TemplateException);
+        }
+        tpl[0] = new Template("ok", "fine", new Configuration());
+        assertEquals("fine", formatter.format(new EmailAddress("joe@example.com"), "s", "b", null));
+    }
+
+    @Test
+    public void testCachedTemplateOutputIsReused() throws Exception {
+        AtomicReference<Template> tpl = new AtomicReference<>(new Template("t", "${subject} ${name}", new Configuration()));
+        DefaultHtmlMessageFormatter formatter = new DefaultHtmlMessageFormatter(new HtmlTemplateProvider() {
+            @Override
+            public <T extends Enum<T>> Template template(T template) {
+                return tpl.get();
+            }
+        }, new SettingsBuilder().add(SETTINGS_KEY_EMAIL_RENDER_CACHE_SIZE, "100").build());
+        EmailAddress from = new EmailAddress("joe@example.com");
+        Map<String, Object> model = new HashMap<>();
+        model.put("name", "Ann");
+        String first = formatter.format(Templates.DIGEST, from, "Hi", "b", model);
+        assertEquals("Hi Ann", first);
+        assertSame(first, formatter.format(Templates.DIGEST, from, "Hi", "b", new HashMap<>(model)));
+        // Not opted in
+        assertNotSame(first, formatter.format(Templates.RECEIPT, from, "Hi", "b", model));
+
+        // Changing the caller's map afterwards does not change what was cached
+        model.put("name", "Bob");
+        assertEquals("Hi Bob", formatter.format(Templates.DIGEST, from, "Hi", "b", model));
+        assertEquals("Hi Ann", formatter.format(Templates.DIGEST, from, "Hi", "b",
+                Collections.<String, Object>singletonMap("name", "Ann")));
+
+        // A reloaded template is rendered again
+        tpl.set(new Template("t", "${subject}, ${name}", new Configuration()));
+        assertEquals("Hi, Bob", formatter.format(Templates.DIGEST, from, "Hi", "b", model));
+
+        // Anything over a quarter of the cache is not kept
+        model.put("name", "A very long name which goes past the limit");
+        String big = formatter.format(Templates.DIGEST, from, "Hi", "b", model);
+        assertNotSame(big, formatter.format(Templates.DIGEST, from, "Hi", "b", model));
+    }
+
+    @Test
+    public void testMutableModelValuesAreNotCached() throws Exception {
+        Template tpl = new Template("t", "${subject} <#list names as n>${n} </#list>${when}", new Configuration());
+        DefaultHtmlMessageFormatter formatter = new DefaultHtmlMessageFormatter(new HtmlTemplateProvider() {
+            @Override
+            public <T extends Enum<T>> Template template(T template) {
+                return tpl;
+            }
+        }, new SettingsBuilder().add(SETTINGS_KEY_EMAIL_RENDER_CACHE_SIZE, "1000").build());
+        EmailAddress from = new EmailAddress("joe@example.com");
+        List<String> names = new ArrayList<>(Arrays.asList("Ann", "Bob"));
+        Map<String, Object> model = new HashMap<>();
+        model.put("names", names);
+        model.put("when", LocalDate.of(2026, 1, 2));
+        String first = formatter.format(Templates.DIGEST, from, "Hi", "b", model);
+        assertEquals("Hi Ann Bob 2026-01-02", first);
+        // The copy of the model would still hold the same list
+        names.add("Cy");
+        assertEquals("Hi Ann Bob Cy 2026-01-02", formatter.format(Templates.DIGEST, from, "Hi", "b", model));
+
+        assertTrue(RenderCache.isImmutable("s"));
+        assertTrue(RenderCache.isImmutable(12L));
+        assertTrue(RenderCache.isImmutable(new BigDecimal("1.5")));
+        assertTrue(RenderCache.isImmutable(Templates.DIGEST));
+        assertTrue(RenderCache.isImmutable(LocalDate.of(2026, 1, 2)));
+        assertTrue(RenderCache.isImmutable(null));
+        assertFalse(RenderCache.isImmutable(new AtomicLong()));
+        assertFalse(RenderCache.isImmutable(new Date()));
+        assertFalse(RenderCache.isImmutable(names));
+        assertFalse(RenderCache.isImmutable(new StringBuilder()));
+    }
+
+    enum Templates implements CachedTemplate {
+        DIGEST,
+        RECEIPT;
+
+        @Override
+        public boolean cacheRenderedOutput() {
+            return this == DIGEST;
+        }
+    }
+}
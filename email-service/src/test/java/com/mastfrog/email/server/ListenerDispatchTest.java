@@ -0,0 +1,103 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_STAGE_TIME;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.statistics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.SimpleEmail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that listeners are called off the delivery threads, so a slow one
+ * does not hold up delivery, and that each listener still hears about its
+ * mail in order.
+ *
+ * @author Tim Boudreau
+ */
+public class ListenerDispatchTest {
+
+    private static final int MESSAGES = 20;
+
+    @Test
+    public void testSlowListenerDoesNotHoldUpDelivery() throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE).add(new MailMergeTest.M()).build();
+        long timedBefore = MetricRegistry.getDefault().histogram(METRIC_EMAIL_STAGE_TIME + ".listener").count();
+        try {
+            MailMergeTest.Counting server = (MailMergeTest.Counting) deps.getInstance(EmailServerService.class);
+            Slow listener = new Slow();
+            for (int i = 0; i < MESSAGES; i++) {
+                Email email = new SimpleEmail();
+                email.addTo("recipient" + i + "@example.com");
+                email.setSubject(Integer.toString(i));
+                email.setMsg("Message " + i);
+                server.send(email, listener);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (server.sent.get() < MESSAGES && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // Still stuck in its first callback
+            assertEquals(MESSAGES, server.sent.get());
+            assertFalse(listener.done.await(0, TimeUnit.MILLISECONDS));
+
+            listener.mayReturn.countDown();
+            assertTrue("Listener not called for everything", listener.done.await(10, TimeUnit.SECONDS));
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < MESSAGES; i++) {
+                expected.add("1:" + i);
+                expected.add("2:" + i);
+                expected.add("ok:" + i);
+            }
+            assertEquals(expected, listener.events);
+            assertTrue(MetricRegistry.getDefault().histogram(METRIC_EMAIL_STAGE_TIME + ".listener").count()
+                    >= timedBefore + MESSAGES);
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    static final class Slow implements PublishListener<Email> {
+
+        final CountDownLatch mayReturn = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(MESSAGES);
+        // Only touched by one thread at a time
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void progress(int step, int steps, String description, Email email) {
+            try {
+                mayReturn.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            events.add(step + ":" + email.getSubject());
+        }
+
+        @Override
+        public void onSuccess(Email email) {
+            events.add("ok:" + email.getSubject());
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable failure, Email message) {
+            events.add("failed:" + failure);
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.mastfrog.email.server;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_JOURNAL_DIR;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_HOST_SETTINGS_KEY;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_PORT_SETTINGS_KEY;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Session;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.SimpleEmail;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the mail journal, and that RealMailServer sends mail left in it.
+ *
+ * @author Tim Boudreau
+ */
+public class MailJournalTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mail-journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Path p : segments()) {
+            Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testPendingRecordsAreReplayedInOrder() throws Exception {
+        List<MailJournal.Entry> entries = new ArrayList<>();
+        try (MailJournal journal = new MailJournal(dir, 256, Long.MAX_VALUE, false)) {
+            for (int i = 0; i < 20; i++) {
+                entries.add(journal.append("key" + (i % 3), ("message " + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals("message " + i, new String(journal.read(entries.get(i)), StandardCharsets.UTF_8));
+                if (i % 2 == 0) {
+                    journal.complete(entries.get(i), i % 4 == 0);
+                }
+            }
+        }
+        try (MailJournal journal = new MailJournal(dir, 256, Long.MAX_VALUE, false)) {
+            List<MailJournal.Entry> pending = journal.pending();
+            assertEquals(10, pending.size());
+            for (int i = 0; i < pending.size(); i++) {
+                int n = i * 2 + 1;
+                assertEquals("key" + (n % 3), pending.get(i).key);
+                assertEquals("message " + n, new String(journal.read(pending.get(i)), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testDrainedSegmentsAreDeleted() throws Exception {
+        try (MailJournal journal = new MailJournal(dir, 256, Long.MAX_VALUE, false)) {
+            List<MailJournal.Entry> entries = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                entries.add(journal.append("k", new byte[60]));
+            }
+            int written = segments().size();
+            assertTrue("Expected several segments, got " + written, written > 5);
+            for (MailJournal.Entry e : entries) {
+                journal.complete(e, true);
+            }
+            // Only the segment still being written to remains
+            assertEquals(1, segments().size());
+            assertEquals(256, journal.size());
+        }
+        try (MailJournal journal = new MailJournal(dir, 256, Long.MAX_VALUE, false)) {
+            assertTrue(journal.pending().isEmpty());
+            assertTrue(segments().isEmpty());
+        }
+    }
+
+    @Test(expected = QueueFullException.class)
+    public void testSizeLimit() throws Exception {
+        try (MailJournal journal = new MailJournal(dir, 256, 1024, false)) {
+            for (int i = 0; i < 100; i++) {
+                journal.append("k", new byte[100]);
+            }
+        }
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        try (MailJournal journal = new MailJournal(dir, 4096, Long.MAX_VALUE, false)) {
+            journal.append("a", "first".getBytes(StandardCharsets.UTF_8));
+            journal.append("b", "second".getBytes(StandardCharsets.UTF_8));
+        }
+        // Corrupt the last byte of the second message, as a crash part way
+        // through writing it might
+        Path segment = segments().get(0);
+        int secondEnd = 2 * (4 + 1 + 4 + 2 + 1) + "first".length() + "second".length();
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[]{'X'}), secondEnd - 1);
+        }
+        try (MailJournal journal = new MailJournal(dir, 4096, Long.MAX_VALUE, false)) {
+            assertEquals(1, journal.pending().size());
+            assertEquals("first", new String(journal.read(journal.pending().get(0)), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testMailLeftInJournalIsSentOnStartup() throws Exception {
+        // Journal two messages as a previous run that never sent them would
+        try (MailJournal journal = new MailJournal(dir, 4096, Long.MAX_VALUE, false)) {
+            for (int i = 0; i < 2; i++) {
+                Email email = new SimpleEmail();
+                email.setMailSession(Session.getInstance(new Properties()));
+                email.setFrom("sender@example.com");
+                email.addTo("someone@example.com");
+                email.setSubject("Left over " + i);
+                email.setMsg("Hello");
+                email.buildMimeMessage();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                email.getMimeMessage().writeTo(out);
+                journal.append("someone@example.com", out.toByteArray());
+            }
+        }
+        try (TestSmtpServer server = new TestSmtpServer()) {
+            Dependencies deps = new DependenciesBuilder().add(settings(server), DEFAULT_NAMESPACE)
+                    .add(new M()).build();
+            try {
+                deps.getInstance(EmailServerService.class);
+                long until = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+                while (server.received().size() < 2 && System.currentTimeMillis() < until) {
+                    Thread.sleep(20);
+                }
+                assertEquals(2, server.received().size());
+                assertEquals("Left over 0", server.received().get(0).header("Subject"));
+                assertEquals("Left over 1", server.received().get(1).header("Subject"));
+                assertEquals("someone@example.com", server.received().get(0).recipients.get(0));
+            } finally {
+                deps.shutdown();
+            }
+        }
+        try (MailJournal journal = new MailJournal(dir, 4096, Long.MAX_VALUE, false)) {
+            assertTrue(journal.pending().isEmpty());
+        }
+    }
+
+    @Test
+    public void testBurstLargerThanInMemoryQueueIsAllSent() throws Exception {
+        int count = StubMailServer.QUEUE_BUFFER + 200;
+        try (TestSmtpServer server = new TestSmtpServer()) {
+            Dependencies deps = new DependenciesBuilder().add(settings(server), DEFAULT_NAMESPACE)
+                    .add(new M()).build();
+            try {
+                EmailServerService service = deps.getInstance(EmailServerService.class);
+                ParallelDeliveryTest.Listener listener = new ParallelDeliveryTest.Listener(count / 2);
+                for (int i = 0; i < count; i++) {
+                    Email email = new SimpleEmail();
+                    email.addTo("recipient" + (i % 10) + "@example.com");
+                    email.setSubject(Integer.toString(i));
+                    email.setMsg("Message " + i);
+                    service.send(email, i % 2 == 0 ? listener : null);
+                }
+                long until = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+                while (server.received().size() < count && System.currentTimeMillis() < until) {
+                    Thread.sleep(20);
+                }
+                assertEquals(count, server.received().size());
+                assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+                assertEquals(0, listener.failures.get());
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    private Settings settings(TestSmtpServer server) throws IOException {
+        return new SettingsBuilder()
+                .add(SMTP_HOST_SETTINGS_KEY, server.host())
+                .add(SMTP_PORT_SETTINGS_KEY, Integer.toString(server.port()))
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .add(SETTINGS_KEY_EMAIL_JOURNAL_DIR, dir.toString())
+                .build();
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path p : files) {
+                result.add(p);
+            }
+        }
+        return result;
+    }
+
+    static final class M extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            bind(ExecutorService.class).annotatedWith(Names.named("mailqueue"))
+                    .toInstance(Executors.newFixedThreadPool(2));
+            bind(EmailServerService.class).to(RealMailServer.class);
+            bind(EmailServiceModule.ShutdownMailqueue.class).asEagerSingleton();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.mastfrog.email.server;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_MERGE_BATCH;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_QUEUE_CAPACITY;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.HtmlEmail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests mail merges: that a template is rendered once when it can be, gives
+ * the same result as rendering each email, and that recipients are pulled
+ * only as fast as the queue takes them.
+ *
+ * @author Tim Boudreau
+ */
+public class MailMergeTest {
+
+    private static final EmailAddress FROM = new EmailAddress("sender@example.com");
+
+    @Test
+    public void testMergeMatchesFullRendering() throws Exception {
+        DefaultHtmlMessageFormatter formatter = formatter("<h1>${subject}</h1>${message}"
+                + "<p>Dear ${name?html}, ${greeting} ${name}!</p>${code}");
+        Map<String, Object> shared = new HashMap<>();
+        shared.put("greeting", "Welcome to <b>Example</b>");
+        shared.put("name", "Nobody");
+        MergeTemplate merge = MergeTemplate.compile(model
+                -> formatter.format(FROM, "Hi & bye", "Line\nline", model), shared, Arrays.asList("name", "code"));
+        assertNotNull(merge);
+        for (String name : new String[]{"Joe", "A & <B>", "\"Q\"", "1"}) {
+            Map<String, String> values = new HashMap<>();
+            values.put("name", name);
+            values.put("code", "<i>" + name.length() + "</i>");
+            Map<String, Object> model = new HashMap<>(shared);
+            model.putAll(values);
+            assertEquals(formatter.format(FROM, "Hi & bye", "Line\nline", model), merge.apply(values));
+        }
+    }
+
+    @Test
+    public void testTransformedValuesCannotBeMerged() throws Exception {
+        DefaultHtmlMessageFormatter formatter = formatter("Dear ${name?upper_case}");
+        assertNull(MergeTemplate.compile(model -> formatter.format(FROM, "s", "b", model),
+                Collections.<String, Object>emptyMap(), Arrays.asList("name")));
+    }
+
+    @Test
+    public void testSendMerge() throws Exception {
+        AtomicInteger renders = new AtomicInteger();
+        DefaultHtmlMessageFormatter formatter = formatter("Dear ${name?html}");
+        HtmlMessageFormatter counting = new HtmlMessageFormatter() {
+            @Override
+            public String format(EmailAddress sender, String subject, String body, Map<String, Object> injected) {
+                renders.incrementAndGet();
+                return formatter.format(sender, subject, body, injected);
+            }
+
+            @Override
+            public <T extends Enum<T>> String format(T template, EmailAddress sender, String subject, String body, Map<String, Object> injected) {
+                renders.incrementAndGet();
+                return formatter.format(template, sender, subject, body, injected);
+            }
+        };
+        Settings settings = new SettingsBuilder()
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .add(SETTINGS_KEY_EMAIL_QUEUE_CAPACITY + ".bulk", "10")
+                .add(SETTINGS_KEY_EMAIL_MERGE_BATCH, "20")
+                .build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE).add(new M()).build();
+        try {
+            Counting server = (Counting) deps.getInstance(EmailServerService.class);
+            EmailSendServiceImpl service = new EmailSendServiceImpl(server, counting,
+                    deps.getInstance(SendPipeline.class), settings);
+            int count = 2000;
+            AtomicInteger pulled = new AtomicInteger();
+            AtomicInteger maxAhead = new AtomicInteger();
+            AtomicInteger failures = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(count - 2);
+            MailMergeResult result = service.sendMerge(Kind.MERGEABLE, new PublishListener<Email>() {
+                @Override
+                public void progress(int i, int steps, String string, Email email) {
+                }
+
+                @Override
+                public void onSuccess(Email email) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable failure, Email message) {
+                    assertNull(message);
+                    failures.incrementAndGet();
+                }
+            }, "Hello", "Body", null, FROM, IntStream.range(0, count).mapToObj(i -> {
+                maxAhead.accumulateAndGet(pulled.incrementAndGet() - server.sent.get(), Math::max);
+                String address = i == 7 || i == 1500 ? "not an address" : "user" + i + "@example.com";
+                return new MergeRecipient(address, Collections.singletonMap("name", "User " + i));
+            }));
+            assertEquals(count - 2, result.queued());
+            assertEquals(2, result.invalid());
+            assertEquals(2, failures.get());
+            assertTrue("Not all sent", done.await(10, TimeUnit.SECONDS));
+            // Rendered twice to find where the name goes, once for the first
+            // recipient to check it, and never again
+            assertEquals(3, renders.get());
+            // Never more than a batch ahead of what the queue holds and the
+            // one being sent, counting the skipped ones which never are
+            assertTrue("Pulled " + maxAhead.get() + " recipients ahead of sending", maxAhead.get() <= 20 + 10 + 1 + 2);
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    @Test
+    public void testConditionsOnMergeValuesAreRenderedInFull() throws Exception {
+        String text = "<#if name == \"admin\">Hello boss<#else>Dear ${name}</#if>";
+        List<MergeRecipient> recipients = Arrays.asList(
+                new MergeRecipient("a@example.com", Collections.singletonMap("name", "Joe")),
+                new MergeRecipient("b@example.com", Collections.singletonMap("name", "admin")),
+                new MergeRecipient("c@example.com", Collections.singletonMap("name", "Ann")));
+        // Not a MergeableTemplate; the markers would take the else branch
+        Map<String, String> html = merge(text, Kind.PLAIN, recipients);
+        assertEquals("Dear Joe", html.get("a@example.com"));
+        assertEquals("Hello boss", html.get("b@example.com"));
+        assertEquals("Dear Ann", html.get("c@example.com"));
+
+        // Claims to be mergeable, but the first recipient shows it is not
+        html = merge(text, Kind.MERGEABLE, Arrays.asList(recipients.get(1), recipients.get(0)));
+        assertEquals("Hello boss", html.get("b@example.com"));
+        assertEquals("Dear Joe", html.get("a@example.com"));
+    }
+
+    private static Map<String, String> merge(String text, Kind kind, List<MergeRecipient> recipients) throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE).add(new M()).build();
+        try {
+            Counting server = (Counting) deps.getInstance(EmailServerService.class);
+            EmailSendServiceImpl service = new EmailSendServiceImpl(server, formatter(text),
+                    deps.getInstance(SendPipeline.class), settings);
+            CountDownLatch done = new CountDownLatch(recipients.size());
+            service.sendMerge(kind, new PublishListener<Email>() {
+                @Override
+                public void progress(int i, int steps, String string, Email email) {
+                }
+
+                @Override
+                public void onSuccess(Email email) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable failure, Email message) {
+                    failure.printStackTrace();
+                }
+            }, "Hello", "Body", null, FROM, recipients.stream());
+            assertTrue("Not all sent", done.await(10, TimeUnit.SECONDS));
+            return server.html;
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    enum Kind implements MergeableTemplate {
+        PLAIN,
+        MERGEABLE;
+
+        @Override
+        public boolean mergeable() {
+            return this == MERGEABLE;
+        }
+    }
+
+    private static DefaultHtmlMessageFormatter formatter(String text) throws Exception {
+        Template tpl = new Template("t", text, new Configuration());
+        return new DefaultHtmlMessageFormatter(new HtmlTemplateProvider() {
+            @Override
+            public <T extends Enum<T>> Template template(T template) {
+                return tpl;
+            }
+        }, new SettingsBuilder().build());
+    }
+
+    static final class Counting extends StubMailServer {
+
+        final AtomicInteger sent = new AtomicInteger();
+        // The HTML of each email by recipient
+        final Map<String, String> html = new ConcurrentHashMap<>();
+
+        @Inject
+        Counting(EmailAddressesConfig config, @Named("mailqueue") ExecutorService threadPool, Settings settings, ShutdownHookRegistry vmShutdown) {
+            super(config, threadPool, settings, vmShutdown);
+        }
+
+        @Override
+        protected void reallySend(Email email) {
+            sent.incrementAndGet();
+            if (email instanceof HtmlEmail) {
+                try {
+                    Field field = HtmlEmail.class.getDeclaredField("html");
+                    field.setAccessible(true);
+                    html.put(email.getToAddresses().get(0).getAddress(), (String) field.get(email));
+                } catch (ReflectiveOperationException ex) {
+                    throw new AssertionError(ex);
+                }
+            }
+        }
+    }
+
+    static final class M extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            bind(ExecutorService.class).annotatedWith(Names.named("mailqueue")).toInstance(Executors.newFixedThreadPool(1));
+            bind(EmailServerService.class).to(Counting.class);
+            bind(EmailServiceModule.ShutdownMailqueue.class).asEagerSingleton();
+        }
+    }
+}
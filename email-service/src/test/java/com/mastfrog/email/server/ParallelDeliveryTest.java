@@ -0,0 +1,145 @@
+package com.mastfrog.email.server;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_SEND_THREADS;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_HOST_SETTINGS_KEY;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_PORT_SETTINGS_KEY;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.SimpleEmail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Sends mail through RealMailServer to a slow in-process SMTP server with one
+ * worker and with several, checking that several workers are faster and
+ * that mail to each recipient still arrives in order.
+ *
+ * @author Tim Boudreau
+ */
+public class ParallelDeliveryTest {
+
+    private static final int RECIPIENTS = 8;
+    private static final int PER_RECIPIENT = 5;
+    private static final long SERVER_DELAY_MILLIS = 40;
+
+    @Test
+    public void testWorkersDeliverInParallelPreservingOrder() throws Exception {
+        long serial = deliver(1);
+        long parallel = deliver(RECIPIENTS);
+        assertTrue("Expected " + RECIPIENTS + " workers to be much faster than one, but took "
+                + parallel + "ms vs. " + serial + "ms", parallel * 3 < serial);
+    }
+
+    private long deliver(int workers) throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer().dataDelay(SERVER_DELAY_MILLIS)) {
+            Settings settings = new SettingsBuilder()
+                    .add(SMTP_HOST_SETTINGS_KEY, server.host())
+                    .add(SMTP_PORT_SETTINGS_KEY, Integer.toString(server.port()))
+                    .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                    .add(SETTINGS_KEY_EMAIL_SEND_THREADS, Integer.toString(workers))
+                    .build();
+            Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE)
+                    .add(new M(workers)).build();
+            try {
+                EmailServerService service = deps.getInstance(EmailServerService.class);
+                int total = RECIPIENTS * PER_RECIPIENT;
+                Listener listener = new Listener(total);
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < PER_RECIPIENT; i++) {
+                    for (int r = 0; r < RECIPIENTS; r++) {
+                        Email email = new SimpleEmail();
+                        email.setFrom("sender@example.com");
+                        email.addTo("recipient" + r + "@example.com");
+                        email.setSubject(Integer.toString(i));
+                        email.setMsg("Message " + i + " to recipient " + r);
+                        service.send(email, listener);
+                    }
+                }
+                assertTrue("Timed out", listener.done.await(60, TimeUnit.SECONDS));
+                long elapsed = System.currentTimeMillis() - start;
+                assertEquals(0, listener.failures.get());
+
+                Map<String, List<String>> subjectsByRecipient = new HashMap<>();
+                for (TestSmtpServer.Received msg : server.received()) {
+                    List<String> subjects = subjectsByRecipient.get(msg.recipients.get(0));
+                    if (subjects == null) {
+                        subjects = new ArrayList<>();
+                        subjectsByRecipient.put(msg.recipients.get(0), subjects);
+                    }
+                    subjects.add(msg.header("Subject"));
+                }
+                assertEquals(RECIPIENTS, subjectsByRecipient.size());
+                for (Map.Entry<String, List<String>> e : subjectsByRecipient.entrySet()) {
+                    List<String> expected = new ArrayList<>();
+                    for (int i = 0; i < PER_RECIPIENT; i++) {
+                        expected.add(Integer.toString(i));
+                    }
+                    assertEquals("Out of order for " + e.getKey(), expected, e.getValue());
+                }
+                return elapsed;
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    static final class Listener implements PublishListener<Email> {
+
+        final CountDownLatch done;
+        final AtomicInteger failures = new AtomicInteger();
+
+        Listener(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void progress(int i, int steps, String string, Email email) {
+        }
+
+        @Override
+        public void onSuccess(Email email) {
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable failure, Email message) {
+            failure.printStackTrace();
+            failures.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    static final class M extends AbstractModule {
+
+        private final int workers;
+
+        M(int workers) {
+            this.workers = workers;
+        }
+
+        @Override
+        protected void configure() {
+            ExecutorService threads = Executors.newFixedThreadPool(workers);
+            bind(ExecutorService.class).annotatedWith(Names.named("mailqueue")).toInstance(threads);
+            bind(EmailServerService.class).to(RealMailServer.class);
+            bind(EmailServiceModule.ShutdownMailqueue.class).asEagerSingleton();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.mastfrog.email.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that urgent mail overtakes bulk mail without starving it, and that
+ * each priority has its own capacity.
+ *
+ * @author Tim Boudreau
+ */
+public class PriorityTest {
+
+    @Test
+    public void testTransactionalMailOvertakesBulk() throws Exception {
+        List<String> delivered = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(105);
+        MailQueue<String> queue = queue(delivered, done, 1000);
+        for (int i = 0; i < 100; i++) {
+            queue.add(MailPriority.BULK, "subscriber" + i + "@domain" + (i % 10) + ".com", "bulk-" + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            queue.add(MailPriority.TRANSACTIONAL, "user" + i + "@example.com", "reset-" + i);
+        }
+        assertEquals(100, queue.size(MailPriority.BULK));
+        assertEquals(5, queue.size(MailPriority.TRANSACTIONAL));
+        start(queue);
+        assertTrue("Timed out", done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            int ix = delivered.indexOf("reset-" + i);
+            assertTrue("reset-" + i + " delivered " + ix + "th in " + delivered, ix >= 0 && ix < 6);
+        }
+        shutdown(queue);
+        assertEquals(0, queue.size(MailPriority.BULK));
+    }
+
+    @Test
+    public void testBulkMailIsNotStarved() throws Exception {
+        List<String> delivered = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(200);
+        MailQueue<String> queue = queue(delivered, done, 1000);
+        for (int i = 0; i < 100; i++) {
+            queue.add(MailPriority.TRANSACTIONAL, "user" + i + "@example.com", "reset-" + i);
+            queue.add(MailPriority.BULK, "subscriber" + i + "@example.com", "bulk-" + i);
+        }
+        start(queue);
+        assertTrue("Timed out", done.await(10, TimeUnit.SECONDS));
+        int bulk = 0;
+        for (String s : delivered.subList(0, 85)) {
+            if (s.startsWith("bulk-")) {
+                bulk++;
+            }
+        }
+        // Weights are 16:1
+        assertEquals(delivered.toString(), 5, bulk);
+        shutdown(queue);
+    }
+
+    @Test
+    public void testEachPriorityHasItsOwnCapacity() throws Exception {
+        MailQueue<String> queue = queue(new ArrayList<>(), new CountDownLatch(0), 2);
+        queue.add(MailPriority.BULK, "a@example.com", "bulk-1");
+        queue.add(MailPriority.BULK, "a@example.com", "bulk-2");
+        try {
+            queue.add(MailPriority.BULK, "a@example.com", "bulk-3");
+            fail("Bulk queue should be full");
+        } catch (QueueFullException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("bulk"));
+        }
+        queue.add(MailPriority.TRANSACTIONAL, "a@example.com", "reset-1");
+        assertEquals(3, queue.size());
+        start(queue);
+        shutdown(queue);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testTemplatePriority() {
+        assertEquals(MailPriority.TRANSACTIONAL, MailPriority.of(Templates.PASSWORD_RESET));
+        assertEquals(MailPriority.BULK, MailPriority.of(Templates.NEWSLETTER));
+        assertEquals(MailPriority.NORMAL, MailPriority.of(TimeUnit.SECONDS));
+        assertEquals(MailPriority.NORMAL, MailPriority.of(null));
+    }
+
+    private static MailQueue<String> queue(List<String> delivered, CountDownLatch done, int capacity) {
+        return new MailQueue<>(item -> {
+            synchronized (delivered) {
+                delivered.add(item);
+            }
+            done.countDown();
+        }, priority -> capacity, MailPriority::defaultWeight, StubMailServer::domainOf, domain -> null);
+    }
+
+    private static void start(MailQueue<String> queue) {
+        // One worker, started once everything is queued, so the order is
+        // decided by the queue alone
+        new Thread(queue.workers(1)[0], "worker").start();
+    }
+
+    private static void shutdown(MailQueue<String> queue) throws InterruptedException {
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    enum Templates implements PrioritizedTemplate {
+        PASSWORD_RESET,
+        NEWSLETTER;
+
+        @Override
+        public MailPriority priority() {
+            return this == PASSWORD_RESET ? MailPriority.TRANSACTIONAL : MailPriority.BULK;
+        }
+    }
+}
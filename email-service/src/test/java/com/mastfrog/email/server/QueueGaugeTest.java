@@ -0,0 +1,73 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_QUEUE_DEPTH;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_RETRY_PENDING;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_THROTTLED_DOMAINS;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.statistics.MetricCounter;
+import com.mastfrog.statistics.MetricGauge;
+import com.mastfrog.statistics.MetricHistogram;
+import com.mastfrog.statistics.MetricRegistry;
+import com.mastfrog.statistics.MetricVisitor;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that the queue gauges a mail server registers in the default
+ * registry go away when it is shut down, rather than keeping it reachable.
+ *
+ * @author Tim Boudreau
+ */
+public class QueueGaugeTest {
+
+    @Test
+    public void testGaugesAreRemovedOnShutdown() throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE).add(new MailMergeTest.M()).build();
+        try {
+            deps.getInstance(EmailServerService.class);
+            Set<String> gauges = gauges();
+            assertTrue(gauges.toString(), gauges.contains(METRIC_EMAIL_QUEUE_DEPTH));
+            assertTrue(gauges.toString(), gauges.contains(METRIC_EMAIL_QUEUE_DEPTH + '.' + MailPriority.BULK));
+            assertTrue(gauges.toString(), gauges.contains(METRIC_EMAIL_RETRY_PENDING));
+            assertTrue(gauges.toString(), gauges.contains(METRIC_EMAIL_THROTTLED_DOMAINS));
+        } finally {
+            deps.shutdown();
+        }
+        Set<String> gauges = gauges();
+        for (String name : gauges) {
+            assertFalse(gauges.toString(), name.startsWith(METRIC_EMAIL_QUEUE_DEPTH));
+        }
+        assertFalse(gauges.toString(), gauges.contains(METRIC_EMAIL_RETRY_PENDING));
+        assertFalse(gauges.toString(), gauges.contains(METRIC_EMAIL_THROTTLED_DOMAINS));
+    }
+
+    private static Set<String> gauges() {
+        Set<String> result = new HashSet<>();
+        MetricRegistry.getDefault().visit(new MetricVisitor() {
+            @Override
+            public void counter(MetricCounter counter) {
+            }
+
+            @Override
+            public void gauge(MetricGauge gauge) {
+                result.add(gauge.name());
+            }
+
+            @Override
+            public void histogram(MetricHistogram histogram) {
+            }
+        });
+        return result;
+    }
+}
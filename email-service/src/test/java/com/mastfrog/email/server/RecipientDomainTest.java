@@ -0,0 +1,163 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_SEND_THREADS;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_HOST_SETTINGS_KEY;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_PORT_SETTINGS_KEY;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.mail.SendFailedException;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.SimpleEmail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that mail to several domains is sent one transaction per domain,
+ * that one domain's failures do not fail the others, and that listeners
+ * hear what happened to each recipient.
+ *
+ * @author Tim Boudreau
+ */
+public class RecipientDomainTest {
+
+    @Test
+    public void testOneTransactionPerDomain() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer()) {
+            Dependencies deps = deps(server);
+            try {
+                Email email = email("a@one.com", "b@two.com");
+                email.addCc("c@one.com");
+                email.addBcc("d@two.com");
+                Listener listener = new Listener();
+                deps.getInstance(EmailServerService.class).send(email, listener);
+                assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+                assertNull(listener.failure);
+                assertEquals(2, server.received().size());
+                assertEquals(Arrays.asList("a@one.com", "c@one.com"), server.received().get(0).recipients);
+                assertEquals(Arrays.asList("b@two.com", "d@two.com"), server.received().get(1).recipients);
+                assertEquals(4, listener.results.size());
+                for (Throwable t : listener.results.values()) {
+                    assertNull(t);
+                }
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testRefusedDomainDoesNotFailOthers() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer().refuseRecipients("two.com", 1, "550 5.1.1 No such user")) {
+            Dependencies deps = deps(server);
+            try {
+                Listener listener = new Listener();
+                deps.getInstance(EmailServerService.class).send(email("a@one.com", "b@two.com"), listener);
+                assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+                assertEquals(1, server.received().size());
+                assertEquals(Arrays.asList("a@one.com"), server.received().get(0).recipients);
+
+                assertTrue(String.valueOf(listener.failure), listener.failure instanceof SendFailedException);
+                SendFailedException failure = (SendFailedException) listener.failure;
+                assertEquals(1, failure.getValidSentAddresses().length);
+                assertEquals(1, failure.getInvalidAddresses().length);
+                assertNull(listener.results.get("a@one.com"));
+                assertEquals(550, SmtpFailures.replyCode(listener.results.get("b@two.com")));
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyUnsentRecipientsAreRetried() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer().refuseRecipients("two.com", 1, "451 4.3.0 Try again later")) {
+            Dependencies deps = deps(server);
+            try {
+                Listener listener = new Listener();
+                deps.getInstance(EmailServerService.class).send(email("a@one.com", "b@two.com", "c@two.com"), listener);
+                assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+                assertNull(listener.failure);
+                List<TestSmtpServer.Received> received = server.received();
+                assertEquals(received.toString(), 2, received.size());
+                assertEquals(Arrays.asList("a@one.com"), received.get(0).recipients);
+                // c was accepted, but not sent to because b was not
+                assertEquals(Arrays.asList("b@two.com", "c@two.com"), received.get(1).recipients);
+                // The same message, not one composed again
+                assertNotNull(received.get(0).header("Message-ID"));
+                assertEquals(received.get(0).header("Message-ID"), received.get(1).header("Message-ID"));
+                assertEquals(3, listener.results.size());
+                for (Throwable t : listener.results.values()) {
+                    assertNull(t);
+                }
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    private static Email email(String... to) throws Exception {
+        Email email = new SimpleEmail();
+        for (String t : to) {
+            email.addTo(t);
+        }
+        email.setSubject("Hello");
+        email.setMsg("Hello everyone");
+        return email;
+    }
+
+    private static Dependencies deps(TestSmtpServer server) throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(SMTP_HOST_SETTINGS_KEY, server.host())
+                .add(SMTP_PORT_SETTINGS_KEY, Integer.toString(server.port()))
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .add(SETTINGS_KEY_EMAIL_SEND_THREADS, "1")
+                .add(SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS, "3")
+                .add(SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY, "20")
+                .build();
+        return new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE)
+                .add(new ParallelDeliveryTest.M(1)).build();
+    }
+
+    static final class Listener implements PublishListener<Email> {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        // Only touched by the listener thread until done
+        final Map<String, Throwable> results = new LinkedHashMap<>();
+        Throwable failure;
+
+        @Override
+        public void progress(int i, int steps, String string, Email email) {
+        }
+
+        @Override
+        public void onRecipientResult(Email email, String recipient, Throwable failure) {
+            results.put(recipient, failure);
+        }
+
+        @Override
+        public void onSuccess(Email email) {
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable failure, Email message) {
+            this.failure = failure;
+            done.countDown();
+        }
+    }
+}
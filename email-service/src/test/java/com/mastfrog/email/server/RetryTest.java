@@ -0,0 +1,153 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_RETRIES;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_SEND_THREADS;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_HOST_SETTINGS_KEY;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_PORT_SETTINGS_KEY;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.statistics.MetricRegistry;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.net.ConnectException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SimpleEmail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that transient SMTP failures are retried and permanent ones are not.
+ *
+ * @author Tim Boudreau
+ */
+public class RetryTest {
+
+    @Test
+    public void testTransientFailuresAreRetried() throws Exception {
+        long retriesBefore = MetricRegistry.getDefault().counter(METRIC_EMAIL_RETRIES).get();
+        try (TestSmtpServer server = new TestSmtpServer().failNext(2, "451 4.3.0 Try again later")) {
+            Dependencies deps = deps(server, 5, 50);
+            try {
+                Email email = email("someone@example.com");
+                deps.getInstance(EmailServerService.class).sendAsync(email)
+                        .toCompletableFuture().get(10, TimeUnit.SECONDS);
+                assertEquals(1, server.received().size());
+                assertEquals(retriesBefore + 2, MetricRegistry.getDefault().counter(METRIC_EMAIL_RETRIES).get());
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testPermanentFailuresAreNot() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer().failNext(1, "550 5.1.1 No such user")) {
+            Dependencies deps = deps(server, 5, 50);
+            try {
+                CompletableFuture<Email> f = deps.getInstance(EmailServerService.class)
+                        .sendAsync(email("nobody@example.com")).toCompletableFuture();
+                try {
+                    f.get(10, TimeUnit.SECONDS);
+                    fail("Should have failed");
+                } catch (ExecutionException ex) {
+                    assertEquals(550, SmtpFailures.replyCode(ex.getCause()));
+                }
+                assertTrue(server.received().isEmpty());
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        long retriesBefore = MetricRegistry.getDefault().counter(METRIC_EMAIL_RETRIES).get();
+        try (TestSmtpServer server = new TestSmtpServer().failNext(100, "421 4.7.0 Too busy")) {
+            Dependencies deps = deps(server, 2, 10);
+            try {
+                CompletableFuture<Email> f = deps.getInstance(EmailServerService.class)
+                        .sendAsync(email("someone@example.com")).toCompletableFuture();
+                try {
+                    f.get(10, TimeUnit.SECONDS);
+                    fail("Should have failed");
+                } catch (ExecutionException ex) {
+                    assertEquals(421, SmtpFailures.replyCode(ex.getCause()));
+                }
+                // The first attempt and two retries
+                assertEquals(retriesBefore + 2, MetricRegistry.getDefault().counter(METRIC_EMAIL_RETRIES).get());
+                assertTrue(server.received().isEmpty());
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testWaitingRetriesDoNotHoldUpWorkers() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer().failNext(1, "451 4.3.0 Try again later")) {
+            // One worker, and a retry delay far longer than a send takes
+            Dependencies deps = deps(server, 1, 1000);
+            try {
+                EmailServerService service = deps.getInstance(EmailServerService.class);
+                CompletableFuture<Email> retried = service.sendAsync(email("first@example.com")).toCompletableFuture();
+                long start = System.nanoTime();
+                service.sendAsync(email("second@example.com")).toCompletableFuture().get(10, TimeUnit.SECONDS);
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+                assertFalse(retried.isDone());
+                retried.get(10, TimeUnit.SECONDS);
+                assertEquals(2, server.received().size());
+                assertEquals("second@example.com", server.received().get(0).recipients.get(0));
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testClassification() {
+        assertTrue(SmtpFailures.isTransient(new EmailException(
+                new SMTPSendFailedException("DATA", 452, "452 Mailbox full", null, null, null, null))));
+        assertFalse(SmtpFailures.isTransient(new EmailException(
+                new SMTPSendFailedException("RCPT", 550, "550 No such user", null, null, null, null))));
+        assertTrue(SmtpFailures.isTransient(new EmailException(
+                new MessagingException("Could not connect", new ConnectException("refused")))));
+        assertFalse(SmtpFailures.isTransient(new EmailException(
+                new AuthenticationFailedException("535 Bad credentials"))));
+        assertFalse(SmtpFailures.isTransient(new EmailException("From address required")));
+    }
+
+    private static Email email(String to) throws Exception {
+        Email email = new SimpleEmail();
+        email.addTo(to);
+        email.setSubject("Hello");
+        email.setMsg("Hello " + to);
+        return email;
+    }
+
+    private static Dependencies deps(TestSmtpServer server, int maxAttempts, long initialDelay) throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(SMTP_HOST_SETTINGS_KEY, server.host())
+                .add(SMTP_PORT_SETTINGS_KEY, Integer.toString(server.port()))
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .add(SETTINGS_KEY_EMAIL_SEND_THREADS, "1")
+                .add(SETTINGS_KEY_EMAIL_RETRY_MAX_ATTEMPTS, Integer.toString(maxAttempts))
+                .add(SETTINGS_KEY_EMAIL_RETRY_INITIAL_DELAY, Long.toString(initialDelay))
+                .build();
+        return new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE)
+                .add(new ParallelDeliveryTest.M(1)).build();
+    }
+}
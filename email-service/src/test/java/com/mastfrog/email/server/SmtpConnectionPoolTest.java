@@ -0,0 +1,105 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_SEND_THREADS;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_HOST_SETTINGS_KEY;
+import static com.mastfrog.email.server.SmtpConfig.SMTP_PORT_SETTINGS_KEY;
+import static com.mastfrog.email.server.SmtpConnectionPool.SETTINGS_KEY_SMTP_CONNECTION_MAX_MESSAGES;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.SimpleEmail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that RealMailServer sends many messages per SMTP connection.
+ *
+ * @author Tim Boudreau
+ */
+public class SmtpConnectionPoolTest {
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer()) {
+            Dependencies deps = deps(server, 2, 100);
+            try {
+                send(deps, 40, 0);
+                SmtpConnectionPool pool = deps.getInstance(SmtpConnectionPool.class);
+                assertTrue("Expected at most one connection per worker, got " + server.connections(),
+                        server.connections() <= 2);
+                assertEquals(server.connections(), pool.connectionsOpened());
+                assertEquals(40, pool.messagesSent());
+                assertEquals(40 - server.connections(), pool.messagesSentOnReusedConnections());
+                assertEquals(0, pool.failures());
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testConnectionsAreReplacedAfterMaxMessages() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer()) {
+            Dependencies deps = deps(server, 1, 5);
+            try {
+                send(deps, 20, 0);
+                assertEquals(4, server.connections());
+                assertEquals(3, deps.getInstance(SmtpConnectionPool.class).connectionsClosed());
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testDroppedConnectionIsReopened() throws Exception {
+        try (TestSmtpServer server = new TestSmtpServer()) {
+            Dependencies deps = deps(server, 1, 100);
+            try {
+                send(deps, 3, 0);
+                server.dropConnections();
+                send(deps, 3, 3);
+                SmtpConnectionPool pool = deps.getInstance(SmtpConnectionPool.class);
+                assertEquals(2, server.connections());
+                assertEquals(1, pool.resends());
+                assertEquals(6, pool.messagesSent());
+                assertEquals(0, pool.failures());
+                assertEquals(6, server.received().size());
+            } finally {
+                deps.shutdown();
+            }
+        }
+    }
+
+    private static void send(Dependencies deps, int count, int offset) throws Exception {
+        EmailServerService service = deps.getInstance(EmailServerService.class);
+        ParallelDeliveryTest.Listener listener = new ParallelDeliveryTest.Listener(count);
+        for (int i = offset; i < offset + count; i++) {
+            Email email = new SimpleEmail();
+            email.addTo("recipient" + (i % 4) + "@example.com");
+            email.setSubject(Integer.toString(i));
+            email.setMsg("Message " + i);
+            service.send(email, listener);
+        }
+        assertTrue("Timed out", listener.done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, listener.failures.get());
+    }
+
+    private static Dependencies deps(TestSmtpServer server, int workers, int maxMessages) throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(SMTP_HOST_SETTINGS_KEY, server.host())
+                .add(SMTP_PORT_SETTINGS_KEY, Integer.toString(server.port()))
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .add(SETTINGS_KEY_EMAIL_SEND_THREADS, Integer.toString(workers))
+                .add(SETTINGS_KEY_SMTP_CONNECTION_MAX_MESSAGES, Integer.toString(maxMessages))
+                .build();
+        return new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE)
+                .add(new ParallelDeliveryTest.M(workers)).build();
+    }
+}
@@ -0,0 +1,201 @@
+package com.mastfrog.email.server;
+
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.METRIC_EMAIL_STAGE_TIME;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_STAGE_CAPACITY;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_STAGE_THREADS;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.statistics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.mail.Email;
+import org.netbeans.validation.api.InvalidInputException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that send() leaves validation and rendering to the pipeline's
+ * threads, reports problems to the listener, and keeps mail to each
+ * recipient in order.
+ *
+ * @author Tim Boudreau
+ */
+public class StagedSendTest {
+
+    private static final EmailAddress FROM = new EmailAddress("sender@example.com");
+
+    @Test
+    public void testSendDoesNotWaitForRendering() throws Exception {
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch mayFinish = new CountDownLatch(1);
+        Setup setup = new Setup(new SettingsBuilder(), new SlowFormatter() {
+            @Override
+            void render(String subject) throws InterruptedException {
+                rendering.countDown();
+                mayFinish.await();
+            }
+        });
+        try {
+            Listener listener = new Listener(1);
+            setup.service.send(listener, "Subject", "Body", null, FROM, "joe@example.com");
+            assertTrue("Rendering never started", rendering.await(10, TimeUnit.SECONDS));
+            assertEquals(1, listener.remaining.getCount());
+            mayFinish.countDown();
+            assertTrue("Not sent", listener.remaining.await(10, TimeUnit.SECONDS));
+            assertTrue(listener.failures.isEmpty());
+            assertTrue(MetricRegistry.getDefault().histogram(METRIC_EMAIL_STAGE_TIME + ".render").count() > 0);
+        } finally {
+            setup.deps.shutdown();
+        }
+    }
+
+    @Test
+    public void testProblemsGoToTheListener() throws Exception {
+        Setup setup = new Setup(new SettingsBuilder(), new SlowFormatter());
+        try {
+            Listener listener = new Listener(1);
+            // Not thrown here
+            setup.service.send(listener, "Subject", "Body", null, FROM, "not an address");
+            assertTrue(listener.remaining.await(10, TimeUnit.SECONDS));
+            assertEquals(1, listener.failures.size());
+            assertTrue(listener.failures.get(0).toString(), listener.failures.get(0) instanceof InvalidInputException);
+        } finally {
+            setup.deps.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullPipelineRejectsSends() throws Exception {
+        CountDownLatch mayFinish = new CountDownLatch(1);
+        Setup setup = new Setup(new SettingsBuilder()
+                .add(SETTINGS_KEY_EMAIL_STAGE_CAPACITY + ".validate", "1")
+                .add(SETTINGS_KEY_EMAIL_STAGE_CAPACITY + ".render", "1")
+                .add(SETTINGS_KEY_EMAIL_STAGE_THREADS + ".render", "1"), new SlowFormatter() {
+            @Override
+            void render(String subject) throws InterruptedException {
+                mayFinish.await();
+            }
+        });
+        try {
+            Listener listener = new Listener(Integer.MAX_VALUE);
+            try {
+                // One rendering, one waiting to be rendered, one waiting in
+                // the validate stage for room, one waiting to be validated
+                for (int i = 0; i < 10; i++) {
+                    setup.service.send(listener, "Subject", "Body", null, FROM, "joe@example.com");
+                    Thread.sleep(20);
+                }
+                fail("Pipeline should be full");
+            } catch (QueueFullException ex) {
+                // ok
+            } finally {
+                mayFinish.countDown();
+            }
+        } finally {
+            setup.deps.shutdown();
+        }
+    }
+
+    @Test
+    public void testMailToOneRecipientStaysInOrder() throws Exception {
+        int count = 200;
+        Setup setup = new Setup(new SettingsBuilder()
+                .add(SETTINGS_KEY_EMAIL_STAGE_THREADS + ".render", "4"), new SlowFormatter() {
+            @Override
+            void render(String subject) throws InterruptedException {
+                if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                    Thread.sleep(1);
+                }
+            }
+        });
+        try {
+            Listener listener = new Listener(count);
+            for (int i = 0; i < count; i++) {
+                setup.service.send(listener, Integer.toString(i), "Body", null, FROM, "user" + (i % 3) + "@example.com");
+            }
+            assertTrue("Not all sent", listener.remaining.await(10, TimeUnit.SECONDS));
+            assertTrue(listener.failures.toString(), listener.failures.isEmpty());
+            int[] next = new int[3];
+            for (String subject : listener.sent) {
+                int ix = Integer.parseInt(subject);
+                assertTrue(subject + " out of order in " + listener.sent, ix >= next[ix % 3]);
+                next[ix % 3] = ix + 1;
+            }
+        } finally {
+            setup.deps.shutdown();
+        }
+    }
+
+    private static final class Setup {
+
+        final Dependencies deps;
+        final EmailSendServiceImpl service;
+
+        Setup(SettingsBuilder sb, HtmlMessageFormatter formatter) throws Exception {
+            Settings settings = sb.add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com").build();
+            deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE).add(new MailMergeTest.M()).build();
+            service = new EmailSendServiceImpl(deps.getInstance(EmailServerService.class), formatter,
+                    deps.getInstance(SendPipeline.class), settings);
+        }
+    }
+
+    static class SlowFormatter implements HtmlMessageFormatter {
+
+        void render(String subject) throws InterruptedException {
+        }
+
+        @Override
+        public String format(EmailAddress sender, String subject, String body, Map<String, Object> injected) {
+            return format(null, sender, subject, body, injected);
+        }
+
+        @Override
+        public <T extends Enum<T>> String format(T template, EmailAddress sender, String subject, String body, Map<String, Object> injected) {
+            try {
+                render(subject);
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return "<p>" + body + "</p>";
+        }
+    }
+
+    static final class Listener implements PublishListener<Email> {
+
+        final CountDownLatch remaining;
+        final List<String> sent = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+
+        Listener(int count) {
+            remaining = new CountDownLatch(count);
+        }
+
+        @Override
+        public void progress(int i, int steps, String string, Email email) {
+        }
+
+        @Override
+        public synchronized void onSuccess(Email email) {
+            sent.add(email.getSubject());
+            remaining.countDown();
+        }
+
+        @Override
+        public synchronized void onFailure(Throwable failure, Email message) {
+            assertNull(message);
+            failures.add(failure);
+            remaining.countDown();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.mastfrog.email.server;
+
+import freemarker.template.Template;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that templates are compiled once and recompiled only when their own
+ * files change.
+ *
+ * @author Tim Boudreau
+ */
+public class TemplateCacheTest {
+
+    @Test
+    public void testOnlyChangedTemplatesAreReloaded() throws Exception {
+        Path dir = Files.createTempDirectory("templates");
+        write(dir.resolve("a.html"), "Hello ${name}");
+        write(dir.resolve("b.html"), "Goodbye ${name}");
+        try (TemplateCache cache = TemplateCache.forDirectory(dir.toFile())) {
+            Template a = cache.get("a.html");
+            Template b = cache.get("b.html");
+            assertSame(a, cache.get("a.html"));
+            assertEquals("Hello Joe", render(a));
+
+            write(dir.resolve("a.html"), "Hi ${name}");
+            Template a2 = awaitChange(cache, "a.html", a);
+            assertEquals("Hi Joe", render(a2));
+            assertSame(a2, cache.get("a.html"));
+            assertSame(b, cache.get("b.html"));
+
+            try {
+                cache.get("c.html");
+                fail("c.html does not exist yet");
+            } catch (IOException ex) {
+                // ok
+            }
+            write(dir.resolve("c.html"), "Welcome ${name}");
+            long until = System.currentTimeMillis() + 10000;
+            for (;;) {
+                try {
+                    assertEquals("Welcome Joe", render(cache.get("c.html")));
+                    break;
+                } catch (IOException ex) {
+                    assertTrue("New template never found", System.currentTimeMillis() < until);
+                    Thread.sleep(20);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTemplatesInSubdirectories() throws Exception {
+        Path dir = Files.createTempDirectory("templates");
+        Files.createDirectories(dir.resolve("welcome"));
+        write(dir.resolve("welcome/en.html"), "Hello ${name}");
+        try (TemplateCache cache = TemplateCache.forDirectory(dir.toFile())) {
+            Template t = cache.get("welcome/en.html");
+            write(dir.resolve("welcome/en.html"), "Howdy ${name}");
+            assertEquals("Howdy Joe", render(awaitChange(cache, "welcome/en.html", t)));
+        }
+    }
+
+    @Test
+    public void testClasspathTemplates() throws Exception {
+        TemplateCache cache = TemplateCache.forClasspath(DefaultHtmlTemplateProvider.class);
+        Template t = cache.get("message-template.html");
+        assertSame(t, cache.get("message-template.html"));
+    }
+
+    private static Template awaitChange(TemplateCache cache, String name, Template old) throws Exception {
+        long until = System.currentTimeMillis() + 10000;
+        Template result;
+        while ((result = cache.get(name)) == old) {
+            assertTrue("Change to " + name + " never noticed", System.currentTimeMillis() < until);
+            Thread.sleep(20);
+        }
+        assertNotSame(old, result);
+        return result;
+    }
+
+    private static void write(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String render(Template template) throws Exception {
+        StringWriter out = new StringWriter();
+        template.process(Collections.singletonMap("name", "Joe"), out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package com.mastfrog.email.server;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.multibindings.Multibinder;
+import static com.mastfrog.email.server.EmailServiceModule.ENUM_EMAIL_TEMPLATE_PROVIDER_LITERAL;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_TEMPLATE_WARMUP;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that every bound template, and the default one, is compiled and
+ * rendered with its sample model at startup.
+ *
+ * @author Tim Boudreau
+ */
+public class TemplateWarmupTest {
+
+    @Test
+    public void testEveryTemplateIsWarmedUp() throws Exception {
+        Path dir = Files.createTempDirectory("templates");
+        write(dir.resolve("hello.html"), "Hello ${name}");
+        write(dir.resolve("goodbye.html"), "Goodbye ${missing}");
+        Settings settings = new SettingsBuilder().add(SETTINGS_KEY_EMAIL_TEMPLATE_WARMUP, "true").build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE)
+                .add(new EmailServiceModule(settings), new AbstractModule() {
+                    @Override
+                    protected void configure() {
+                        try {
+                            Multibinder.newSetBinder(binder(), ENUM_EMAIL_TEMPLATE_PROVIDER_LITERAL)
+                                    .addBinding().toInstance(new Provider(dir.toFile()));
+                        } catch (IOException ex) {
+                            throw new AssertionError(ex);
+                        }
+                    }
+                }).build();
+        try {
+            List<TemplateWarmup.Result> results = deps.getInstance(TemplateWarmup.class).await(10, TimeUnit.SECONDS);
+            assertNotNull("Warmup did not finish", results);
+            assertEquals(results.toString(), 3, results.size());
+            Map<String, TemplateWarmup.Result> byName = new HashMap<>();
+            for (TemplateWarmup.Result r : results) {
+                byName.put(r.name, r);
+            }
+            TemplateWarmup.Result hello = byName.get("Kind.hello");
+            assertNull(String.valueOf(hello.failure), hello.failure);
+            assertTrue(hello.renderNanos >= 0);
+            // Compiled, but its sample model is not enough to render it
+            TemplateWarmup.Result goodbye = byName.get("Kind.goodbye");
+            assertNotNull(goodbye.failure);
+            assertTrue(goodbye.compileNanos > 0);
+            TemplateWarmup.Result dflt = byName.get("message-template.html");
+            assertNull(String.valueOf(dflt.failure), dflt.failure);
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    enum Kind {
+        hello,
+        goodbye;
+
+        @Override
+        public String toString() {
+            return name() + ".html";
+        }
+    }
+
+    static final class Provider extends EnumHtmlTemplateProviderOverFiles<Kind> {
+
+        Provider(File dir) throws IOException {
+            super(Kind.class, dir);
+        }
+
+        @Override
+        protected Map<String, Object> sampleModel(Kind template) {
+            return Collections.<String, Object>singletonMap("name", "Joe");
+        }
+    }
+
+    private static void write(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+}
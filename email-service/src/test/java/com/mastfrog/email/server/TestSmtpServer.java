@@ -0,0 +1,347 @@
+package com.mastfrog.email.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal in-process SMTP server which accepts everything, for tests and
+ * benchmarks. Records each message it receives, counts connections, and can
+ * be made to take a while to accept each message, to limit how many
+ * connections or messages per second it takes, to refuse messages or
+ * recipients, or to drop its connections, like a real server does.
+ * <p>
+ * Published in email-server's test jar, so the benchmarks can deliver mail
+ * to it.
+ *
+ * @author Tim Boudreau
+ */
+public final class TestSmtpServer implements AutoCloseable {
+
+    private final ServerSocket socket;
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+    private final List<Received> received = Collections.synchronizedList(new ArrayList<Received>());
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private volatile long dataDelayMillis;
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private volatile String failureReply;
+    private final Map<String, Refusal> refusals = new ConcurrentHashMap<>();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private volatile int maxConnections = Integer.MAX_VALUE;
+    private volatile double failureRate;
+    private volatile String randomFailureReply;
+    private volatile int perSecond = Integer.MAX_VALUE;
+    private volatile boolean keep = true;
+    // Guarded by this
+    private long windowStart;
+    private int inWindow;
+
+    public TestSmtpServer() throws IOException {
+        socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    public String host() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Delay each reply to the end of DATA, to simulate a server which takes
+     * a while to accept a message.
+     */
+    public TestSmtpServer dataDelay(long millis) {
+        dataDelayMillis = millis;
+        return this;
+    }
+
+    /**
+     * Refuse the next few messages, replying to the end of DATA with the
+     * passed reply, e.g. "451 4.3.0 Try again later".
+     */
+    public TestSmtpServer failNext(int count, String reply) {
+        failureReply = reply;
+        failuresLeft.set(count);
+        return this;
+    }
+
+    /**
+     * Refuse the next few RCPT TO commands for addresses in a domain with
+     * the passed reply, e.g. "550 5.1.1 No such user".
+     */
+    public TestSmtpServer refuseRecipients(String domain, int count, String reply) {
+        refusals.put(domain, new Refusal(count, reply));
+        return this;
+    }
+
+    /**
+     * Refuse a fraction of messages at random, replying to the end of DATA
+     * with the passed reply.
+     */
+    public TestSmtpServer failRandomly(double fraction, String reply) {
+        randomFailureReply = reply;
+        failureRate = fraction;
+        return this;
+    }
+
+    /**
+     * Take mail over at most this many connections at a time; MAIL FROM on
+     * any more gets "421 4.7.0 Too many connections" and the connection is
+     * closed.
+     */
+    public TestSmtpServer maxConnections(int max) {
+        maxConnections = max;
+        return this;
+    }
+
+    /**
+     * Accept at most this many messages per second, replying to the end of
+     * DATA for any more with "451 4.7.1 Rate limited".
+     */
+    public TestSmtpServer rateLimit(int messagesPerSecond) {
+        perSecond = messagesPerSecond;
+        return this;
+    }
+
+    /**
+     * Whether to keep each message for received(); a benchmark sending
+     * millions of messages should only count them.
+     */
+    public TestSmtpServer keepMessages(boolean keep) {
+        this.keep = keep;
+        return this;
+    }
+
+    /**
+     * The number of connections made.
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * The number of messages accepted.
+     */
+    public long messages() {
+        return accepted.get();
+    }
+
+    /**
+     * Close every open client connection, as a server timing out idle
+     * connections would.
+     */
+    void dropConnections() throws IOException {
+        for (Socket s : clients) {
+            s.close();
+        }
+    }
+
+    List<Received> received() {
+        synchronized (received) {
+            return new ArrayList<>(received);
+        }
+    }
+
+    private synchronized boolean overRate() {
+        long now = System.nanoTime();
+        if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            windowStart = now;
+            inWindow = 0;
+        }
+        return ++inWindow > perSecond;
+    }
+
+    /**
+     * Stop listening and close every connection.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        dropConnections();
+        threads.shutdownNow();
+    }
+
+    static final class Received {
+
+        final String from;
+        final List<String> recipients;
+        final String data;
+
+        Received(String from, List<String> recipients, String data) {
+            this.from = from;
+            this.recipients = recipients;
+            this.data = data;
+        }
+
+        String header(String name) {
+            for (String line : data.split("\r\n")) {
+                if (line.isEmpty()) {
+                    break;
+                }
+                if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+                    return line.substring(name.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return from + " -> " + recipients + ": " + header("Subject");
+        }
+    }
+
+    private static final class Refusal {
+
+        final AtomicInteger left;
+        final String reply;
+
+        Refusal(int count, String reply) {
+            this.left = new AtomicInteger(count);
+            this.reply = reply;
+        }
+    }
+
+    private void accept() {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                connections.incrementAndGet();
+                clients.add(client);
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        open.incrementAndGet();
+                        try (Socket s = client) {
+                            converse(s);
+                        } catch (IOException ex) {
+                            // client went away
+                        } finally {
+                            open.decrementAndGet();
+                            clients.remove(client);
+                        }
+                    }
+                });
+            } catch (SocketException ex) {
+                return;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void converse(Socket client) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        OutputStream out = client.getOutputStream();
+        reply(out, "220 localhost test SMTP");
+        String from = null;
+        List<String> recipients = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            String upper = line.toUpperCase();
+            if (upper.startsWith("EHLO") || upper.startsWith("HELO")) {
+                reply(out, "250-localhost\r\n250-AUTH PLAIN LOGIN\r\n250 8BITMIME");
+            } else if (upper.startsWith("AUTH")) {
+                reply(out, "235 2.7.0 Authentication successful");
+            } else if (upper.startsWith("MAIL FROM:")) {
+                if (open.get() > maxConnections) {
+                    reply(out, "421 4.7.0 Too many connections");
+                    return;
+                }
+                from = address(line);
+                recipients = new ArrayList<>();
+                reply(out, "250 2.1.0 Ok");
+            } else if (upper.startsWith("RCPT TO:")) {
+                String address = address(line);
+                Refusal refusal = refusals.get(address.substring(address.lastIndexOf('@') + 1));
+                if (refusal != null && refusal.left.getAndDecrement() > 0) {
+                    reply(out, refusal.reply);
+                    continue;
+                }
+                recipients.add(address);
+                reply(out, "250 2.1.5 Ok");
+            } else if (upper.equals("DATA")) {
+                reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                StringBuilder data = new StringBuilder();
+                while ((line = in.readLine()) != null && !line.equals(".")) {
+                    data.append(line.startsWith("..") ? line.substring(1) : line).append("\r\n");
+                }
+                long delay = dataDelayMillis;
+                if (delay > 0) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(delay);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (failuresLeft.getAndDecrement() > 0) {
+                    reply(out, failureReply);
+                    continue;
+                }
+                if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                    reply(out, randomFailureReply);
+                    continue;
+                }
+                if (perSecond != Integer.MAX_VALUE && overRate()) {
+                    reply(out, "451 4.7.1 Rate limited");
+                    continue;
+                }
+                accepted.incrementAndGet();
+                if (keep) {
+                    received.add(new Received(from, recipients, data.toString()));
+                }
+                reply(out, "250 2.0.0 Ok: queued");
+            } else if (upper.equals("RSET")) {
+                from = null;
+                recipients = new ArrayList<>();
+                reply(out, "250 2.0.0 Ok");
+            } else if (upper.equals("NOOP")) {
+                reply(out, "250 2.0.0 Ok");
+            } else if (upper.equals("QUIT")) {
+                reply(out, "221 2.0.0 Bye");
+                return;
+            } else {
+                reply(out, "502 5.5.2 Error: command not recognized");
+            }
+        }
+    }
+
+    private static String address(String line) {
+        int start = line.indexOf('<');
+        int end = line.indexOf('>', start + 1);
+        return start < 0 || end < 0 ? line.substring(line.indexOf(':') + 1).trim() : line.substring(start + 1, end);
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
@@ -0,0 +1,139 @@
+package com.mastfrog.email.server;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import static com.mastfrog.email.server.EmailServerService.DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_SEND_THREADS;
+import static com.mastfrog.email.server.EmailServiceModule.DEFAULT_EMAIL_SEND_VIRTUAL_THREADS;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_SEND_THREADS;
+import static com.mastfrog.email.server.EmailServiceModule.SETTINGS_KEY_EMAIL_SEND_VIRTUAL_THREADS;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.DependenciesBuilder;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.settings.SettingsBuilder.DEFAULT_NAMESPACE;
+import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.SimpleEmail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests delivery with email.send.virtual.threads set: that workers run on
+ * virtual threads where the JVM has them (and on platform threads where it
+ * does not), that as many messages are in flight as there are workers, and
+ * that shutting down still delivers what was queued.
+ *
+ * @author Tim Boudreau
+ */
+public class VirtualThreadDeliveryTest {
+
+    private static final int WORKERS = 64;
+    private static final int MESSAGES = 256;
+
+    @Test
+    public void testWorkerCount() throws Exception {
+        Settings settings = new SettingsBuilder().add(SETTINGS_KEY_EMAIL_SEND_VIRTUAL_THREADS, "true").build();
+        assertEquals(VirtualThreads.isSupported() && !VirtualThreads.pinsInMonitors()
+                ? DEFAULT_EMAIL_SEND_VIRTUAL_THREADS : DEFAULT_EMAIL_SEND_THREADS,
+                EmailServiceModule.sendThreads(settings));
+        assertEquals(DEFAULT_EMAIL_SEND_THREADS, EmailServiceModule.sendThreads(new SettingsBuilder().build()));
+    }
+
+    @Test
+    public void testMonitorsPinBeforeJava24() {
+        assertTrue(VirtualThreads.pinsInMonitors("1.8"));
+        assertTrue(VirtualThreads.pinsInMonitors("17"));
+        assertTrue(VirtualThreads.pinsInMonitors("21"));
+        assertTrue(VirtualThreads.pinsInMonitors("23"));
+        assertFalse(VirtualThreads.pinsInMonitors("24"));
+        assertFalse(VirtualThreads.pinsInMonitors("25"));
+    }
+
+    @Test
+    public void testSlowDeliveriesOverlap() throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(DEFAULT_FROM_EMAIL_ADDRESS_SETTINGS_KEY, "sender@example.com")
+                .add(SETTINGS_KEY_EMAIL_SEND_VIRTUAL_THREADS, "true")
+                .add(SETTINGS_KEY_EMAIL_SEND_THREADS, Integer.toString(WORKERS))
+                .build();
+        Dependencies deps = new DependenciesBuilder().add(settings, DEFAULT_NAMESPACE)
+                .add(new EmailServiceModule(settings)).add(new M()).build();
+        CountDownLatch done = new CountDownLatch(MESSAGES);
+        Slow server;
+        try {
+            server = (Slow) deps.getInstance(EmailServerService.class);
+            for (int i = 0; i < MESSAGES; i++) {
+                Email email = new SimpleEmail();
+                email.addTo("recipient@example" + i + ".com");
+                email.setSubject(Integer.toString(i));
+                email.setMsg("Message " + i);
+                server.sendAsync(email).whenComplete((e, thrown) -> done.countDown());
+            }
+            // Shut down with mail still in flight and queued
+            assertTrue("Never had " + WORKERS + " in flight", server.allInFlight.await(10, TimeUnit.SECONDS));
+        } finally {
+            deps.shutdown();
+        }
+        assertTrue("Queued mail not delivered before shutdown", done.await(0, TimeUnit.SECONDS));
+        assertEquals(MESSAGES, server.sent.get());
+        assertEquals(WORKERS, server.maxInFlight.get());
+        assertEquals(VirtualThreads.isSupported(), server.virtual.get());
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException ex) {
+            return false;
+        }
+    }
+
+    static final class Slow extends StubMailServer {
+
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicBoolean virtual = new AtomicBoolean();
+        final CountDownLatch allInFlight = new CountDownLatch(WORKERS);
+
+        @Inject
+        Slow(EmailAddressesConfig config, @Named("mailqueue") ExecutorService threadPool, Settings settings, ShutdownHookRegistry vmShutdown) {
+            super(config, threadPool, settings, vmShutdown);
+        }
+
+        @Override
+        protected void reallySend(Email email) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            virtual.set(isVirtual(Thread.currentThread()));
+            allInFlight.countDown();
+            try {
+                // A slow SMTP server, which doesn't reply until every worker
+                // is waiting for it
+                allInFlight.await(10, TimeUnit.SECONDS);
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+                sent.incrementAndGet();
+            }
+        }
+    }
+
+    static final class M extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            bind(EmailServerService.class).to(Slow.class);
+        }
+    }
+}
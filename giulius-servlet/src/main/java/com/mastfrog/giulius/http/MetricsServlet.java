@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.giulius.http;
+
+import com.google.inject.Singleton;
+import com.mastfrog.statistics.MetricRegistry;
+import com.mastfrog.statistics.MetricsTextFormat;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves every metric in a {@link MetricRegistry} - including the
+ * statistics JmxAopModule collects for &#064;Benchmark methods - in the
+ * Prometheus text format, for scraping. Map it with
+ * <code>serve("/metrics").with(MetricsServlet.class)</code> in a
+ * ServletModule, or in web.xml. Either way it exports the default registry,
+ * which is the one JmxAopModule binds, unless a subclass passes another.
+ * <p>
+ * The response is streamed through a buffer, so a scrape does not build the
+ * whole document in memory. One buffer is kept between scrapes; a scrape
+ * which starts while another is running gets its own, which is dropped
+ * afterwards.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public class MetricsServlet extends HttpServlet {
+
+    private final MetricRegistry registry;
+    // Not a ThreadLocal - scrapes are seconds apart, and that would keep a
+    // buffer on every thread the container ever serves one on
+    private final AtomicReference<MetricsTextFormat> idle = new AtomicReference<>();
+
+    public MetricsServlet() {
+        this(MetricRegistry.getDefault());
+    }
+
+    protected MetricsServlet(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType(MetricsTextFormat.CONTENT_TYPE);
+        resp.setHeader("Cache-Control", "no-cache, no-store");
+        MetricsTextFormat format = idle.getAndSet(null);
+        if (format == null) {
+            format = new MetricsTextFormat();
+        }
+        try {
+            format.write(registry, resp.getOutputStream());
+        } finally {
+            idle.compareAndSet(null, format);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.giulius.http;
+
+import com.mastfrog.statistics.MetricRegistry;
+import com.mastfrog.statistics.MetricsTextFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that MetricsServlet writes the whole registry, and that scrapes
+ * which overlap do not share a buffer.
+ *
+ * @author Tim Boudreau
+ */
+public class MetricsServletTest {
+
+    private static final HttpServletRequest REQUEST = (HttpServletRequest) Proxy.newProxyInstance(
+            MetricsServletTest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+            (proxy, method, args) -> {
+                throw new UnsupportedOperationException(method.getName());
+            });
+
+    @Test
+    public void testScrape() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("http.requests").add(3);
+        registry.gauge("queue.depth").set(-2);
+        registry.histogram("db.query").record(TimeUnit.MILLISECONDS.toNanos(2));
+        registry.histogram("never.called");
+        Response resp = new Response(null);
+        new MetricsServlet(registry).doGet(REQUEST, resp.proxy());
+        assertEquals(MetricsTextFormat.CONTENT_TYPE, resp.headers.get("Content-Type"));
+        assertEquals("no-cache, no-store", resp.headers.get("Cache-Control"));
+        String text = resp.text();
+        assertEquals(expected(registry), text);
+        assertTrue(text, text.contains("# TYPE http_requests_total counter\nhttp_requests_total 3\n"));
+        assertTrue(text, text.contains("# TYPE queue_depth gauge\nqueue_depth -2\n"));
+        assertTrue(text, text.contains("# TYPE db_query_seconds summary\n"));
+        assertTrue(text, text.contains("db_query_seconds{quantile=\"0.99\"} 0.002"));
+        assertTrue(text, text.contains("db_query_seconds_count 1\n"));
+        assertTrue(text, text.contains("never_called_seconds{quantile=\"0.5\"} NaN\n"));
+        assertTrue(text, text.contains("never_called_seconds_count 0\n"));
+    }
+
+    @Test
+    public void testOverlappingScrapes() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        // More than one buffer's worth
+        for (int i = 0; i < 1000; i++) {
+            registry.counter("calls.method" + i).add(i);
+            registry.gauge("depth" + i).set(i);
+            registry.histogram("time.method" + i).record(1_000_000L + i);
+        }
+        String expected = expected(registry);
+        MetricsServlet servlet = new MetricsServlet(registry);
+        // Warm up, so the first scrape below takes the kept buffer
+        servlet.doGet(REQUEST, new Response(null).proxy());
+
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Response slow = new Response(() -> {
+            writing.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> first = thread.submit(() -> {
+                servlet.doGet(REQUEST, slow.proxy());
+                return null;
+            });
+            assertTrue("First scrape never wrote", writing.await(10, TimeUnit.SECONDS));
+            // Runs to completion while the first is stuck part way through
+            Response fast = new Response(null);
+            servlet.doGet(REQUEST, fast.proxy());
+            assertFalse(first.isDone());
+            assertEquals(expected, fast.text());
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            assertEquals(expected, slow.text());
+        } finally {
+            release.countDown();
+            thread.shutdownNow();
+        }
+        // And whichever buffer was kept still works
+        Response after = new Response(null);
+        servlet.doGet(REQUEST, after.proxy());
+        assertEquals(expected, after.text());
+    }
+
+    private static String expected(MetricRegistry registry) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        MetricsTextFormat.write(registry, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Records headers and body; runs a callback on the first write.
+     */
+    static final class Response {
+
+        final Map<String, String> headers = new HashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private Runnable onFirstWrite;
+        private final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                firstWrite();
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                firstWrite();
+                body.write(b, off, len);
+            }
+        };
+
+        Response(Runnable onFirstWrite) {
+            this.onFirstWrite = onFirstWrite;
+        }
+
+        private void firstWrite() {
+            Runnable r = onFirstWrite;
+            onFirstWrite = null;
+            if (r != null) {
+                r.run();
+            }
+        }
+
+        String text() {
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "setContentType":
+                                headers.put("Content-Type", (String) args[0]);
+                                return null;
+                            case "setHeader":
+                                headers.put((String) args[0], (String) args[1]);
+                                return null;
+                            case "getOutputStream":
+                                return out;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java agent which records the same statistics as JmxAopModule for methods on
+ * objects Guice does not create, by rewriting their bytecode as classes are
+ * loaded - so there is no interceptor or proxy in the call path at all.
+ * Methods annotated with &#064;Benchmark are woven automatically; others can
+ * be listed in a properties file passed as the agent argument:
+ * <pre>
+ * -javaagent:/path/to/statistics.jar=/path/to/benchmarks.properties
+ * </pre>
+ * Keys of the form <code>com.foo.SomeHandler#handle</code> name a method (all
+ * overloads) to weave, with the benchmark name as the value (if empty,
+ * <code>SomeHandler.handle</code> is used). All other keys are settings, read
+ * along with the usual default locations, so the <code>stats.udp.*</code> and
+ * <code>stats.slow.calls.*</code> settings apply as they do for the module.
+ * <p>
+ * ASM (<code>org.ow2.asm:asm</code>) must be on the classpath. Guice-created
+ * instances of woven classes are not intercepted a second time by
+ * JmxAopModule. When attached to a running VM rather than started with it,
+ * only classes loaded afterwards are woven.
+ *
+ * @author Tim Boudreau
+ */
+public final class BenchmarkAgent {
+
+    private static boolean installed;
+
+    private BenchmarkAgent() {
+        throw new AssertionError();
+    }
+
+    public static void premain(String args, Instrumentation inst) {
+        install(args, inst);
+    }
+
+    public static void agentmain(String args, Instrumentation inst) {
+        install(args, inst);
+    }
+
+    static synchronized void install(String args, Instrumentation inst) {
+        if (installed) {
+            return;
+        }
+        Logger log = Logger.getLogger(BenchmarkAgent.class.getName());
+        Properties props = new Properties();
+        if (args != null && !args.trim().isEmpty()) {
+            File file = new File(args.trim());
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                props.load(in);
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, "Could not read agent configuration " + file, ex);
+            }
+        }
+        Map<String, Map<String, String>> methods = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            int ix = key.indexOf('#');
+            if (ix > 0 && ix < key.length() - 1) {
+                String type = key.substring(0, ix).trim().replace('.', '/');
+                Map<String, String> forType = methods.get(type);
+                if (forType == null) {
+                    forType = new HashMap<>();
+                    methods.put(type, forType);
+                }
+                forType.put(key.substring(ix + 1).trim(), props.getProperty(key).trim());
+                props.remove(key);
+            }
+        }
+        try {
+            Settings settings = SettingsBuilder.createDefault().add(props).build();
+            BenchmarkRecorder.configure(settings);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Could not load settings; slow call capture "
+                    + "and UDP publishing disabled for woven methods", ex);
+        }
+        try {
+            inst.addTransformer(new BenchmarkWeaver(methods));
+            installed = true;
+        } catch (LinkageError err) {
+            log.log(Level.SEVERE, "ASM is not on the classpath; nothing will be woven", err);
+        }
+    }
+}
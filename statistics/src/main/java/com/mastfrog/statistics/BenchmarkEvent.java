@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event emitted for each call to a &#064;Benchmark method, so
+ * business operations line up with GC, I/O and lock events in a recording.
+ * Enablement and the duration threshold are ordinary JFR settings, e.g. in a
+ * <code>.jfc</code> file:
+ * <pre>
+ * &lt;event name="com.mastfrog.Benchmark"&gt;
+ *   &lt;setting name="enabled"&gt;true&lt;/setting&gt;
+ *   &lt;setting name="threshold"&gt;20 ms&lt;/setting&gt;
+ * &lt;/event&gt;
+ * </pre> Only referenced through the static methods here, and only when
+ * {@link JfrSupport#isAvailable()} is true; when no recording is running,
+ * {@link #start(String)} returns null without allocating.
+ *
+ * @author Tim Boudreau
+ */
+@Name("com.mastfrog.Benchmark")
+@Label("Benchmark")
+@Category({"Mastfrog", "Statistics"})
+@Description("A call to a method annotated with @Benchmark")
+@StackTrace(false)
+@Threshold("0 ms")
+final class BenchmarkEvent extends Event {
+
+    private static final String SUCCESS = "success";
+
+    @Label("Name")
+    @Description("The benchmark name")
+    String name;
+
+    @Label("Outcome")
+    @Description("\"success\" or the type of exception thrown")
+    String outcome;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    static Object start(String name) {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        BenchmarkEvent event = new BenchmarkEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.name = name;
+        event.begin();
+        return event;
+    }
+
+    static void finish(Object event, Throwable thrown) {
+        BenchmarkEvent ev = (BenchmarkEvent) event;
+        ev.end();
+        if (ev.shouldCommit()) {
+            ev.succeeded = thrown == null;
+            ev.outcome = thrown == null ? SUCCESS : thrown.getClass().getName();
+            ev.commit();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.shutdown.hooks.ShutdownHookRegistry.shutdownHookRegistry;
+import com.mastfrog.util.perf.Benchmark;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Receives calls from methods woven by {@link BenchmarkAgent}; not for direct
+ * use. Each woven method is assigned an integer id when its class is
+ * transformed, and calls {@link #enter(int)} on entry, and on every exit
+ * {@link #exit(int, long)}, {@link #exitReturning(Object, int, long)} if it
+ * returns an object, or {@link #exitThrown(Throwable, int, long)} if it
+ * throws. A call which returns a CompletionStage is recorded when the stage
+ * completes, as a failure if it completes exceptionally. Stats and
+ * SlowCalls MBeans are registered the first time a method is called, as
+ * <code>&lt;package&gt;:type=&lt;class&gt;,name=&lt;benchmark&gt;</code>.
+ * <p>
+ * Woven classes must be able to see the copy of this class the agent was
+ * loaded with, so the statistics JAR needs to be on the system classpath
+ * (which <code>-javaagent</code> arranges) and not repeated inside a web
+ * application which loads classes child-first.
+ *
+ * @author Tim Boudreau
+ */
+public final class BenchmarkRecorder {
+
+    private static final Object LOCK = new Object();
+    private static final Set<String> WOVEN = ConcurrentHashMap.newKeySet();
+    private static volatile Entry[] entries = new Entry[0];
+    private static volatile Settings settings;
+    private static UdpExporter udpExporter;
+    private static boolean udpExporterCreated;
+
+    private BenchmarkRecorder() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Called on entry to a woven method.
+     *
+     * @param id The id assigned at weaving time
+     * @return The start time, to pass to exit()
+     */
+    public static long enter(int id) {
+        entries[id].stats.enter();
+        return System.nanoTime();
+    }
+
+    /**
+     * Called when a woven method returns normally, other than with an object.
+     *
+     * @param id The id assigned at weaving time
+     * @param start The value returned by enter()
+     */
+    public static void exit(int id, long start) {
+        long nanos = System.nanoTime() - start;
+        entry(id).stats.exit(nanos, null);
+    }
+
+    /**
+     * Called when a woven method returns an object, with the object.
+     *
+     * @param result What the method is returning
+     * @param id The id assigned at weaving time
+     * @param start The value returned by enter()
+     */
+    public static void exitReturning(Object result, int id, long start) {
+        if (result instanceof CompletionStage<?>) {
+            // Measure until the work completes, not until it is handed off
+            ((CompletionStage<?>) result).whenComplete(new JmxAopModule.AsyncExit(entry(id).stats, null, start, null));
+        } else {
+            exit(id, start);
+        }
+    }
+
+    /**
+     * Called when a woven method throws, with what it throws.
+     *
+     * @param thrown The exception or error
+     * @param id The id assigned at weaving time
+     * @param start The value returned by enter()
+     */
+    public static void exitThrown(Throwable thrown, int id, long start) {
+        long nanos = System.nanoTime() - start;
+        entry(id).stats.exit(nanos, null, true);
+    }
+
+    private static Entry entry(int id) {
+        Entry entry = entries[id];
+        if (!entry.registered) {
+            entry.register();
+        }
+        return entry;
+    }
+
+    /**
+     * Determine if a class was woven by the agent, in which case the Guice
+     * interceptor should leave its methods alone.
+     *
+     * @param type A class
+     * @return true if it was woven
+     */
+    static boolean isWoven(Class<?> type) {
+        return !WOVEN.isEmpty() && WOVEN.contains(type.getName());
+    }
+
+    static void configure(Settings settings) {
+        BenchmarkRecorder.settings = settings;
+    }
+
+    static int register(String benchmarkName, String className, Benchmark.Kind[] kinds) {
+        synchronized (LOCK) {
+            Entry[] old = entries;
+            Entry[] nue = Arrays.copyOf(old, old.length + 1);
+            nue[old.length] = new Entry(benchmarkName, className, kinds);
+            entries = nue;
+            WOVEN.add(className);
+            return old.length;
+        }
+    }
+
+    private static UdpExporter udpExporter() {
+        synchronized (LOCK) {
+            if (!udpExporterCreated) {
+                udpExporterCreated = true;
+                Settings s = settings;
+                if (s != null && s.getBoolean(JmxAopModule.ENABLE_UDP, true)) {
+                    try {
+                        udpExporter = new UdpExporter(new UDPBroadcaster(
+                                s.getString(JmxAopModule.UDP_DEST, JmxAopModule.DEFAULT_UDP_DEST),
+                                s.getInt(JmxAopModule.UDP_PORT, JmxAopModule.DEFAULT_UDP_PORT),
+                                shutdownHookRegistry()));
+                        MetricRegistry.getDefault().schedule(udpExporter,
+                                s.getLong(JmxAopModule.UDP_INTERVAL_MILLIS, JmxAopModule.DEFAULT_UDP_INTERVAL_MILLIS),
+                                TimeUnit.MILLISECONDS);
+                    } catch (Exception ex) {
+                        Logger.getLogger(BenchmarkRecorder.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+            return udpExporter;
+        }
+    }
+
+    private static final class Entry {
+
+        final Stats stats;
+        final String className;
+        final Benchmark.Kind[] kinds;
+        volatile boolean registered;
+
+        Entry(String name, String className, Benchmark.Kind[] kinds) {
+            stats = new Stats(name, MetricRegistry.getDefault());
+            this.className = className;
+            this.kinds = kinds;
+        }
+
+        synchronized void register() {
+            if (registered) {
+                return;
+            }
+            int ix = className.lastIndexOf('.');
+            String domain = ix < 0 ? "default" : className.substring(0, ix);
+            String type = className.substring(ix + 1);
+            Settings s = settings;
+            if (s != null) {
+                stats.slowCalls = SlowCalls.create(stats.name, s);
+            }
+            try {
+                String base = domain + ":type=" + type + ",name=" + ObjectName.quote(stats.name);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(base));
+                if (stats.slowCalls != null) {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(stats.slowCalls,
+                            new ObjectName(domain + ":type=SlowCalls,name=" + ObjectName.quote(stats.name)));
+                }
+                if (kinds.length > 0) {
+                    UdpExporter udp = udpExporter();
+                    if (udp != null) {
+                        udp.add(stats, kinds);
+                    }
+                }
+            } catch (JMException ex) {
+                Logger.getLogger(BenchmarkRecorder.class.getName()).log(Level.SEVERE,
+                        "Registering " + stats.name + " for " + className, ex);
+            } finally {
+                registered = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.util.perf.Benchmark;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Weaves calls to {@link BenchmarkRecorder} into methods annotated with
+ * &#064;Benchmark, or listed in the agent's configuration, as classes are
+ * loaded. The woven method body is equivalent to
+ * <pre>
+ * long start = BenchmarkRecorder.enter(id);
+ * try {
+ *     ...original body, with each <code>return x</code> replaced by...
+ *     BenchmarkRecorder.exitReturning(x, id, start); // or exit(id, start)
+ *     return x;
+ * } catch (Throwable t) {
+ *     BenchmarkRecorder.exitThrown(t, id, start);
+ *     throw t;
+ * }
+ * </pre> except that the recorder's exit calls are outside the try, so one
+ * which throws is not recorded a second time as a failure.
+ * Classes which neither mention the annotation in their constant pool nor
+ * appear in the configuration are returned untouched without being parsed.
+ *
+ * @author Tim Boudreau
+ */
+final class BenchmarkWeaver implements ClassFileTransformer {
+
+    private static final String BENCHMARK_DESC = "L" + Benchmark.class.getName().replace('.', '/') + ";";
+    private static final byte[] BENCHMARK_DESC_BYTES = BENCHMARK_DESC.getBytes(UDPBroadcaster.ascii);
+    private static final String KIND_DESC = "L" + Benchmark.Kind.class.getName().replace('.', '/') + ";";
+    private static final String RECORDER = BenchmarkRecorder.class.getName().replace('.', '/');
+    private static final String[] EXCLUDED_PREFIXES = {"java/", "javax/", "jdk/", "sun/", "com/sun/",
+        "org/objectweb/asm/", "com/mastfrog/statistics/", "com/google/inject/"};
+    private static final Benchmark.Kind[] NO_KINDS = new Benchmark.Kind[0];
+    private final Map<String, Map<String, String>> configured;
+
+    /**
+     * Create a weaver.
+     *
+     * @param configured Map of internal class name (with slashes) to a map of
+     * method name to benchmark name, for methods to weave which are not
+     * annotated
+     */
+    BenchmarkWeaver(Map<String, Map<String, String>> configured) {
+        this.configured = configured;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null || loader == null || classBeingRedefined != null || excluded(className)) {
+            return null;
+        }
+        Map<String, String> methods = configured.get(className);
+        if (methods == null && !contains(classfileBuffer, BENCHMARK_DESC_BYTES)) {
+            return null;
+        }
+        try {
+            return weave(loader, className, classfileBuffer, methods == null
+                    ? Collections.<String, String>emptyMap() : methods);
+        } catch (RuntimeException | LinkageError ex) {
+            // An exception thrown from here is silently swallowed by the JVM,
+            // and the class loaded unmodified - at least say why
+            Logger.getLogger(BenchmarkWeaver.class.getName()).log(Level.WARNING,
+                    "Could not weave " + className, ex);
+            return null;
+        }
+    }
+
+    byte[] weave(ClassLoader loader, String className, byte[] bytes, Map<String, String> methods) {
+        ClassReader reader = new ClassReader(bytes);
+        if ((reader.getAccess() & Opcodes.ACC_ANNOTATION) != 0) {
+            return null;
+        }
+        Scanner scanner = new Scanner(methods, className);
+        reader.accept(scanner, ClassReader.SKIP_FRAMES);
+        if (scanner.targets.isEmpty()) {
+            return null;
+        }
+        String dotted = className.replace('/', '.');
+        for (Target t : scanner.targets.values()) {
+            t.id = BenchmarkRecorder.register(t.name, dotted, t.kinds);
+        }
+        ClassWriter writer = new LoaderClassWriter(loader);
+        reader.accept(new Weaver(writer, scanner.targets), ClassReader.SKIP_FRAMES);
+        return writer.toByteArray();
+    }
+
+    private static boolean excluded(String className) {
+        for (String prefix : EXCLUDED_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean contains(byte[] bytes, byte[] seq) {
+        byte first = seq[0];
+        int max = bytes.length - seq.length;
+        outer:
+        for (int i = 0; i <= max; i++) {
+            if (bytes[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < seq.length; j++) {
+                if (bytes[i + j] != seq[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static final class Target {
+
+        String name;
+        Benchmark.Kind[] kinds = NO_KINDS;
+        int maxLocals;
+        int id;
+    }
+
+    /**
+     * First pass: find the methods to weave, their benchmark names, and how
+     * many local slots they already use, so the start time can be stored in
+     * the next free one.
+     */
+    private static final class Scanner extends ClassVisitor {
+
+        private final Map<String, String> methods;
+        private final String simpleName;
+        final Map<String, Target> targets = new HashMap<>();
+
+        Scanner(Map<String, String> methods, String className) {
+            super(Opcodes.ASM9);
+            this.methods = methods;
+            this.simpleName = className.substring(className.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            if (name.charAt(0) == '<' || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE
+                    | Opcodes.ACC_BRIDGE | Opcodes.ACC_SYNTHETIC)) != 0) {
+                return null;
+            }
+            final String key = name + descriptor;
+            String configuredName = methods.get(name);
+            if (configuredName != null) {
+                Target t = new Target();
+                t.name = configuredName.isEmpty() ? simpleName + "." + name : configuredName;
+                targets.put(key, t);
+            }
+            return new MethodVisitor(Opcodes.ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                    if (!BENCHMARK_DESC.equals(descriptor)) {
+                        return null;
+                    }
+                    final Target t = new Target();
+                    targets.put(key, t);
+                    return new AnnotationVisitor(Opcodes.ASM9) {
+                        @Override
+                        public void visit(String name, Object value) {
+                            if ("value".equals(name)) {
+                                t.name = (String) value;
+                            }
+                        }
+
+                        @Override
+                        public AnnotationVisitor visitArray(String name) {
+                            if (!"publish".equals(name)) {
+                                return null;
+                            }
+                            final List<Benchmark.Kind> kinds = new ArrayList<>(2);
+                            return new AnnotationVisitor(Opcodes.ASM9) {
+                                @Override
+                                public void visitEnum(String name, String descriptor, String value) {
+                                    if (KIND_DESC.equals(descriptor)) {
+                                        kinds.add(Benchmark.Kind.valueOf(value));
+                                    }
+                                }
+
+                                @Override
+                                public void visitEnd() {
+                                    t.kinds = kinds.toArray(new Benchmark.Kind[kinds.size()]);
+                                }
+                            };
+                        }
+                    };
+                }
+
+                @Override
+                public void visitMaxs(int maxStack, int maxLocals) {
+                    Target t = targets.get(key);
+                    if (t != null) {
+                        t.maxLocals = maxLocals;
+                    }
+                }
+            };
+        }
+    }
+
+    private static final class Weaver extends ClassVisitor {
+
+        private final Map<String, Target> targets;
+
+        Weaver(ClassVisitor next, Map<String, Target> targets) {
+            super(Opcodes.ASM9, next);
+            this.targets = targets;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+            Target t = targets.get(name + descriptor);
+            return t == null ? mv : new WeavingMethodVisitor(mv, t.id, t.maxLocals);
+        }
+    }
+
+    private static final class WeavingMethodVisitor extends MethodVisitor {
+
+        private final int id;
+        private final int startVar;
+        // Start and end labels of the stretches of the body between the
+        // injected exit calls, which the catch-all handler covers
+        private final List<Label> ranges = new ArrayList<>();
+
+        WeavingMethodVisitor(MethodVisitor mv, int id, int startVar) {
+            super(Opcodes.ASM9, mv);
+            this.id = id;
+            this.startVar = startVar;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            super.visitLdcInsn(id);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RECORDER, "enter", "(I)J", false);
+            super.visitVarInsn(Opcodes.LSTORE, startVar);
+            mark();
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                mark();
+                if (opcode == Opcodes.ARETURN) {
+                    super.visitInsn(Opcodes.DUP);
+                    exit("exitReturning", "(Ljava/lang/Object;IJ)V");
+                } else {
+                    exit("exit", "(IJ)V");
+                }
+                super.visitInsn(opcode);
+                mark();
+                return;
+            }
+            super.visitInsn(opcode);
+        }
+
+        private void mark() {
+            Label label = new Label();
+            super.visitLabel(label);
+            ranges.add(label);
+        }
+
+        private void exit(String method, String descriptor) {
+            super.visitLdcInsn(id);
+            super.visitVarInsn(Opcodes.LLOAD, startVar);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RECORDER, method, descriptor, false);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            // Catch-all handler, added last so any handlers in the original
+            // body take precedence; throws from inside the body and from
+            // callees are both recorded here, then rethrown
+            mark();
+            Label handler = ranges.get(ranges.size() - 1);
+            super.visitInsn(Opcodes.DUP);
+            exit("exitThrown", "(Ljava/lang/Throwable;IJ)V");
+            super.visitInsn(Opcodes.ATHROW);
+            for (int i = 0; i < ranges.size() - 1; i += 2) {
+                Label start = ranges.get(i);
+                Label end = ranges.get(i + 1);
+                // A return straight after another, or at the very start,
+                // leaves an empty range, which the JVM does not allow
+                if (start.getOffset() < end.getOffset()) {
+                    super.visitTryCatchBlock(start, end, handler, null);
+                }
+            }
+            super.visitMaxs(maxStack + 4, maxLocals + 2);
+        }
+    }
+
+    /**
+     * COMPUTE_FRAMES needs the common superclass of two types; the default
+     * implementation loads classes, which must not happen while a class is
+     * being defined, so read the class files as resources instead.
+     */
+    private static final class LoaderClassWriter extends ClassWriter {
+
+        private static final String OBJECT = "java/lang/Object";
+        private final ClassLoader loader;
+
+        LoaderClassWriter(ClassLoader loader) {
+            super(ClassWriter.COMPUTE_FRAMES);
+            this.loader = loader;
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            if (type1.equals(type2)) {
+                return type1;
+            }
+            List<String> supers1 = superclasses(type1);
+            if (supers1.isEmpty()) {
+                return OBJECT;
+            }
+            for (String s : superclasses(type2)) {
+                if (supers1.contains(s)) {
+                    return s;
+                }
+            }
+            return OBJECT;
+        }
+
+        private List<String> superclasses(String type) {
+            List<String> result = new ArrayList<>(6);
+            String curr = type;
+            while (curr != null && !OBJECT.equals(curr)) {
+                ClassReader reader = read(curr);
+                if (reader == null || (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0) {
+                    // Interfaces merge to Object as far as the verifier cares
+                    break;
+                }
+                result.add(curr);
+                curr = reader.getSuperName();
+            }
+            if (result.isEmpty() && !OBJECT.equals(type)) {
+                return result;
+            }
+            result.add(OBJECT);
+            return result;
+        }
+
+        private ClassReader read(String type) {
+            String resource = type + ".class";
+            try (InputStream in = loader.getResourceAsStream(resource)) {
+                return in == null ? null : new ClassReader(in);
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.settings.Settings;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Implementation of FlightRecorderControlMBean. Only one recording runs at a
+ * time; it is written to a temporary file whose size is capped, and read back
+ * one event at a time on a single low-priority thread, aggregating into maps
+ * with a bounded number of keys, within a bounded number of events and a
+ * deadline - so memory and CPU spent on summarizing are bounded regardless of
+ * how busy the process is.
+ *
+ * @author Tim Boudreau
+ */
+final class FlightRecorderControl implements FlightRecorderControlMBean {
+
+    public static final String SETTINGS_KEY_MAX_SECONDS = "stats.jfr.max.recording.seconds";
+    public static final String SETTINGS_KEY_MAX_BYTES = "stats.jfr.max.recording.bytes";
+    public static final String SETTINGS_KEY_SUMMARY_SIZE = "stats.jfr.summary.size";
+    public static final String SETTINGS_KEY_MAX_ANALYSIS_SECONDS = "stats.jfr.max.analysis.seconds";
+    static final int DEFAULT_MAX_SECONDS = 300;
+    static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    static final int DEFAULT_SUMMARY_SIZE = 20;
+    static final int DEFAULT_MAX_ANALYSIS_SECONDS = 30;
+    static final int MAX_KEYS = 4096;
+    static final long MAX_EVENTS = 5_000_000;
+    private static final String OTHER = "(other)";
+
+    private final int maxSeconds;
+    private final long maxBytes;
+    private final int summarySize;
+    private final int maxAnalysisSeconds;
+    private final ScheduledExecutorService timer;
+    private Recording recording;
+    private ScheduledFuture<?> stopper;
+    private String status = "Idle";
+    private volatile String summary;
+
+    FlightRecorderControl(Settings settings) {
+        maxSeconds = settings.getInt(SETTINGS_KEY_MAX_SECONDS, DEFAULT_MAX_SECONDS);
+        maxBytes = settings.getLong(SETTINGS_KEY_MAX_BYTES, DEFAULT_MAX_BYTES);
+        summarySize = settings.getInt(SETTINGS_KEY_SUMMARY_SIZE, DEFAULT_SUMMARY_SIZE);
+        maxAnalysisSeconds = settings.getInt(SETTINGS_KEY_MAX_ANALYSIS_SECONDS, DEFAULT_MAX_ANALYSIS_SECONDS);
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "JMX-AOP Flight Recorder Control");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    @Override
+    public synchronized String startRecording(String profile, int seconds) {
+        if (recording != null) {
+            return "Already recording: " + status;
+        }
+        if (seconds <= 0) {
+            return "Duration must be positive";
+        }
+        seconds = Math.min(seconds, maxSeconds);
+        Configuration config;
+        try {
+            config = Configuration.getConfiguration(profile == null || profile.isEmpty() ? "profile" : profile);
+        } catch (IOException | ParseException ex) {
+            return "No such profile '" + profile + "': " + ex.getMessage()
+                    + ". Available: " + String.join(", ", getAvailableProfiles());
+        }
+        Recording rec = new Recording(config);
+        rec.setName("JMX-AOP on-demand " + config.getName());
+        rec.setToDisk(true);
+        rec.setMaxSize(maxBytes);
+        rec.start();
+        recording = rec;
+        summary = null;
+        status = "Recording with '" + config.getName() + "' for " + seconds + " seconds";
+        stopper = timer.schedule(this::finish, seconds, TimeUnit.SECONDS);
+        return status;
+    }
+
+    @Override
+    public String stopRecording() {
+        synchronized (this) {
+            if (recording == null) {
+                return "Not recording";
+            }
+            if (stopper != null) {
+                stopper.cancel(false);
+            }
+        }
+        timer.execute(this::finish);
+        return "Stopping";
+    }
+
+    private void finish() {
+        Recording rec;
+        synchronized (this) {
+            rec = recording;
+            if (rec == null) {
+                return;
+            }
+            status = "Summarizing";
+        }
+        Path file = null;
+        String result;
+        try {
+            rec.stop();
+            file = Files.createTempFile("jmx-aop-", ".jfr");
+            rec.dump(file);
+            result = summarize(file);
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(FlightRecorderControl.class.getName()).log(Level.WARNING, "Summarizing recording", ex);
+            result = "Failed: " + ex;
+        } finally {
+            rec.close();
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    Logger.getLogger(FlightRecorderControl.class.getName()).log(Level.INFO, null, ex);
+                }
+            }
+        }
+        synchronized (this) {
+            summary = result;
+            recording = null;
+            stopper = null;
+            status = "Idle";
+        }
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+        synchronized (this) {
+            if (recording != null) {
+                recording.close();
+                recording = null;
+            }
+        }
+    }
+
+    String summarize(Path file) throws IOException {
+        Aggregate hot = new Aggregate();
+        Aggregate allocations = new Aggregate();
+        Aggregate locks = new Aggregate();
+        Aggregate benchmarks = new Aggregate();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(maxAnalysisSeconds);
+        long events = 0;
+        boolean truncated = false;
+        try (RecordingFile in = new RecordingFile(file)) {
+            while (in.hasMoreEvents()) {
+                if (++events > MAX_EVENTS || ((events & 1023) == 0 && System.nanoTime() > deadline)) {
+                    truncated = true;
+                    break;
+                }
+                RecordedEvent e = in.readEvent();
+                switch (e.getEventType().getName()) {
+                    case "jdk.ExecutionSample":
+                        hot.add(frame(e.getStackTrace(), false), 1);
+                        break;
+                    case "jdk.ObjectAllocationSample":
+                        allocations.add(allocationKey(e), e.getLong("weight"));
+                        break;
+                    case "jdk.ObjectAllocationInNewTLAB":
+                        allocations.add(allocationKey(e), e.getLong("tlabSize"));
+                        break;
+                    case "jdk.ObjectAllocationOutsideTLAB":
+                        allocations.add(allocationKey(e), e.getLong("allocationSize"));
+                        break;
+                    case "jdk.JavaMonitorEnter":
+                        locks.add(lockKey(e, "monitorClass"), e.getDuration().toNanos());
+                        break;
+                    case "jdk.ThreadPark":
+                        // Parking on a Condition or with no blocker is a
+                        // thread waiting for work, not lock contention
+                        RecordedClass parkedOn = e.getClass("parkedClass");
+                        if (parkedOn != null && !parkedOn.getName().endsWith("$ConditionObject")) {
+                            locks.add(lockKey(e, "parkedClass"), e.getDuration().toNanos());
+                        }
+                        break;
+                    case "com.mastfrog.Benchmark":
+                        String name = e.getString("name");
+                        benchmarks.add(e.getBoolean("succeeded") ? name
+                                : name + " (failed: " + e.getString("outcome") + ')', e.getDuration().toNanos());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append(events).append(" events read");
+        if (truncated) {
+            sb.append(" (truncated)");
+        }
+        sb.append("\n\nHottest methods (samples):\n");
+        hot.appendTo(sb, summarySize, false);
+        sb.append("\nTop allocation sites (bytes):\n");
+        allocations.appendTo(sb, summarySize, false);
+        sb.append("\nMost contended locks (blocked time):\n");
+        locks.appendTo(sb, summarySize, true);
+        sb.append("\nSlowest benchmarks (total time):\n");
+        benchmarks.appendTo(sb, summarySize, true);
+        return sb.toString();
+    }
+
+    private static String allocationKey(RecordedEvent e) {
+        RecordedClass type = e.getClass("objectClass");
+        String site = frame(e.getStackTrace(), true);
+        return type == null ? site : type.getName() + " @ " + site;
+    }
+
+    private static String lockKey(RecordedEvent e, String field) {
+        RecordedClass type = e.hasField(field) ? e.getClass(field) : null;
+        String site = frame(e.getStackTrace(), true);
+        return (type == null ? "?" : type.getName()) + " @ " + site;
+    }
+
+    /**
+     * Get the top frame of a stack, or, for allocations and locks, the first
+     * frame which is not inside the JDK, which is usually the interesting one.
+     */
+    private static String frame(RecordedStackTrace trace, boolean skipJdk) {
+        if (trace == null || trace.getFrames().isEmpty()) {
+            return "(no stack)";
+        }
+        List<RecordedFrame> frames = trace.getFrames();
+        RecordedFrame result = frames.get(0);
+        if (skipJdk) {
+            for (RecordedFrame f : frames) {
+                String type = f.getMethod().getType().getName();
+                if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+                    result = f;
+                    break;
+                }
+            }
+        }
+        RecordedMethod m = result.getMethod();
+        return m.getType().getName() + '.' + m.getName() + (result.getLineNumber() > 0
+                ? ":" + result.getLineNumber() : "");
+    }
+
+    @Override
+    public synchronized String getStatus() {
+        return status;
+    }
+
+    @Override
+    public String getSummary() {
+        String s = summary;
+        return s == null ? "No recording has completed" : s;
+    }
+
+    @Override
+    public String[] getAvailableProfiles() {
+        List<String> result = new ArrayList<>();
+        for (Configuration c : Configuration.getConfigurations()) {
+            result.add(c.getName());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public int getMaxRecordingSeconds() {
+        return maxSeconds;
+    }
+
+    static String formatNanos(long nanos) {
+        return Duration.ofNanos(nanos).toString().substring(2).toLowerCase();
+    }
+
+    /**
+     * Counts and totals by key, which stops creating new keys once it has
+     * MAX_KEYS of them and lumps anything else under "(other)".
+     */
+    static final class Aggregate {
+
+        private final Map<String, long[]> values = new HashMap<>();
+
+        void add(String key, long amount) {
+            long[] v = values.get(key);
+            if (v == null) {
+                if (values.size() >= MAX_KEYS) {
+                    key = OTHER;
+                    v = values.get(OTHER);
+                }
+                if (v == null) {
+                    v = new long[2];
+                    values.put(key, v);
+                }
+            }
+            v[0]++;
+            v[1] += amount;
+        }
+
+        void appendTo(StringBuilder sb, int count, boolean durations) {
+            if (values.isEmpty()) {
+                sb.append("  (none)\n");
+                return;
+            }
+            List<Map.Entry<String, long[]>> entries = new ArrayList<>(values.entrySet());
+            Collections.sort(entries, (a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+            for (int i = 0; i < Math.min(count, entries.size()); i++) {
+                Map.Entry<String, long[]> e = entries.get(i);
+                sb.append("  ").append(durations ? formatNanos(e.getValue()[1]) : Long.toString(e.getValue()[1]));
+                if (durations) {
+                    sb.append(" in ").append(e.getValue()[0]);
+                }
+                sb.append('\t').append(e.getKey()).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+/**
+ * MBean for taking a short, time-boxed Flight Recorder profile of the running
+ * process and getting back a summary of it, without shell access or jcmd.
+ *
+ * @author Tim Boudreau
+ */
+public interface FlightRecorderControlMBean {
+
+    /**
+     * Start a recording which stops itself after the passed number of seconds,
+     * after which it is summarized in a background thread.
+     *
+     * @param profile The name of a JFR configuration, such as "default" or
+     * "profile"
+     * @param seconds The duration, capped at the configured maximum
+     * @return A status message
+     */
+    public String startRecording(String profile, int seconds);
+
+    public String stopRecording();
+
+    public String getStatus();
+
+    /**
+     * Get the summary of the last completed recording: hottest methods, top
+     * allocation sites, most contended locks, and the &#064;Benchmark methods
+     * which took the most time in all.
+     *
+     * @return The summary, or a message if none is available yet
+     */
+    public String getSummary();
+
+    public String[] getAvailableProfiles();
+
+    public int getMaxRecordingSeconds();
+}
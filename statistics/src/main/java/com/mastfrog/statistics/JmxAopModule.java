@@ -26,6 +26,7 @@ package com.mastfrog.statistics;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.matcher.AbstractMatcher;
 import com.google.inject.matcher.Matcher;
 import com.google.inject.matcher.Matchers;
 import com.google.inject.util.Providers;
@@ -39,14 +40,21 @@ import com.mastfrog.util.perf.Benchmark;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.management.InstanceAlreadyExistsException;
@@ -62,36 +70,170 @@ import org.aopalliance.intercept.MethodInvocation;
 /**
  * Module which handles the &#064;Benchmark annotation by creating an MBean
  * which will collect statistics on each such case.
+ * <p>
+ * If a latency threshold is configured (see {@link SlowCalls}), calls which
+ * exceed it are also captured into a bounded buffer exposed as a second MBean
+ * with <code>type=SlowCalls</code>. Each call is also reported to Flight
+ * Recorder as a {@link BenchmarkEvent} when a recording enables it, and a
+ * <code>type=FlightRecorder</code> MBean allows taking a short recording and
+ * reading back a summary of it over JMX.
+ * <p>
+ * Methods which return a CompletionStage (such as a CompletableFuture) are
+ * timed until the stage completes, and count as failed if it completes
+ * exceptionally.
+ * <p>
+ * For objects Guice does not create, see {@link BenchmarkAgent}.
+ * <p>
+ * Timings are recorded in the shared {@link MetricRegistry}, which is bound
+ * here. The Stats MBeans and a <code>type=Metrics</code> MBean read it on
+ * demand; UDP messages and, if <code>stats.text.file</code> is set, a
+ * Prometheus-format file are written from it periodically, off the calling
+ * thread.
  *
  * @author Tim Boudreau
  */
-@Defaults("stats.enable.udp=true")
+@Defaults("stats.enable.udp=true\nstats.jfr.events=true\nstats.jfr.control=true")
 public final class JmxAopModule extends AbstractModule {
 
     private MBeanServer mbeanServer;
     private UDPBroadcaster broadcaster;
+    private UdpExporter udpExporter;
+    private final MetricRegistry metrics = MetricRegistry.getDefault();
     public static final String ENABLE_UDP = "stats.enable.udp";
+    /**
+     * Address UDP statistics packets are sent to; defaults to the multicast
+     * address 224.0.0.1.
+     */
+    public static final String UDP_DEST = "stats.udp.dest";
+    /**
+     * Port UDP statistics packets are sent to.
+     */
+    public static final String UDP_PORT = "stats.udp.port";
+    static final String DEFAULT_UDP_DEST = "224.0.0.1";
+    static final int DEFAULT_UDP_PORT = 43124;
+    /**
+     * How often UDP messages for benchmarks which request them are sent.
+     */
+    public static final String UDP_INTERVAL_MILLIS = "stats.udp.interval.millis";
+    static final long DEFAULT_UDP_INTERVAL_MILLIS = 1000;
+    /**
+     * If set, the metric registry is periodically written to this file in
+     * the Prometheus text format.
+     */
+    public static final String TEXT_FILE = "stats.text.file";
+    public static final String TEXT_INTERVAL_MILLIS = "stats.text.interval.millis";
+    static final long DEFAULT_TEXT_INTERVAL_MILLIS = 15000;
+    /**
+     * Emit a Flight Recorder event for each benchmarked call while a recording
+     * which enables <code>com.mastfrog.Benchmark</code> is running.
+     */
+    public static final String ENABLE_JFR_EVENTS = "stats.jfr.events";
+    /**
+     * Register a FlightRecorderControlMBean which can take a time-boxed
+     * recording and summarize it.
+     */
+    public static final String ENABLE_JFR_CONTROL = "stats.jfr.control";
     private boolean enableUdp;
+    private final boolean jfrEvents;
+    private final Settings settings;
 
     public JmxAopModule(Settings settings) {
+        this.settings = settings;
         enableUdp = settings.getBoolean(ENABLE_UDP, true);
+        jfrEvents = settings.getBoolean(ENABLE_JFR_EVENTS, true) && JfrSupport.isAvailable();
     }
 
     @Override
     protected void configure() {
         mbeanServer = ManagementFactory.getPlatformMBeanServer();
         bind(MBeanServer.class).toInstance(mbeanServer);
-        Matcher<AnnotatedElement> m = Matchers.annotatedWith(Benchmark.class);
+        bind(MetricRegistry.class).toInstance(metrics);
+        Matcher<AnnotatedElement> m = Matchers.annotatedWith(Benchmark.class).and(new NotWoven());
         binder().bindInterceptor(Matchers.any(), m, new Benchmarker(mbeanServer, binder().getProvider(ShutdownHookRegistry.class)));
         bind(SettingsBeanBinder.class).asEagerSingleton();
+        if (JfrSupport.isAvailable() && settings.getBoolean(ENABLE_JFR_CONTROL, true)) {
+            bind(FlightRecorderControlBinder.class).asEagerSingleton();
+        }
         if (enableUdp) {
             try {
-                bind(UDPBroadcaster.class).toInstance(broadcaster = new UDPBroadcaster("224.0.0.1", 43124, shutdownHookRegistry()));
+                bind(UDPBroadcaster.class).toInstance(broadcaster = new UDPBroadcaster(
+                        settings.getString(UDP_DEST, DEFAULT_UDP_DEST),
+                        settings.getInt(UDP_PORT, DEFAULT_UDP_PORT), shutdownHookRegistry()));
             } catch (UnknownHostException ex) {
                 Logger.getLogger(JmxAopModule.class.getName()).log(Level.SEVERE, null, ex);
             } catch (SocketException ex) {
                 Logger.getLogger(JmxAopModule.class.getName()).log(Level.SEVERE, null, ex);
             }
+            if (broadcaster != null) {
+                udpExporter = new UdpExporter(broadcaster);
+            }
+        }
+        bind(Exporters.class).toInstance(new Exporters(metrics, udpExporter));
+    }
+
+    /**
+     * Registers the registry's MBean and schedules the UDP and text file
+     * exporters once the injector exists, and stops them on shutdown.
+     */
+    static final class Exporters implements Runnable {
+
+        private final MetricRegistry metrics;
+        private final UdpExporter udp;
+        private final List<ScheduledFuture<?>> scheduled = new ArrayList<>(2);
+        private MBeanServer mbeanServer;
+        private ObjectName name;
+
+        Exporters(MetricRegistry metrics, UdpExporter udp) {
+            this.metrics = metrics;
+            this.udp = udp;
+        }
+
+        @Inject
+        void start(Settings settings, MBeanServer mbeanServer, ShutdownHookRegistry reg) throws MalformedObjectNameException, MBeanRegistrationException, NotCompliantMBeanException {
+            this.mbeanServer = mbeanServer;
+            ObjectName on = new ObjectName(JmxAopModule.class.getPackage().getName(), "type", "Metrics");
+            try {
+                mbeanServer.registerMBean(new JmxExporter(metrics), on);
+                name = on;
+            } catch (InstanceAlreadyExistsException ex) {
+                // Another injector in this JVM exported the same registry
+            }
+            if (udp != null) {
+                long interval = settings.getLong(UDP_INTERVAL_MILLIS, DEFAULT_UDP_INTERVAL_MILLIS);
+                scheduled.add(metrics.schedule(udp, interval, TimeUnit.MILLISECONDS));
+            }
+            String file = settings.getString(TEXT_FILE);
+            if (file != null) {
+                long interval = settings.getLong(TEXT_INTERVAL_MILLIS, DEFAULT_TEXT_INTERVAL_MILLIS);
+                scheduled.add(metrics.schedule(new TextFileExporter(Paths.get(file)), interval, TimeUnit.MILLISECONDS));
+            }
+            reg.add(this);
+        }
+
+        @Override
+        public void run() {
+            for (ScheduledFuture<?> f : scheduled) {
+                f.cancel(false);
+            }
+            if (name != null) {
+                try {
+                    mbeanServer.unregisterMBean(name);
+                } catch (InstanceNotFoundException | MBeanRegistrationException ex) {
+                    Logger.getLogger(JmxAopModule.class.getName()).log(Level.FINE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Excludes methods of classes already instrumented by BenchmarkAgent, so
+     * calls are not counted twice.
+     */
+    static final class NotWoven extends AbstractMatcher<AnnotatedElement> {
+
+        @Override
+        public boolean matches(AnnotatedElement t) {
+            return !(t instanceof Method) || !BenchmarkRecorder.isWoven(((Method) t).getDeclaringClass());
         }
     }
 
@@ -164,6 +306,39 @@ public final class JmxAopModule extends AbstractModule {
         }
     }
 
+    static class FlightRecorderControlBinder implements Runnable {
+
+        private final FlightRecorderControl control;
+        private final MBeanServer mbeanServer;
+        private final ObjectName name;
+
+        @Inject
+        FlightRecorderControlBinder(Settings settings, MBeanServer mbeanServer, ShutdownHookRegistry reg) throws MalformedObjectNameException {
+            this.mbeanServer = mbeanServer;
+            control = new FlightRecorderControl(settings);
+            name = new ObjectName(JmxAopModule.class.getPackage().getName(), "type", "FlightRecorder");
+            try {
+                if (mbeanServer.isRegistered(name)) {
+                    mbeanServer.unregisterMBean(name);
+                }
+                mbeanServer.registerMBean(control, name);
+            } catch (InstanceAlreadyExistsException | InstanceNotFoundException | MBeanRegistrationException | NotCompliantMBeanException ex) {
+                Logger.getLogger(JmxAopModule.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            reg.add(this);
+        }
+
+        @Override
+        public void run() {
+            control.shutdown();
+            try {
+                mbeanServer.unregisterMBean(name);
+            } catch (InstanceNotFoundException | MBeanRegistrationException ex) {
+                Logger.getLogger(JmxAopModule.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+
     private class Benchmarker implements MethodInterceptor, Runnable {
 
         private final MBeanServer mbeanServer;
@@ -186,15 +361,24 @@ public final class JmxAopModule extends AbstractModule {
                     synchronized (this) {
                         bean = beans.get(name);
                         if (bean == null) {
-                            bean = new Stats();
-                            bean.name = name;
+                            bean = new Stats(name, metrics);
+                            bean.slowCalls = SlowCalls.create(name, settings);
                             beans.put(name, bean);
-                            ObjectName on = new ObjectName(mi.getThis().getClass().getPackage().getName(), "type", mi.getThis().getClass().getSuperclass().getSimpleName());
+                            String domain = mi.getThis().getClass().getPackage().getName();
+                            ObjectName on = new ObjectName(domain, "type", mi.getThis().getClass().getSuperclass().getSimpleName());
                             if (names.isEmpty()) {
                                 registry.get().add(this);
                             }
                             names.add(on);
                             mbeanServer.registerMBean(bean, on);
+                            if (bean.slowCalls != null) {
+                                ObjectName slowName = new ObjectName(domain + ":type=SlowCalls,name=" + ObjectName.quote(name));
+                                names.add(slowName);
+                                mbeanServer.registerMBean(bean.slowCalls, slowName);
+                            }
+                            if (udpExporter != null) {
+                                udpExporter.add(bean, bmk.publish());
+                            }
                         }
                     }
                 }
@@ -206,36 +390,33 @@ public final class JmxAopModule extends AbstractModule {
         }
 
         Object benchmark(Stats bean, Benchmark bmk, MethodInvocation inv) throws Throwable {
-            bean.count.incrementAndGet();
-            long start = System.currentTimeMillis();
-            bean.contention.incrementAndGet();
+            Object jfrEvent = jfrEvents ? BenchmarkEvent.start(bmk.value()) : null;
+            bean.enter();
+            long start = System.nanoTime();
+            Throwable thrown = null;
+            boolean async = false;
             try {
-                return inv.proceed();
-            } catch (InvocationTargetException ex) {
-                if (ex.getCause() != null) {
-                    throw ex.getCause();
+                Object result = inv.proceed();
+                if (result instanceof CompletionStage<?>) {
+                    // Measure until the work completes, not until it is
+                    // handed off
+                    ((CompletionStage<?>) result).whenComplete(
+                            new AsyncExit(bean, jfrEvent, start, inv.getArguments()));
+                    async = true;
                 }
-                throw ex;
+                return result;
+            } catch (InvocationTargetException ex) {
+                thrown = ex.getCause() == null ? ex : ex.getCause();
+                throw thrown;
+            } catch (Throwable t) {
+                thrown = t;
+                throw t;
             } finally {
-                bean.contention.decrementAndGet();
-                long duration = System.currentTimeMillis() - start;
-                bean.longestTime.setMaximum((int) duration);
-                bean.total.addAndGet(duration);
-                if (broadcaster != null) {
-                    for (Benchmark.Kind kind : bmk.publish()) {
-                        UDPMessage message;
-                        switch (kind) {
-                            case CALL_COUNT:
-                                message = new UDPMessage(bmk.value(), kind, bean.getInvocationCount());
-                                break;
-                            case TOTAL_TIME:
-                                message = new UDPMessage(bmk.value(), kind, bean.getTotalTimeSpent());
-                                break;
-                            default:
-                                throw new AssertionError(kind);
-                        }
-                        broadcaster.publish(message);
+                if (!async) {
+                    if (jfrEvent != null) {
+                        BenchmarkEvent.finish(jfrEvent, thrown);
                     }
+                    bean.exit(System.nanoTime() - start, inv.getArguments(), thrown != null);
                 }
             }
         }
@@ -253,4 +434,34 @@ public final class JmxAopModule extends AbstractModule {
             }
         }
     }
+
+    /**
+     * Finishes a call to a &#064;Benchmark method which returned a
+     * CompletionStage, when the stage completes.
+     */
+    static final class AsyncExit implements BiConsumer<Object, Throwable> {
+
+        private final Stats bean;
+        private final Object jfrEvent;
+        private final long start;
+        private final Object[] args;
+
+        AsyncExit(Stats bean, Object jfrEvent, long start, Object[] args) {
+            this.bean = bean;
+            this.jfrEvent = jfrEvent;
+            this.start = start;
+            this.args = args;
+        }
+
+        @Override
+        public void accept(Object result, Throwable thrown) {
+            if (thrown instanceof CompletionException && thrown.getCause() != null) {
+                thrown = thrown.getCause();
+            }
+            if (jfrEvent != null) {
+                BenchmarkEvent.finish(jfrEvent, thrown);
+            }
+            bean.exit(System.nanoTime() - start, args, thrown != null);
+        }
+    }
 }
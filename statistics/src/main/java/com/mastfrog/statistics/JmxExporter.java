@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Exposes every metric in a {@link MetricRegistry} as a read-only attribute
+ * of one MBean (registered by JmxAopModule as
+ * <code>com.mastfrog.statistics:type=Metrics</code>). Values are read when a
+ * JMX client asks for them, so this exporter has no schedule of its own.
+ * Histograms appear as <code>&lt;name&gt;.count</code>,
+ * <code>.p50Micros</code>, <code>.p99Micros</code> and
+ * <code>.maxMicros</code>.
+ *
+ * @author Tim Boudreau
+ */
+final class JmxExporter implements DynamicMBean {
+
+    private final MetricRegistry registry;
+
+    JmxExporter(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    private Map<String, Long> snapshot() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        registry.visit(new MetricVisitor() {
+            @Override
+            public void counter(MetricCounter counter) {
+                result.put(counter.name(), counter.get());
+            }
+
+            @Override
+            public void gauge(MetricGauge gauge) {
+                result.put(gauge.name(), gauge.get());
+            }
+
+            @Override
+            public void histogram(MetricHistogram histogram) {
+                String name = histogram.name();
+                result.put(name + ".count", histogram.count());
+                result.put(name + ".p50Micros", micros(histogram.valueAtPercentile(50)));
+                result.put(name + ".p99Micros", micros(histogram.valueAtPercentile(99)));
+                result.put(name + ".maxMicros", micros(histogram.max()));
+            }
+        });
+        return result;
+    }
+
+    private static long micros(long nanos) {
+        return nanos < 0 ? nanos : TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long result = snapshot().get(attribute);
+        if (result == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> snapshot = snapshot();
+        AttributeList result = new AttributeList();
+        for (String a : attributes) {
+            Long value = snapshot.get(a);
+            if (value != null) {
+                result.add(new Attribute(a, value));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attrs = new ArrayList<>();
+        for (String name : snapshot().keySet()) {
+            attrs.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        }
+        return new MBeanInfo(JmxExporter.class.getName(), "Metric registry",
+                attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null,
+                new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of positive long values (typically
+ * nanoseconds), with eight linear sub-buckets per power of two, so any
+ * recorded value is reported to within 12.5% of its actual value. Recording is
+ * a single atomic increment and never allocates.
+ *
+ * @author Tim Boudreau
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKETS - 1;
+    static final int BUCKET_COUNT = (62 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    void record(long value) {
+        buckets.incrementAndGet(indexOf(value));
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & SUB_BUCKET_MASK;
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index & SUB_BUCKET_MASK;
+        long lower = ((long) (SUB_BUCKETS + sub)) << (exp - SUB_BUCKET_BITS);
+        return lower + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    long count() {
+        long result = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            result += buckets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Get the upper bound of the bucket containing the value at the passed
+     * percentile.
+     *
+     * @param percentile A percentile between 0 and 100
+     * @return A value, or -1 if nothing has been recorded
+     */
+    long valueAtPercentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return -1;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * (Math.min(100D, percentile) / 100D)));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Compute several percentiles with one pass over the buckets, for
+     * exporters which read many histograms at a time.
+     *
+     * @param percentiles Percentiles between 0 and 100, in ascending order
+     * @param into Receives the upper bound of the bucket for each
+     * percentile, or -1 if nothing has been recorded
+     * @return The count the percentiles were computed against
+     */
+    long percentiles(double[] percentiles, long[] into) {
+        long total = count();
+        if (total == 0) {
+            for (int i = 0; i < percentiles.length; i++) {
+                into[i] = -1;
+            }
+            return 0;
+        }
+        int p = 0;
+        long target = Math.max(1, (long) Math.ceil(total * (Math.min(100D, percentiles[p]) / 100D)));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT && p < percentiles.length; i++) {
+            seen += buckets.get(i);
+            while (seen >= target) {
+                into[p++] = upperBoundOf(i);
+                if (p == percentiles.length) {
+                    break;
+                }
+                target = Math.max(1, (long) Math.ceil(total * (Math.min(100D, percentiles[p]) / 100D)));
+            }
+        }
+        // Only if buckets were reset while we were reading them
+        while (p < percentiles.length) {
+            into[p++] = upperBoundOf(BUCKET_COUNT - 1);
+        }
+        return total;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A gauge in a {@link MetricRegistry} - either a value which is set or
+ * adjusted directly, or one computed on demand by a supplier when an exporter
+ * reads it.
+ *
+ * @author Tim Boudreau
+ */
+public final class MetricGauge {
+
+    private final String name;
+    final String textName;
+    final byte[][] textFormat;
+    private final AtomicLong value = new AtomicLong();
+    private volatile LongSupplier supplier;
+
+    MetricGauge(String name, String textName) {
+        this.name = name;
+        this.textName = textName;
+        textFormat = MetricsTextFormat.gaugeText(textName);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void set(long value) {
+        this.value.set(value);
+    }
+
+    /**
+     * Adjust the value.
+     *
+     * @param delta The amount to add
+     * @return The new value
+     */
+    public long add(long delta) {
+        return value.addAndGet(delta);
+    }
+
+    void supplier(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    LongSupplier supplier() {
+        return supplier;
+    }
+
+    public long get() {
+        LongSupplier s = supplier;
+        return s == null ? value.get() : s.getAsLong();
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + get();
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.util.preconditions.Checks;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process registry of counters, gauges and histograms. Interceptors record
+ * into it once per call; {@link MetricExporter}s read it on their own
+ * schedules, so what it costs to publish metrics over JMX, UDP, statsd or a
+ * text format is paid on the export thread rather than by the call being
+ * measured.
+ * <p>
+ * Counters, gauges and histograms have separate namespaces. Looking up a
+ * metric creates it if necessary; callers on a hot path should look a metric
+ * up once and keep it.
+ *
+ * @author Tim Boudreau
+ */
+public final class MetricRegistry {
+
+    private static final MetricRegistry DEFAULT = new MetricRegistry();
+    private final ConcurrentSkipListMap<String, MetricCounter> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, MetricGauge> gauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, MetricHistogram> histograms = new ConcurrentSkipListMap<>();
+    // Every name MetricsTextFormat writes a series under; metrics are created
+    // while holding it
+    private final Set<String> textNames = new HashSet<>();
+    private ScheduledExecutorService exportThread;
+
+    /**
+     * Get the registry shared by JmxAopModule, BenchmarkAgent and
+     * StatsdModule.
+     *
+     * @return The default registry
+     */
+    public static MetricRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public MetricCounter counter(String name) {
+        MetricCounter result = counters.get(Checks.notNull("name", name));
+        if (result == null) {
+            synchronized (textNames) {
+                result = counters.get(name);
+                if (result == null) {
+                    result = new MetricCounter(name, textName(name, "_total"));
+                    counters.put(name, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    public MetricGauge gauge(String name) {
+        MetricGauge result = gauges.get(Checks.notNull("name", name));
+        if (result == null) {
+            synchronized (textNames) {
+                result = gauges.get(name);
+                if (result == null) {
+                    result = new MetricGauge(name, textName(name, ""));
+                    gauges.put(name, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get a gauge whose value is computed when it is read.
+     *
+     * @param name The name
+     * @param supplier Computes the value; replaces any previous supplier
+     * @return The gauge
+     */
+    public MetricGauge gauge(String name, LongSupplier supplier) {
+        MetricGauge result = gauge(name);
+        result.supplier(Checks.notNull("supplier", supplier));
+        return result;
+    }
+
+    /**
+     * Remove a gauge registered with {@link #gauge(String, LongSupplier)}, so
+     * the registry no longer holds its supplier (and whatever the supplier
+     * refers to). Does nothing if the gauge's supplier has since been
+     * replaced, so an object which is shut down cannot remove a gauge another
+     * has taken over.
+     *
+     * @param name The name
+     * @param supplier The supplier the gauge was registered with
+     * @return true if the gauge was removed
+     */
+    public boolean removeGauge(String name, LongSupplier supplier) {
+        Checks.notNull("supplier", supplier);
+        synchronized (textNames) {
+            MetricGauge gauge = gauges.get(Checks.notNull("name", name));
+            if (gauge == null || gauge.supplier() != supplier) {
+                return false;
+            }
+            gauges.remove(name);
+            textNames.remove(gauge.textName);
+            return true;
+        }
+    }
+
+    public MetricHistogram histogram(String name) {
+        MetricHistogram result = histograms.get(Checks.notNull("name", name));
+        if (result == null) {
+            synchronized (textNames) {
+                result = histograms.get(name);
+                if (result == null) {
+                    result = new MetricHistogram(name, textName(name, "_seconds"));
+                    histograms.put(name, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Pick the name a new metric is written under by MetricsTextFormat - its
+     * name with illegal characters replaced, plus a suffix - numbering it if
+     * another metric already writes a series by that name. Called holding
+     * textNames.
+     */
+    private String textName(String name, String suffix) {
+        String base = MetricsTextFormat.sanitize(name);
+        // Summaries also write _sum and _count series
+        boolean summary = "_seconds".equals(suffix);
+        String result = base + suffix;
+        for (int i = 2; textNames.contains(result)
+                || (summary && (textNames.contains(result + "_sum") || textNames.contains(result + "_count"))); i++) {
+            result = base + '_' + i + suffix;
+        }
+        textNames.add(result);
+        if (summary) {
+            textNames.add(result + "_sum");
+            textNames.add(result + "_count");
+        }
+        return result;
+    }
+
+    public void visit(MetricVisitor visitor) {
+        for (MetricCounter c : counters.values()) {
+            visitor.counter(c);
+        }
+        for (MetricGauge g : gauges.values()) {
+            visitor.gauge(g);
+        }
+        for (MetricHistogram h : histograms.values()) {
+            visitor.histogram(h);
+        }
+    }
+
+    /**
+     * Run an exporter periodically on this registry's export thread (a single
+     * low-priority daemon thread shared by all exporters). An exporter which
+     * throws is logged and runs again at the next interval.
+     *
+     * @param exporter The exporter
+     * @param interval The interval
+     * @param unit The unit of the interval
+     * @return A future which can be cancelled to stop exporting
+     */
+    public ScheduledFuture<?> schedule(MetricExporter exporter, long interval, TimeUnit unit) {
+        Checks.notNull("exporter", exporter);
+        Checks.greaterThanZero("interval", interval);
+        return exportThread().scheduleWithFixedDelay(new ExportTask(exporter), interval, interval, unit);
+    }
+
+    private synchronized ScheduledExecutorService exportThread() {
+        if (exportThread == null) {
+            exportThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "metric-export");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return exportThread;
+    }
+
+    private final class ExportTask implements Runnable {
+
+        private final MetricExporter exporter;
+
+        ExportTask(MetricExporter exporter) {
+            this.exporter = exporter;
+        }
+
+        @Override
+        public void run() {
+            try {
+                exporter.export(MetricRegistry.this);
+            } catch (Exception | Error ex) {
+                Logger.getLogger(MetricRegistry.class.getName()).log(Level.SEVERE,
+                        "Exception in " + exporter, ex);
+            }
+        }
+    }
+}
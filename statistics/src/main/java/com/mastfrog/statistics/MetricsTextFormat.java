@@ -0,0 +1,283 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a {@link MetricRegistry} in the Prometheus text exposition format
+ * (version 0.0.4). Counters are written as <code>&lt;name&gt;_total</code>,
+ * gauges under their own name and histograms as summaries in seconds named
+ * <code>&lt;name&gt;_seconds</code>, with the 0.5, 0.9 and 0.99 quantiles
+ * (NaN until something is recorded).
+ * Characters not legal in a metric name are replaced with underscores; if
+ * that gives two metrics the same name, as it would <code>a.b</code> and
+ * <code>a_b</code>, the one created later has <code>_2</code> (or
+ * <code>_3</code>...) added before the suffix.
+ * <p>
+ * An instance is a reusable encoder which streams through a fixed-size
+ * buffer: the encoded name lines of each metric are computed when the metric
+ * is created and kept on it, and numbers are formatted straight into the
+ * buffer, so scraping a registry with tens of thousands of series allocates
+ * nothing. Instances are not thread-safe;
+ * use one per thread, or guard one with a lock.
+ *
+ * @author Tim Boudreau
+ */
+public final class MetricsTextFormat {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99"};
+    private static final double[] PERCENTILES = {50, 90, 99};
+    // What Prometheus clients write for the quantiles of an empty summary
+    private static final byte[] NAN = ascii("NaN");
+    private static final int DEFAULT_BUFFER_SIZE = 32768;
+    private final byte[] buffer;
+    private final long[] quantiles = new long[PERCENTILES.length];
+    private final Encoder encoder = new Encoder();
+    private int pos;
+    private OutputStream out;
+
+    public MetricsTextFormat() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public MetricsTextFormat(int bufferSize) {
+        if (bufferSize < 64) {
+            throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+        }
+        buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Write every metric in the registry to the passed stream. The stream is
+     * written to in chunks of at most the buffer size, and is neither
+     * flushed nor closed.
+     *
+     * @param registry The registry
+     * @param out The stream
+     * @throws IOException If writing fails
+     */
+    public void write(MetricRegistry registry, OutputStream out) throws IOException {
+        this.out = out;
+        pos = 0;
+        try {
+            registry.visit(encoder);
+            drain();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            this.out = null;
+            pos = 0;
+        }
+    }
+
+    public static void write(MetricRegistry registry, Appendable out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        new MetricsTextFormat(4096).write(registry, bytes);
+        out.append(new String(bytes.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    private final class Encoder implements MetricVisitor {
+
+        @Override
+        public void counter(MetricCounter counter) {
+            bytes(counter.textFormat[0]);
+            number(counter.get());
+            newline();
+        }
+
+        @Override
+        public void gauge(MetricGauge gauge) {
+            bytes(gauge.textFormat[0]);
+            number(gauge.get());
+            newline();
+        }
+
+        @Override
+        public void histogram(MetricHistogram histogram) {
+            byte[][] text = histogram.textFormat;
+            long count = histogram.percentiles(PERCENTILES, quantiles);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                bytes(text[i]);
+                if (count == 0) {
+                    bytes(NAN);
+                } else {
+                    seconds(quantiles[i]);
+                }
+                newline();
+            }
+            bytes(text[QUANTILES.length]);
+            seconds(histogram.sum());
+            newline();
+            bytes(text[QUANTILES.length + 1]);
+            number(count);
+            newline();
+        }
+    }
+
+    static byte[][] counterText(String name) {
+        return new byte[][]{ascii("# TYPE " + name + " counter\n" + name + ' ')};
+    }
+
+    static byte[][] gaugeText(String name) {
+        return new byte[][]{ascii("# TYPE " + name + " gauge\n" + name + ' ')};
+    }
+
+    static byte[][] histogramText(String name) {
+        byte[][] text = new byte[QUANTILES.length + 2][];
+        for (int i = 0; i < QUANTILES.length; i++) {
+            String line = name + "{quantile=\"" + QUANTILES[i] + "\"} ";
+            text[i] = ascii(i == 0 ? "# TYPE " + name + " summary\n" + line : line);
+        }
+        text[QUANTILES.length] = ascii(name + "_sum ");
+        text[QUANTILES.length + 1] = ascii(name + "_count ");
+        return text;
+    }
+
+    private void bytes(byte[] bytes) {
+        if (bytes.length > buffer.length) {
+            drain();
+            try {
+                out.write(bytes);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return;
+        }
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void newline() {
+        ensure(1);
+        buffer[pos++] = '\n';
+    }
+
+    private void number(long value) {
+        // Long.MIN_VALUE is 20 characters with the sign
+        ensure(20);
+        if (value == Long.MIN_VALUE) {
+            for (char c : Long.toString(value).toCharArray()) {
+                buffer[pos++] = (byte) c;
+            }
+            return;
+        }
+        if (value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int end = pos + digits(value);
+        int at = end;
+        do {
+            buffer[--at] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        pos = end;
+    }
+
+    /**
+     * Writes nanoseconds as decimal seconds without going through a double,
+     * trimming trailing zeros from the fraction.
+     */
+    private void seconds(long nanos) {
+        if (nanos < 0) {
+            // Only -1 for an empty histogram, never in practice
+            number(nanos);
+            return;
+        }
+        number(nanos / 1_000_000_000L);
+        long fraction = nanos % 1_000_000_000L;
+        if (fraction == 0) {
+            return;
+        }
+        ensure(10);
+        buffer[pos++] = '.';
+        int length = 9;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            length--;
+        }
+        for (int i = pos + length - 1; i >= pos; i--) {
+            buffer[i] = (byte) ('0' + (fraction % 10));
+            fraction /= 10;
+        }
+        pos += length;
+    }
+
+    private static int digits(long value) {
+        int result = 1;
+        while (value >= 10) {
+            value /= 10;
+            result++;
+        }
+        return result;
+    }
+
+    private void ensure(int bytes) {
+        if (pos + bytes > buffer.length) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        if (pos > 0) {
+            try {
+                out.write(buffer, 0, pos);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            pos = 0;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static String sanitize(String name) {
+        StringBuilder sb = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':'
+                    || (i > 0 && c >= '0' && c <= '9');
+            if (!ok && sb == null) {
+                sb = new StringBuilder(name.length() + 1).append(name, 0, i);
+            }
+            if (sb != null) {
+                if (i == 0 && c >= '0' && c <= '9') {
+                    sb.append('_').append(c);
+                } else {
+                    sb.append(ok ? c : '_');
+                }
+            }
+        }
+        return sb == null ? name : sb.toString();
+    }
+}
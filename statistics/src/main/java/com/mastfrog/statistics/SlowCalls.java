@@ -0,0 +1,400 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.settings.Settings;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * Captures calls to a benchmarked method which take longer than a threshold
+ * into a fixed-size, lock-free ring buffer, so the last <i>n</i> outliers can
+ * be inspected over JMX or dumped as JSON. The threshold is either a fixed
+ * number of milliseconds, or a percentile of the latencies observed so far,
+ * recomputed every {@link #RECOMPUTE_INTERVAL} calls.
+ * <p>
+ * Configured from settings, globally or per-benchmark by appending
+ * <code>.</code> and the benchmark name to the key (e.g.
+ * <code>stats.slow.calls.threshold.millis.doStuff=250</code>). If neither a
+ * threshold nor a percentile is set for a benchmark, nothing is captured and
+ * there is no per-call cost.
+ *
+ * @author Tim Boudreau
+ */
+final class SlowCalls implements SlowCallsMBean {
+
+    public static final String SETTINGS_KEY_THRESHOLD_MILLIS = "stats.slow.calls.threshold.millis";
+    public static final String SETTINGS_KEY_PERCENTILE = "stats.slow.calls.percentile";
+    public static final String SETTINGS_KEY_BUFFER_SIZE = "stats.slow.calls.buffer.size";
+    public static final String SETTINGS_KEY_CAPTURE_ARGUMENTS = "stats.slow.calls.capture.arguments";
+    public static final String SETTINGS_KEY_STACK_DEPTH = "stats.slow.calls.stack.depth";
+    public static final int DEFAULT_BUFFER_SIZE = 128;
+    static final int RECOMPUTE_INTERVAL = 1024;
+    static final int MIN_PERCENTILE_SAMPLES = 1024;
+    private static final int MAX_ARGUMENT_CHARS = 64;
+    private static final int MAX_ARGUMENTS_CHARS = 256;
+
+    private final String name;
+    private final AtomicReferenceArray<SlowCall> ring;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    private final boolean captureArguments;
+    private final int stackDepth;
+    private volatile long thresholdNanos;
+    private volatile double percentile;
+    private volatile LatencyHistogram histogram;
+    private final AtomicLong samples = new AtomicLong();
+
+    SlowCalls(String name, int capacity, long thresholdMillis, double percentile, boolean captureArguments, int stackDepth) {
+        this.name = name;
+        int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 16)) * 2 - 1);
+        ring = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.captureArguments = captureArguments;
+        this.stackDepth = Math.max(0, stackDepth);
+        if (percentile > 0) {
+            setThresholdPercentile(percentile);
+        } else {
+            setThresholdMilliseconds(thresholdMillis);
+        }
+    }
+
+    static SlowCalls create(String name, Settings settings) {
+        Long millis = settings.getLong(SETTINGS_KEY_THRESHOLD_MILLIS + '.' + name);
+        Double pct = settings.getDouble(SETTINGS_KEY_PERCENTILE + '.' + name);
+        if (millis == null && pct == null) {
+            millis = settings.getLong(SETTINGS_KEY_THRESHOLD_MILLIS);
+            pct = settings.getDouble(SETTINGS_KEY_PERCENTILE);
+        }
+        if (millis == null && pct == null) {
+            return null;
+        }
+        return new SlowCalls(name, settings.getInt(SETTINGS_KEY_BUFFER_SIZE, DEFAULT_BUFFER_SIZE),
+                millis == null ? Long.MAX_VALUE : millis, pct == null ? 0 : pct,
+                settings.getBoolean(SETTINGS_KEY_CAPTURE_ARGUMENTS, false),
+                settings.getInt(SETTINGS_KEY_STACK_DEPTH, 0));
+    }
+
+    /**
+     * Called after every invocation of the benchmarked method; for calls under
+     * the threshold in fixed-threshold mode this is a single volatile read.
+     *
+     * @param nanos The elapsed time
+     * @param args The arguments to the method, which are only examined if the
+     * call was slow
+     */
+    void onCall(long nanos, Object[] args) {
+        LatencyHistogram h = histogram;
+        if (h != null) {
+            h.record(nanos);
+            if ((samples.incrementAndGet() & (RECOMPUTE_INTERVAL - 1)) == 0) {
+                recompute(h);
+            }
+        }
+        if (nanos >= thresholdNanos) {
+            record(nanos, args);
+        }
+    }
+
+    private void recompute(LatencyHistogram h) {
+        if (samples.get() >= MIN_PERCENTILE_SAMPLES) {
+            long value = h.valueAtPercentile(percentile);
+            if (value >= 0) {
+                thresholdNanos = value;
+            }
+        }
+    }
+
+    private void record(long nanos, Object[] args) {
+        long seq = cursor.getAndIncrement();
+        SlowCall call = new SlowCall(seq, System.currentTimeMillis(), nanos,
+                Thread.currentThread().getName(),
+                captureArguments ? summarize(args) : null,
+                stackDepth > 0 ? stack(stackDepth) : null);
+        ring.lazySet((int) (seq & mask), call);
+    }
+
+    static String summarize(Object[] args) {
+        if (args == null || args.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(Math.min(MAX_ARGUMENTS_CHARS, args.length * 16));
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            String s;
+            try {
+                s = String.valueOf(args[i]);
+            } catch (RuntimeException ex) {
+                s = args[i].getClass().getName() + "<" + ex + ">";
+            }
+            if (s.length() > MAX_ARGUMENT_CHARS) {
+                sb.append(s, 0, MAX_ARGUMENT_CHARS - 3).append("...");
+            } else {
+                sb.append(s);
+            }
+            if (sb.length() >= MAX_ARGUMENTS_CHARS) {
+                sb.setLength(MAX_ARGUMENTS_CHARS - 3);
+                sb.append("...");
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String[] stack(int depth) {
+        StackTraceElement[] els = new Throwable().getStackTrace();
+        List<String> result = new ArrayList<>(depth);
+        String pkg = SlowCalls.class.getPackage().getName() + '.';
+        for (StackTraceElement el : els) {
+            if (el.getClassName().startsWith(pkg)) {
+                continue;
+            }
+            result.add(el.toString());
+            if (result.size() == depth) {
+                break;
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Get the entries currently in the buffer, oldest first.
+     *
+     * @return A list of slow calls
+     */
+    List<SlowCall> snapshot() {
+        long end = cursor.get();
+        long start = Math.max(0, end - ring.length());
+        List<SlowCall> result = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            SlowCall c = ring.get((int) (i & mask));
+            // Writers may have lapped us, or not published yet
+            if (c != null && c.sequence >= start) {
+                result.add(c);
+            }
+        }
+        Collections.sort(result, BY_SEQUENCE);
+        return result;
+    }
+
+    private static final Comparator<SlowCall> BY_SEQUENCE = new Comparator<SlowCall>() {
+        @Override
+        public int compare(SlowCall a, SlowCall b) {
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getCapacity() {
+        return ring.length();
+    }
+
+    @Override
+    public long getThresholdMicroseconds() {
+        long t = thresholdNanos;
+        return t == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS.toMicros(t);
+    }
+
+    @Override
+    public void setThresholdMilliseconds(long millis) {
+        histogram = null;
+        percentile = 0;
+        thresholdNanos = millis < 0 || millis == Long.MAX_VALUE
+                ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public double getThresholdPercentile() {
+        return percentile;
+    }
+
+    @Override
+    public void setThresholdPercentile(double percentile) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be > 0 and <= 100: " + percentile);
+        }
+        this.percentile = percentile;
+        samples.set(0);
+        // Capture nothing until we have enough samples for the percentile
+        // to mean something
+        thresholdNanos = Long.MAX_VALUE;
+        histogram = new LatencyHistogram();
+    }
+
+    @Override
+    public long getSlowCallCount() {
+        return cursor.get();
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+    }
+
+    private static final String[] ITEM_NAMES = {"sequence", "timestamp",
+        "durationMicros", "thread", "arguments", "stack"};
+    private static final String[] ITEM_DESCRIPTIONS = {"Sequence number",
+        "Completion time, in milliseconds since the epoch", "Duration in microseconds",
+        "Thread name", "Summary of arguments, if captured", "Truncated stack, if captured"};
+
+    static CompositeType rowType() throws OpenDataException {
+        return new CompositeType("SlowCall", "A call which exceeded the latency threshold",
+                ITEM_NAMES, ITEM_DESCRIPTIONS, new OpenType<?>[]{SimpleType.LONG,
+                    SimpleType.LONG, SimpleType.LONG, SimpleType.STRING, SimpleType.STRING,
+                    SimpleType.STRING});
+    }
+
+    @Override
+    public TabularData getSlowCalls() throws OpenDataException {
+        CompositeType rowType = rowType();
+        TabularDataSupport result = new TabularDataSupport(new TabularType("SlowCalls",
+                "Recent slow calls to " + name, rowType, new String[]{"sequence"}));
+        for (SlowCall c : snapshot()) {
+            result.put(new CompositeDataSupport(rowType, ITEM_NAMES, new Object[]{
+                c.sequence, c.timestamp, TimeUnit.NANOSECONDS.toMicros(c.nanos),
+                c.thread, c.arguments == null ? "" : c.arguments,
+                c.stack == null ? "" : String.join("\n", c.stack)}));
+        }
+        return result;
+    }
+
+    @Override
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"name\":");
+        jsonString(name, sb);
+        sb.append(",\"thresholdMicros\":").append(getThresholdMicroseconds())
+                .append(",\"total\":").append(getSlowCallCount())
+                .append(",\"calls\":[");
+        boolean first = true;
+        for (SlowCall c : snapshot()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            c.toJson(sb);
+        }
+        return sb.append("]}").toString();
+    }
+
+    static void jsonString(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    sb.append('\\').append(c);
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    static final class SlowCall {
+
+        final long sequence;
+        final long timestamp;
+        final long nanos;
+        final String thread;
+        final String arguments;
+        final String[] stack;
+
+        SlowCall(long sequence, long timestamp, long nanos, String thread, String arguments, String[] stack) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.nanos = nanos;
+            this.thread = thread;
+            this.arguments = arguments;
+            this.stack = stack;
+        }
+
+        void toJson(StringBuilder sb) {
+            sb.append("{\"sequence\":").append(sequence)
+                    .append(",\"timestamp\":").append(timestamp)
+                    .append(",\"durationMicros\":").append(TimeUnit.NANOSECONDS.toMicros(nanos))
+                    .append(",\"thread\":");
+            jsonString(thread, sb);
+            if (arguments != null) {
+                sb.append(",\"arguments\":");
+                jsonString(arguments, sb);
+            }
+            if (stack != null) {
+                sb.append(",\"stack\":[");
+                for (int i = 0; i < stack.length; i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    jsonString(stack[i], sb);
+                }
+                sb.append(']');
+            }
+            sb.append('}');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(80);
+            toJson(sb);
+            return sb.toString();
+        }
+    }
+}
@@ -23,51 +23,107 @@
  */
 package com.mastfrog.statistics;
 
-import com.mastfrog.util.thread.AtomicMaximum;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * JMX view of the metrics recorded for one benchmark name: a histogram of
+ * call durations, a gauge of calls in progress and a counter of calls which
+ * failed, all kept in a {@link MetricRegistry}.
  *
  * @author Tim Boudreau
  */
 class Stats implements StatsMBean {
-    String name;
-    AtomicInteger count = new AtomicInteger();
-    AtomicInteger contention = new AtomicInteger();
-    AtomicMaximum longestTime = new AtomicMaximum();
-    AtomicLong total = new AtomicLong();
+
+    final String name;
+    final MetricHistogram time;
+    final MetricGauge concurrent;
+    final MetricCounter failures;
+    SlowCalls slowCalls;
+    // The registry metrics are shared with exporters and other interceptors,
+    // which expect them to only grow - reset() only moves these baselines
+    private volatile long countAdjustment;
+    private volatile long sumAtReset;
+    private volatile long failuresAtReset;
+    private final AtomicLong longestSinceReset = new AtomicLong();
+
+    Stats(String name, MetricRegistry registry) {
+        this.name = name;
+        this.time = registry.histogram(name);
+        this.concurrent = registry.gauge(name + ".concurrent");
+        this.failures = registry.counter(name + ".failures");
+    }
+
+    void enter() {
+        concurrent.add(1);
+    }
+
+    /**
+     * Record the end of a call, whether it came through the Guice
+     * interceptor or code woven by {@link BenchmarkAgent}.
+     *
+     * @param nanos The elapsed time
+     * @param args The arguments, or null if not available
+     */
+    void exit(long nanos, Object[] args) {
+        exit(nanos, args, false);
+    }
+
+    /**
+     * Record the end of a call which may have failed - by throwing, or by
+     * completing the CompletionStage it returned exceptionally.
+     *
+     * @param nanos The elapsed time
+     * @param args The arguments, or null if not available
+     * @param failed Whether the call failed
+     */
+    void exit(long nanos, Object[] args, boolean failed) {
+        if (failed) {
+            failures.increment();
+        }
+        concurrent.add(-1);
+        time.record(nanos);
+        long prev = longestSinceReset.get();
+        while (nanos > prev && !longestSinceReset.compareAndSet(prev, nanos)) {
+            prev = longestSinceReset.get();
+        }
+        SlowCalls slow = slowCalls;
+        if (slow != null) {
+            slow.onCall(nanos, args);
+        }
+    }
 
     public void reset() {
-        count.set(0);
-        contention.set(0);
-        longestTime.reset();
-        total.set(0);
+        countAdjustment = -time.count();
+        sumAtReset = time.sum();
+        failuresAtReset = failures.get();
+        longestSinceReset.set(0);
     }
-    
+
     @Override
     public int getInvocationCount() {
-        return count.get();
+        return (int) (time.count() + countAdjustment);
     }
 
     @Override
     public long getTotalTimeSpent() {
-        return total.get();
+        return TimeUnit.NANOSECONDS.toMillis(time.sum() - sumAtReset);
     }
 
     @Override
     public void setInvocationCount(int ct) {
-        count.lazySet(ct);
+        countAdjustment = ct - time.count();
     }
 
     @Override
     public long getAverageMilliseconds() {
-        return total.get() / (long) count.get();
+        int count = getInvocationCount();
+        return count <= 0 ? 0 : getTotalTimeSpent() / count;
     }
 
     @Override
     public long getLongestInvocationMilliseconds() {
-        return longestTime.getMaximum();
+        return TimeUnit.NANOSECONDS.toMillis(longestSinceReset.get());
     }
 
     @Override
@@ -77,6 +133,11 @@ class Stats implements StatsMBean {
 
     @Override
     public int getCurrentContention() {
-        return contention.get();
+        return (int) concurrent.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failures.get() - failuresAtReset;
     }
 }
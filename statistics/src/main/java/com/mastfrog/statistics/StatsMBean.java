@@ -33,6 +33,7 @@ public interface StatsMBean {
     public long getAverageMilliseconds();
     public long getLongestInvocationMilliseconds();
     public int getCurrentContention();
+    public long getFailureCount();
     public long getTotalTimeSpent();
     public String getName();
     public void reset();
@@ -57,7 +57,7 @@ import java.util.logging.Logger;
  * @author Tim Boudreau
  */
 @Singleton
-@Defaults("stats.udp.dest=224.0.0.1\nstats.udp.port=43271")
+@Defaults("stats.udp.dest=224.0.0.1\nstats.udp.port=43124")
 public final class UDPBroadcaster {
     private final InetAddress host;
     private final DatagramSocket socket;
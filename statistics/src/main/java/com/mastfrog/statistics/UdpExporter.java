@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.util.perf.Benchmark;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Publishes the UDP messages requested by <code>&#064;Benchmark(publish=...)</code>
+ * on a schedule, rather than on every call. The values are cumulative, so a
+ * listener sees the same numbers, only less often; nothing is sent for a
+ * benchmark which has not been called since the last export.
+ *
+ * @author Tim Boudreau
+ */
+final class UdpExporter implements MetricExporter {
+
+    private final UDPBroadcaster broadcaster;
+    private final ConcurrentMap<String, Published> published = new ConcurrentHashMap<>();
+
+    UdpExporter(UDPBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    void add(Stats stats, Benchmark.Kind[] kinds) {
+        if (kinds.length > 0) {
+            published.putIfAbsent(stats.name, new Published(stats, kinds));
+        }
+    }
+
+    @Override
+    public void export(MetricRegistry registry) {
+        for (Published p : published.values()) {
+            int count = p.stats.getInvocationCount();
+            if (count != p.lastCount) {
+                p.lastCount = count;
+                for (Benchmark.Kind kind : p.kinds) {
+                    switch (kind) {
+                        case CALL_COUNT:
+                            broadcaster.publish(new UDPMessage(p.stats.name, kind, count));
+                            break;
+                        case TOTAL_TIME:
+                            broadcaster.publish(new UDPMessage(p.stats.name, kind, p.stats.getTotalTimeSpent()));
+                            break;
+                        default:
+                            throw new AssertionError(kind);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Published {
+
+        final Stats stats;
+        final Benchmark.Kind[] kinds;
+        int lastCount;
+
+        Published(Stats stats, Benchmark.Kind[] kinds) {
+            this.stats = stats;
+            this.kinds = kinds;
+        }
+    }
+}
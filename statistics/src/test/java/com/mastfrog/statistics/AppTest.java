@@ -9,6 +9,7 @@ import com.mastfrog.settings.SettingsBuilder;
 import com.mastfrog.settings.SettingsRefreshInterval;
 import com.mastfrog.util.perf.Benchmark.Kind;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import javax.management.MBeanServer;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
@@ -76,6 +77,43 @@ public class AppTest {
             thing.doStuff();
         }
     }
+    @Test
+    public void testAsyncBenchmarkIsTimedWhenItCompletes() throws Exception {
+        Dependencies deps = new Dependencies(SettingsBuilder.createDefault().build(), new JmxAopModule(SettingsBuilder.createDefault().build()));
+        try {
+            AsyncThing thing = deps.getInstance(AsyncThing.class);
+            MBeanServer serv = deps.getInstance(MBeanServer.class);
+            CompletableFuture<String> first = new CompletableFuture<>();
+            assertSame(first, thing.later(first));
+            ObjectName name = new ObjectName(AsyncThing.class.getPackage().getName(), "type", "AsyncThing");
+            // Returned, but still running
+            assertEquals(0, serv.getAttribute(name, "InvocationCount"));
+            assertEquals(1, serv.getAttribute(name, "CurrentContention"));
+            Thread.sleep(100);
+            first.complete("done");
+            assertEquals(1, serv.getAttribute(name, "InvocationCount"));
+            assertEquals(0, serv.getAttribute(name, "CurrentContention"));
+            assertEquals(0L, serv.getAttribute(name, "FailureCount"));
+            long elapsed = (Long) serv.getAttribute(name, "LongestInvocationMilliseconds");
+            assertTrue(elapsed + "ms is when it returned, not completed", elapsed >= 100);
+
+            CompletableFuture<String> second = new CompletableFuture<>();
+            thing.later(second);
+            second.completeExceptionally(new IOException("Expected"));
+            assertEquals(2, serv.getAttribute(name, "InvocationCount"));
+            assertEquals(1L, serv.getAttribute(name, "FailureCount"));
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    static class AsyncThing {
+        @Benchmark("asyncThing")
+        public CompletableFuture<String> later(CompletableFuture<String> work) {
+            return work;
+        }
+    }
+
     static class InterceptedThing {
         @Benchmark(value = "hello", publish = {Benchmark.Kind.CALL_COUNT, Benchmark.Kind.TOTAL_TIME})
         public void doStuff() throws InterruptedException {
@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.util.perf.Benchmark;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class BenchmarkWeaverTest {
+
+    private static final String TARGET = Target.class.getName();
+
+    @Test
+    public void testWovenMethodsRecordStats() throws Throwable {
+        Map<String, String> configured = Collections.singletonMap("mix", "");
+        Class<?> woven = load(configured);
+        Object target = woven.getConstructor().newInstance();
+        assertTrue(BenchmarkRecorder.isWoven(woven));
+        assertFalse(BenchmarkRecorder.isWoven(BenchmarkWeaverTest.class));
+
+        Method add = woven.getMethod("add", int.class, int.class);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 2, add.invoke(target, i, 2));
+        }
+        assertEquals(3, attribute("weaver.add", "InvocationCount"));
+        assertEquals(0, attribute("weaver.add", "CurrentContention"));
+
+        Method fail = woven.getMethod("fail", String.class);
+        for (int i = 0; i < 2; i++) {
+            try {
+                fail.invoke(target, "x" + i);
+                fail("Should have thrown");
+            } catch (InvocationTargetException ex) {
+                assertTrue(ex.getCause() instanceof IllegalStateException);
+                assertEquals("x" + i, ex.getCause().getMessage());
+            }
+        }
+        assertEquals(2, attribute("weaver.fail", "InvocationCount"));
+        assertEquals(0, attribute("weaver.fail", "CurrentContention"));
+        assertEquals(2L, attribute("weaver.fail", "FailureCount"));
+        assertEquals(0L, attribute("weaver.add", "FailureCount"));
+
+        Method recover = woven.getMethod("recover", String.class);
+        assertEquals(-1, recover.invoke(target, "nope"));
+        assertEquals(12, recover.invoke(target, "12"));
+        assertEquals(2, attribute("weaver.recover", "InvocationCount"));
+        assertEquals(0, attribute("weaver.recover", "CurrentContention"));
+        assertEquals(0L, attribute("weaver.recover", "FailureCount"));
+
+        Method describe = woven.getMethod("describe", int.class);
+        assertEquals("none", describe.invoke(target, 0));
+        assertEquals("3", describe.invoke(target, 3));
+        assertEquals(2, attribute("weaver.describe", "InvocationCount"));
+        assertEquals(0, attribute("weaver.describe", "CurrentContention"));
+
+        // Nothing between entry and return for the handler to cover
+        woven.getMethod("nothing").invoke(target);
+        assertEquals(1, attribute("weaver.nothing", "InvocationCount"));
+
+        Method later = woven.getMethod("later", CompletableFuture.class);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        assertSame(first, later.invoke(target, first));
+        // Returned, but still running
+        assertEquals(0, attribute("weaver.later", "InvocationCount"));
+        assertEquals(1, attribute("weaver.later", "CurrentContention"));
+        first.complete("done");
+        assertEquals(1, attribute("weaver.later", "InvocationCount"));
+        assertEquals(0, attribute("weaver.later", "CurrentContention"));
+        CompletableFuture<String> second = new CompletableFuture<>();
+        later.invoke(target, second);
+        second.completeExceptionally(new IOException("Expected"));
+        assertEquals(2, attribute("weaver.later", "InvocationCount"));
+        assertEquals(1L, attribute("weaver.later", "FailureCount"));
+
+        Method mix = woven.getMethod("mix", long.class, double.class, int.class);
+        assertEquals(Target.mix(3L, 2.5D, 4), mix.invoke(null, 3L, 2.5D, 4));
+        assertEquals(1, attribute("BenchmarkWeaverTest$Target.mix", "InvocationCount"));
+    }
+
+    private static Object attribute(String benchmark, String attribute) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(BenchmarkWeaverTest.class.getPackage().getName()
+                + ":type=" + Target.class.getName().substring(BenchmarkWeaverTest.class.getPackage().getName().length() + 1)
+                + ",name=" + ObjectName.quote(benchmark));
+        Object result = server.getAttribute(name, attribute);
+        assertNotNull(result);
+        return result;
+    }
+
+    private static Class<?> load(Map<String, String> configured) throws IOException, ClassNotFoundException {
+        String internal = TARGET.replace('.', '/');
+        byte[] bytes;
+        try (InputStream in = BenchmarkWeaverTest.class.getClassLoader().getResourceAsStream(internal + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) > 0;) {
+                out.write(buf, 0, n);
+            }
+            bytes = out.toByteArray();
+        }
+        assertTrue(BenchmarkWeaver.contains(bytes, "Lcom/mastfrog/util/perf/Benchmark;".getBytes("US-ASCII")));
+        BenchmarkWeaver weaver = new BenchmarkWeaver(Collections.singletonMap(internal, configured));
+        byte[] woven = weaver.weave(BenchmarkWeaverTest.class.getClassLoader(), internal, bytes, configured);
+        assertNotNull(woven);
+        return new WovenLoader(TARGET, woven).loadClass(TARGET);
+    }
+
+    static final class WovenLoader extends ClassLoader {
+
+        private final String name;
+        private final byte[] bytes;
+
+        WovenLoader(String name, byte[] bytes) {
+            super(BenchmarkWeaverTest.class.getClassLoader());
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (this.name.equals(name)) {
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> result = findLoadedClass(name);
+                    if (result == null) {
+                        result = defineClass(name, bytes, 0, bytes.length);
+                    }
+                    return result;
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    public static class Target {
+
+        @Benchmark("weaver.add")
+        public int add(int a, int b) {
+            int result = a + b;
+            if (result < 0) {
+                return 0;
+            }
+            return result;
+        }
+
+        @Benchmark("weaver.fail")
+        public void fail(String msg) {
+            throw new IllegalStateException(msg);
+        }
+
+        @Benchmark("weaver.recover")
+        public int recover(String s) {
+            try {
+                return Integer.parseInt(s);
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        @Benchmark("weaver.describe")
+        public String describe(int value) {
+            if (value == 0) {
+                return "none";
+            }
+            return Integer.toString(value);
+        }
+
+        @Benchmark("weaver.nothing")
+        public void nothing() {
+        }
+
+        @Benchmark("weaver.later")
+        public CompletableFuture<String> later(CompletableFuture<String> work) {
+            return work;
+        }
+
+        public static double mix(long a, double b, int c) {
+            long x = a * c;
+            return x + b;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.IOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class FlightRecorderControlTest {
+
+    @Test
+    public void testSummaryOfARecording() throws Exception {
+        FlightRecorderControl control = new FlightRecorderControl(SettingsBuilder.createDefault().build());
+        try {
+            String status = control.startRecording("default", 60);
+            assertTrue(status, status.startsWith("Recording"));
+            assertTrue(control.startRecording("default", 60).startsWith("Already recording"));
+            for (int i = 0; i < 3; i++) {
+                call("frc.test.ok", null);
+            }
+            call("frc.test.ok", new IOException("Expected"));
+            assertEquals("Stopping", control.stopRecording());
+            for (int i = 0; i < 300 && !"Idle".equals(control.getStatus()); i++) {
+                Thread.sleep(100);
+            }
+            assertEquals("Idle", control.getStatus());
+            String summary = control.getSummary();
+            assertTrue(summary, summary.matches("(?s)\\d+ events read\n.*"));
+            assertTrue(summary, summary.contains("Hottest methods (samples):\n"));
+            assertTrue(summary, summary.contains("Top allocation sites (bytes):\n"));
+            assertTrue(summary, summary.contains("Most contended locks (blocked time):\n"));
+            int benchmarks = summary.indexOf("Slowest benchmarks (total time):\n");
+            assertTrue(summary, benchmarks > 0);
+            String tail = summary.substring(benchmarks);
+            assertTrue(summary, tail.contains(" in 3\tfrc.test.ok\n"));
+            assertTrue(summary, tail.contains(" in 1\tfrc.test.ok (failed: java.io.IOException)\n"));
+            assertEquals("Not recording", control.stopRecording());
+        } finally {
+            control.shutdown();
+        }
+    }
+
+    private static void call(String name, Throwable thrown) throws InterruptedException {
+        Object event = BenchmarkEvent.start(name);
+        assertNotNull("Benchmark events not enabled", event);
+        Thread.sleep(10);
+        BenchmarkEvent.finish(event, thrown);
+    }
+}
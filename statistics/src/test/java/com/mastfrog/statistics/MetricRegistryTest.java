@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MetricRegistryTest {
+
+    @Test
+    public void testMetricsAndVisitor() {
+        MetricRegistry reg = new MetricRegistry();
+        MetricCounter c = reg.counter("b.calls");
+        assertSame(c, reg.counter("b.calls"));
+        c.increment();
+        c.add(4);
+        c.decrement();
+        assertEquals(4, c.get());
+
+        reg.gauge("a.depth").set(7);
+        final AtomicLong supplied = new AtomicLong(3);
+        MetricGauge g = reg.gauge("c.size", supplied::get);
+        supplied.set(11);
+        assertEquals(11, g.get());
+
+        MetricHistogram h = reg.histogram("b.calls");
+        for (int i = 1; i <= 100; i++) {
+            h.record(i * 1000L);
+        }
+        assertEquals(100, h.count());
+        assertEquals(5050000, h.sum());
+        assertEquals(100000, h.max());
+        long p50 = h.valueAtPercentile(50);
+        assertTrue(p50 + "", p50 >= 50000 && p50 <= 50000 * 1.125);
+
+        final List<String> seen = new ArrayList<>();
+        reg.visit(new MetricVisitor() {
+            @Override
+            public void counter(MetricCounter counter) {
+                seen.add("c:" + counter.name());
+            }
+
+            @Override
+            public void gauge(MetricGauge gauge) {
+                seen.add("g:" + gauge.name());
+            }
+
+            @Override
+            public void histogram(MetricHistogram histogram) {
+                seen.add("h:" + histogram.name());
+            }
+        });
+        assertEquals("[c:b.calls, g:a.depth, g:c.size, h:b.calls]", seen.toString());
+    }
+
+    @Test
+    public void testTextFormat() throws Exception {
+        MetricRegistry reg = new MetricRegistry();
+        reg.counter("http.requests").add(3);
+        reg.gauge("9lives").set(-2);
+        reg.histogram("db-query").record(TimeUnit.MILLISECONDS.toNanos(2));
+        StringBuilder sb = new StringBuilder();
+        MetricsTextFormat.write(reg, sb);
+        String text = sb.toString();
+        assertTrue(text, text.contains("# TYPE http_requests_total counter\nhttp_requests_total 3\n"));
+        assertTrue(text, text.contains("# TYPE _9lives gauge\n_9lives -2\n"));
+        assertTrue(text, text.contains("# TYPE db_query_seconds summary\n"));
+        assertTrue(text, text.contains("db_query_seconds{quantile=\"0.99\"} 0.002"));
+        assertTrue(text, text.contains("db_query_seconds_sum 0.002\n"));
+        assertTrue(text, text.contains("db_query_seconds_count 1\n"));
+    }
+
+    @Test
+    public void testNamesWhichCollideInTextFormatAreNumbered() throws Exception {
+        MetricRegistry reg = new MetricRegistry();
+        reg.counter("a.b").add(1);
+        reg.counter("a_b").add(2);
+        reg.gauge("a_b_total").set(3);
+        reg.histogram("c");
+        reg.gauge("c_seconds_count").set(4);
+        StringBuilder sb = new StringBuilder();
+        MetricsTextFormat.write(reg, sb);
+        String text = sb.toString();
+        // The metric created first keeps the plain name
+        assertTrue(text, text.contains("# TYPE a_b_total counter\na_b_total 1\n"));
+        assertTrue(text, text.contains("# TYPE a_b_2_total counter\na_b_2_total 2\n"));
+        assertTrue(text, text.contains("# TYPE a_b_total_2 gauge\na_b_total_2 3\n"));
+        assertTrue(text, text.contains("# TYPE c_seconds_count_2 gauge\nc_seconds_count_2 4\n"));
+        assertEquals(text, 1, text.split("# TYPE a_b_total ", -1).length - 1);
+        // Looking a metric up again does not rename it
+        assertEquals(2, reg.counter("a_b").get());
+        StringBuilder again = new StringBuilder();
+        MetricsTextFormat.write(reg, again);
+        assertEquals(text, again.toString());
+    }
+
+    @Test
+    public void testRemoveGauge() throws Exception {
+        MetricRegistry reg = new MetricRegistry();
+        LongSupplier first = () -> 1;
+        LongSupplier second = () -> 2;
+        reg.gauge("queue.depth", first);
+        // Taken over by another supplier, so the first owner cannot remove it
+        MetricGauge g = reg.gauge("queue.depth", second);
+        assertFalse(reg.removeGauge("queue.depth", first));
+        assertEquals(2, g.get());
+        assertTrue(reg.removeGauge("queue.depth", second));
+        assertFalse(reg.removeGauge("queue.depth", second));
+        StringBuilder sb = new StringBuilder();
+        MetricsTextFormat.write(reg, sb);
+        assertFalse(sb.toString(), sb.toString().contains("queue_depth"));
+        // The name is free for a new gauge, which is not numbered
+        reg.gauge("queue.depth", first);
+        sb.setLength(0);
+        MetricsTextFormat.write(reg, sb);
+        assertTrue(sb.toString(), sb.toString().contains("# TYPE queue_depth gauge\nqueue_depth 1\n"));
+    }
+
+    @Test
+    public void testStatsResetLeavesTheRegistryAlone() {
+        MetricRegistry reg = new MetricRegistry();
+        Stats stats = new Stats("resettable", reg);
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        stats.enter();
+        stats.exit(50 * ms, null, true);
+        stats.enter();
+        stats.exit(10 * ms, null);
+        stats.reset();
+        assertEquals(0, stats.getInvocationCount());
+        assertEquals(0, stats.getTotalTimeSpent());
+        assertEquals(0, stats.getLongestInvocationMilliseconds());
+        assertEquals(0, stats.getFailureCount());
+        stats.enter();
+        stats.exit(20 * ms, null);
+        assertEquals(1, stats.getInvocationCount());
+        assertEquals(20, stats.getTotalTimeSpent());
+        assertEquals(20, stats.getLongestInvocationMilliseconds());
+        // What exporters read only ever grows
+        MetricHistogram shared = reg.histogram("resettable");
+        assertEquals(3, shared.count());
+        assertEquals(80 * ms, shared.sum());
+        assertEquals(50 * ms, shared.max());
+        assertEquals(1, reg.counter("resettable.failures").get());
+    }
+
+    @Test
+    public void testStreamingThroughSmallBuffer() throws Exception {
+        MetricRegistry reg = new MetricRegistry();
+        for (int i = 0; i < 200; i++) {
+            reg.counter("calls.method" + i).add(i * 1000L);
+            reg.gauge("depth" + i).set(Long.MIN_VALUE + i);
+            reg.histogram("time.method" + i).record(1_500_000_000L + i);
+        }
+        reg.histogram("empty");
+        StringBuilder expected = new StringBuilder();
+        MetricsTextFormat.write(reg, expected);
+        MetricsTextFormat format = new MetricsTextFormat(64);
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            format.write(reg, out);
+            assertEquals(expected.toString(), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+        }
+        String text = expected.toString();
+        assertTrue(text, text.contains("calls_method199_total 199000\n"));
+        assertTrue(text, text.contains("depth0 -9223372036854775808\n"));
+        assertTrue(text, text.contains("time_method7_seconds_sum 1.500000007\n"));
+        assertTrue(text, text.contains("time_method7_seconds_count 1\n"));
+        assertTrue(text, text.contains("empty_seconds{quantile=\"0.5\"} NaN\n"));
+        assertTrue(text, text.contains("empty_seconds_count 0\n"));
+    }
+
+    @Test
+    public void testScheduledExporterSurvivesExceptions() throws Exception {
+        MetricRegistry reg = new MetricRegistry();
+        final CountDownLatch latch = new CountDownLatch(3);
+        ScheduledFuture<?> f = reg.schedule(new MetricExporter() {
+            @Override
+            public void export(MetricRegistry registry) throws Exception {
+                latch.countDown();
+                throw new Exception("Expected");
+            }
+        }, 5, TimeUnit.MILLISECONDS);
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } finally {
+            f.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statistics;
+
+import com.mastfrog.statistics.SlowCalls.SlowCall;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class SlowCallsTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testFixedThreshold() throws Exception {
+        SlowCalls calls = new SlowCalls("thing", 4, 10, 0, true, 3);
+        assertEquals(4, calls.getCapacity());
+        calls.onCall(5 * MS, new Object[]{"a"});
+        assertTrue(calls.snapshot().isEmpty());
+        for (int i = 0; i < 6; i++) {
+            calls.onCall((10 + i) * MS, new Object[]{"arg" + i, i});
+        }
+        assertEquals(6, calls.getSlowCallCount());
+        List<SlowCall> snap = calls.snapshot();
+        assertEquals(4, snap.size());
+        assertEquals(2, snap.get(0).sequence);
+        assertEquals(5, snap.get(3).sequence);
+        assertEquals("arg5, 5", snap.get(3).arguments);
+        assertEquals(3, snap.get(3).stack.length);
+        assertFalse(snap.get(3).stack[0].startsWith(SlowCalls.class.getName()));
+
+        TabularData td = calls.getSlowCalls();
+        assertEquals(4, td.size());
+        CompositeData row = td.get(new Object[]{5L});
+        assertEquals(15000L, row.get("durationMicros"));
+        assertEquals(Thread.currentThread().getName(), row.get("thread"));
+
+        String json = calls.toJson();
+        assertTrue(json, json.startsWith("{\"name\":\"thing\",\"thresholdMicros\":10000,\"total\":6,\"calls\":[{\"sequence\":2,"));
+        calls.clear();
+        assertTrue(calls.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testPercentileThreshold() {
+        SlowCalls calls = new SlowCalls("pct", 16, Long.MAX_VALUE, 99, false, 0);
+        assertEquals(-1, calls.getThresholdMicroseconds());
+        for (int i = 0; i < SlowCalls.MIN_PERCENTILE_SAMPLES; i++) {
+            calls.onCall(MS, null);
+        }
+        assertTrue(calls.snapshot().isEmpty());
+        long threshold = calls.getThresholdMicroseconds();
+        assertTrue("Threshold " + threshold, threshold >= 1000 && threshold < 1200);
+        calls.onCall(MS / 2, null);
+        calls.onCall(50 * MS, null);
+        List<SlowCall> snap = calls.snapshot();
+        assertEquals(1, snap.size());
+        assertEquals(50 * MS, snap.get(0).nanos);
+        assertEquals(null, snap.get(0).arguments);
+    }
+
+    @Test
+    public void testSummarizeTruncates() {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            big.append('x');
+        }
+        String s = SlowCalls.summarize(new Object[]{big, big, big, big, big, big});
+        assertEquals(256, s.length());
+        assertTrue(s.endsWith("..."));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statsd.aop;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event emitted for each call to a &#064;Metric method.
+ * Enabled and thresholded through JFR settings under the event name
+ * <code>com.mastfrog.Metric</code>. Only referenced when the JFR API is known
+ * to be present, and does not allocate when no recording is running.
+ *
+ * @author Tim Boudreau
+ */
+@Name("com.mastfrog.Metric")
+@Label("Metric")
+@Category({"Mastfrog", "Statsd"})
+@Description("A call to a method annotated with @Metric")
+@StackTrace(false)
+@Threshold("0 ms")
+final class MetricEvent extends Event {
+
+    private static final String SUCCESS = "success";
+
+    @Label("Name")
+    @Description("The metric name")
+    String name;
+
+    @Label("Type")
+    @Description("The kind of metric")
+    String type;
+
+    @Label("Outcome")
+    @Description("\"success\" or the type of exception thrown")
+    String outcome;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    static Object start(Metric metric) {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        MetricEvent event = new MetricEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.name = metric.value();
+        event.type = metric.type().name();
+        event.begin();
+        return event;
+    }
+
+    static void finish(Object event, Throwable thrown) {
+        MetricEvent ev = (MetricEvent) event;
+        ev.end();
+        if (ev.shouldCommit()) {
+            ev.succeeded = thrown == null;
+            ev.outcome = thrown == null ? SUCCESS : thrown.getClass().getName();
+            ev.commit();
+        }
+    }
+}
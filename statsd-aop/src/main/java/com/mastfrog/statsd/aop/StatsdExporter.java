@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.statsd.aop;
+
+import com.google.inject.Provider;
+import com.mastfrog.statistics.MetricCounter;
+import com.mastfrog.statistics.MetricExporter;
+import com.mastfrog.statistics.MetricRegistry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Sends the registry counters behind &#064;Metric annotations to statsd on a
+ * schedule, instead of from the annotated call, as the change since the last
+ * export. Timers and concurrency are not sent from here - statsd needs each
+ * call's value to compute its own percentiles and counts.
+ *
+ * @author Tim Boudreau
+ */
+final class StatsdExporter implements MetricExporter {
+
+    private final Provider<StatsdClient> client;
+    private final ConcurrentMap<String, Exported> exported = new ConcurrentHashMap<>();
+
+    StatsdExporter(Provider<StatsdClient> client) {
+        this.client = client;
+    }
+
+    void counter(String statsdName, MetricCounter counter) {
+        exported.putIfAbsent(statsdName, new ExportedCounter(statsdName, counter));
+    }
+
+    @Override
+    public void export(MetricRegistry registry) {
+        StatsdClient c = client.get();
+        for (Exported e : exported.values()) {
+            e.export(c);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StatsdExporter(" + exported.keySet() + ")";
+    }
+
+    private abstract static class Exported {
+
+        final String name;
+
+        Exported(String name) {
+            this.name = name;
+        }
+
+        abstract void export(StatsdClient client);
+    }
+
+    private static final class ExportedCounter extends Exported {
+
+        private final MetricCounter counter;
+        private long last;
+
+        ExportedCounter(String name, MetricCounter counter) {
+            super(name);
+            this.counter = counter;
+            // The registry may outlive an injector; only send what happens
+            // from here on
+            last = counter.get();
+        }
+
+        @Override
+        void export(StatsdClient client) {
+            long value = counter.get();
+            long delta = value - last;
+            if (delta != 0) {
+                last = value;
+                client.count(name, (int) delta);
+            }
+        }
+    }
+}
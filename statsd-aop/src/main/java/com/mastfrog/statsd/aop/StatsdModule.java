@@ -1,32 +1,46 @@
 package com.mastfrog.statsd.aop;
 
-import com.google.common.collect.Maps;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 import com.google.inject.matcher.Matcher;
 import com.google.inject.matcher.Matchers;
 import com.google.inject.name.Names;
-import com.mastfrog.function.misc.QuietAutoClosable;
 import com.mastfrog.giulius.Dependencies;
 import com.mastfrog.giulius.annotations.Defaults;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
+import com.mastfrog.statistics.MetricCounter;
+import com.mastfrog.statistics.MetricGauge;
+import com.mastfrog.statistics.MetricHistogram;
+import com.mastfrog.statistics.MetricRegistry;
+import static com.mastfrog.statsd.aop.StatsdModule.SETTINGS_KEY_EXPORT_INTERVAL_MILLIS;
+import static com.mastfrog.statsd.aop.StatsdModule.SETTINGS_KEY_JFR_EVENTS;
 import static com.mastfrog.statsd.aop.StatsdModule.SETTINGS_KEY_STATSD_HOST;
 import static com.mastfrog.statsd.aop.StatsdModule.SETTINGS_KEY_STATSD_PORT;
 import static com.mastfrog.statsd.aop.StatsdModule.SETTINGS_KEY_STATSD_PREFIX;
 import static com.mastfrog.statsd.aop.StatsdModule.SETTINGS_KEY_STATSD_TIME_TO_LIVE;
+import com.mastfrog.util.perf.Benchmark;
 import com.mastfrog.util.preconditions.ConfigurationError;
 import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Method;
 import java.time.Duration;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 
@@ -39,11 +53,24 @@ import org.aopalliance.intercept.MethodInvocation;
  * <p>
  * Also set <code>statsd.prefix</code>, <code>statsd.host</code> and
  * <code>statsd.port</code> to choose the name and where to send data.
+ * <p>
+ * Calls to &#064;Metric methods are recorded in the shared
+ * {@link MetricRegistry}. INCREMENT and DECREMENT counts are sent to statsd
+ * from there every <code>statsd.export.interval.millis</code> (one second by
+ * default) rather than from the calling thread; TIME and CONCURRENCY values
+ * are still sent for each call, since statsd aggregates those itself and an
+ * average or a sample of them would skew what it reports.
+ * <p>
+ * TIME and CONCURRENCY metrics on methods which return a CompletionStage
+ * measure until the stage completes. Calls to them which fail, or whose stage
+ * completes exceptionally, are also counted as
+ * <code>&lt;name&gt;.failures</code>.
  *
  * @author Tim Boudreau
  */
 @Defaults(SETTINGS_KEY_STATSD_PORT + "=49601\n" + SETTINGS_KEY_STATSD_HOST + "=localhost\n"
-        + SETTINGS_KEY_STATSD_PREFIX + "=noname\n" + SETTINGS_KEY_STATSD_TIME_TO_LIVE + "=-1\n")
+        + SETTINGS_KEY_STATSD_PREFIX + "=noname\n" + SETTINGS_KEY_STATSD_TIME_TO_LIVE + "=-1\n"
+        + SETTINGS_KEY_JFR_EVENTS + "=true\n" + SETTINGS_KEY_EXPORT_INTERVAL_MILLIS + "=1000\n")
 public class StatsdModule extends AbstractModule implements StatsdConfig<StatsdModule> {
 
     public static final String SETTINGS_KEY_STATSD_PREFIX = "statsd.prefix";
@@ -51,6 +78,19 @@ public class StatsdModule extends AbstractModule implements StatsdConfig<StatsdM
     public static final String SETTINGS_KEY_STATSD_PORT = "statsd.port";
     public static final String SETTINGS_KEY_STATSD_ENABLED = "statsd.enabled";
     public static final String SETTINGS_KEY_STATSD_TIME_TO_LIVE = "statsd.ttl";
+    /**
+     * Emit a Flight Recorder event (<code>com.mastfrog.Metric</code>) for each
+     * intercepted call while a recording which enables it is running.
+     */
+    public static final String SETTINGS_KEY_JFR_EVENTS = "statsd.jfr.events";
+
+    /**
+     * How often, in milliseconds, counts recorded by INCREMENT and DECREMENT
+     * &#064;Metric methods are sent to statsd. If zero, each call is sent to
+     * the client as it happens.
+     */
+    public static final String SETTINGS_KEY_EXPORT_INTERVAL_MILLIS = "statsd.export.interval.millis";
+    public static final long DEFAULT_EXPORT_INTERVAL_MILLIS = 1000;
 
     public static final String SETTINGS_KEY_PERIODIC_INTERVAL_SECONDS = "statsd.periodic.interval.seconds";
     public static final int DEFAULT_PERIODIC_INTERVAL_SECONDS = 240;
@@ -146,7 +186,15 @@ public class StatsdModule extends AbstractModule implements StatsdConfig<StatsdM
         }
         if (enabled) {
             Matcher<AnnotatedElement> m = Matchers.annotatedWith(Metric.class);
-            binder().bindInterceptor(Matchers.any(), m, new MetricInterceptor(binder().getProvider(StatsdClient.class)));
+            boolean jfr = settings.getBoolean(SETTINGS_KEY_JFR_EVENTS, true) && jfrAvailable();
+            long interval = settings.getLong(SETTINGS_KEY_EXPORT_INTERVAL_MILLIS, DEFAULT_EXPORT_INTERVAL_MILLIS);
+            StatsdExporter exporter = null;
+            if (interval > 0) {
+                exporter = new StatsdExporter(binder().getProvider(StatsdClient.class));
+                bind(ExportStarter.class).toInstance(new ExportStarter(exporter, interval));
+            }
+            binder().bindInterceptor(Matchers.any(), m, new MetricInterceptor(binder().getProvider(StatsdClient.class),
+                    binder().getProvider(Injector.class), exporter, jfr));
             onConfigure();
             if (enabled && !periodics.isEmpty()) {
                 bind(new TL()).toInstance(periodics);
@@ -155,6 +203,17 @@ public class StatsdModule extends AbstractModule implements StatsdConfig<StatsdM
         }
     }
 
+    private static boolean jfrAvailable() {
+        // Checked here rather than in MetricEvent, which cannot be loaded
+        // at all on a JVM without jdk.jfr
+        try {
+            Class.forName("jdk.jfr.Event", false, StatsdModule.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
     private static class PeriodicsStarter implements Runnable {
 
         private final Timer timer = new java.util.Timer("statsd.periodic", true);
@@ -228,47 +287,253 @@ public class StatsdModule extends AbstractModule implements StatsdConfig<StatsdM
         }
     }
 
-    private static class MetricInterceptor implements MethodInterceptor {
+    private static final class MetricInterceptor implements MethodInterceptor {
 
         private final Provider<StatsdClient> clientProvider;
-        private final Map<String, AtomicInteger> concurrency
-                = Maps.newConcurrentMap();
+        private final Provider<Injector> injector;
+        private final ConcurrentMap<Method, Handler> handlers = new ConcurrentHashMap<>();
+        private final StatsdExporter exporter;
+        private final boolean jfr;
 
-        public MetricInterceptor(Provider<StatsdClient> client) {
+        MetricInterceptor(Provider<StatsdClient> client, Provider<Injector> injector, StatsdExporter exporter, boolean jfr) {
             this.clientProvider = client;
+            this.injector = injector;
+            this.exporter = exporter;
+            this.jfr = jfr;
+        }
+
+        private Handler handler(Method method) {
+            Handler result = handlers.get(method);
+            if (result == null) {
+                Metric metric = method.getAnnotation(Metric.class);
+                Benchmark bmk = method.getAnnotation(Benchmark.class);
+                // If JmxAopModule is installed, a method with both annotations
+                // is already timed, and its concurrency and failures kept, by
+                // its interceptor, into the same registry
+                boolean benchmarked = bmk != null
+                        && injector.get().getExistingBinding(Key.get(MetricRegistry.class)) != null;
+                boolean async = CompletionStage.class.isAssignableFrom(method.getReturnType());
+                result = new Handler(metric, benchmarked ? bmk.value() : null, async, exporter != null);
+                Handler old = handlers.putIfAbsent(method, result);
+                if (old != null) {
+                    result = old;
+                } else if (exporter != null) {
+                    result.export(exporter);
+                }
+            }
+            return result;
         }
 
         @Override
         public Object invoke(MethodInvocation invocation) throws Throwable {
-            Metric metric = invocation.getMethod().getAnnotation(Metric.class);
+            Handler handler = handler(invocation.getMethod());
             StatsdClient client = clientProvider.get();
+            Object event = jfr ? MetricEvent.start(handler.metric) : null;
+            long token = handler.enter(client);
+            boolean async = false;
+            Throwable thrown = null;
+            try {
+                Object result = invocation.proceed();
+                if (handler.async && result != null) {
+                    // Measure until the work completes, not until it is
+                    // handed off
+                    ((CompletionStage<?>) result).whenComplete(new Completion(handler, client, event, token));
+                    async = true;
+                }
+                return result;
+            } catch (Throwable t) {
+                thrown = t;
+                throw t;
+            } finally {
+                if (!async) {
+                    handler.exit(client, event, token, thrown);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes a call to a &#064;Metric method which returned a
+     * CompletionStage, when the stage completes.
+     */
+    private static final class Completion implements BiConsumer<Object, Throwable> {
+
+        private final Handler handler;
+        private final StatsdClient client;
+        private final Object event;
+        private final long token;
+
+        Completion(Handler handler, StatsdClient client, Object event, long token) {
+            this.handler = handler;
+            this.client = client;
+            this.event = event;
+            this.token = token;
+        }
+
+        @Override
+        public void accept(Object result, Throwable thrown) {
+            if (thrown instanceof CompletionException && thrown.getCause() != null) {
+                thrown = thrown.getCause();
+            }
+            handler.exit(client, event, token, thrown);
+        }
+    }
+
+    /**
+     * What a &#064;Metric method records into, looked up once per method.
+     */
+    private static final class Handler {
+
+        final Metric metric;
+        // The @Benchmark name JmxAopModule records this method under, if it does
+        final String benchmark;
+        final boolean async;
+        // Counts are sent by the StatsdExporter, not as they happen
+        final boolean batched;
+        final MetricCounter counter;
+        final MetricGauge gauge;
+        final MetricHistogram histogram;
+        final MetricCounter failures;
+        private final String failuresName;
+        // What is sent to statsd for a CONCURRENCY metric on a benchmarked
+        // method, whose registry gauge JmxAopModule maintains
+        private final AtomicLong inFlight;
+
+        Handler(Metric metric, String benchmark, boolean async, boolean batched) {
+            this.metric = metric;
+            this.benchmark = benchmark;
+            this.async = async;
+            this.batched = batched;
+            MetricRegistry registry = MetricRegistry.getDefault();
+            String registryName = metric.value();
+            inFlight = benchmark != null && metric.type() == Metric.Types.CONCURRENCY ? new AtomicLong() : null;
             switch (metric.type()) {
                 case INCREMENT:
-                    client.increment(metric.value());
-                    return invocation.proceed();
                 case DECREMENT:
-                    client.decrement(metric.value());
-                    return invocation.proceed();
+                    counter = registry.counter(registryName);
+                    gauge = null;
+                    histogram = null;
+                    break;
                 case TIME:
-                    try (QuietAutoClosable c = client.benchmark(metric.value())) {
-                        return invocation.proceed();
+                    counter = null;
+                    gauge = null;
+                    histogram = benchmark == null ? registry.histogram(registryName) : null;
+                    break;
+                case CONCURRENCY:
+                    counter = null;
+                    gauge = benchmark == null ? registry.gauge(registryName + ".concurrent") : null;
+                    histogram = null;
+                    break;
+                default:
+                    throw new AssertionError(metric.type());
+            }
+            // Counters count calls, not outcomes; a benchmarked method's
+            // failures are counted by JmxAopModule, and only read here
+            boolean countFailures = metric.type() == Metric.Types.TIME || metric.type() == Metric.Types.CONCURRENCY;
+            failures = countFailures ? registry.counter((benchmark == null ? registryName : benchmark) + ".failures") : null;
+            failuresName = countFailures ? metric.value() + ".failures" : null;
+        }
+
+        /**
+         * Record the start of a call.
+         *
+         * @return The start time for timers, the concurrency for gauges
+         */
+        long enter(StatsdClient client) {
+            switch (metric.type()) {
+                case INCREMENT:
+                    counter.increment();
+                    if (!batched) {
+                        client.increment(metric.value());
                     }
+                    return 0;
+                case DECREMENT:
+                    counter.decrement();
+                    if (!batched) {
+                        client.decrement(metric.value());
+                    }
+                    return 0;
+                case TIME:
+                    return System.nanoTime();
                 case CONCURRENCY:
-                    AtomicInteger threadCount = concurrency.get(metric.value());
-                    if (threadCount == null) {
-                        threadCount = new AtomicInteger();
-                        concurrency.put(metric.value(), threadCount);
+                    return gauge == null ? inFlight.incrementAndGet() : gauge.add(1);
+                default:
+                    throw new AssertionError(metric.type());
+            }
+        }
+
+        /**
+         * Record the end of a call - when it returns, or when the
+         * CompletionStage it returned completes.
+         */
+        void exit(StatsdClient client, Object event, long token, Throwable thrown) {
+            switch (metric.type()) {
+                case TIME:
+                    long nanos = System.nanoTime() - token;
+                    if (histogram != null) {
+                        histogram.record(nanos);
                     }
-                    int count = threadCount.incrementAndGet();
-                    try {
-                        return invocation.proceed();
-                    } finally {
-                        threadCount.decrementAndGet();
-                        client.count(metric.value(), count);
+                    client.time(metric.value(), (int) TimeUnit.NANOSECONDS.toMillis(nanos));
+                    break;
+                case CONCURRENCY:
+                    if (gauge == null) {
+                        inFlight.decrementAndGet();
+                    } else {
+                        gauge.add(-1);
                     }
+                    client.count(metric.value(), (int) token);
+                    break;
                 default:
-                    throw new AssertionError();
+                    break;
+            }
+            if (thrown != null && failures != null) {
+                if (benchmark == null) {
+                    failures.increment();
+                }
+                if (!batched) {
+                    client.increment(failuresName);
+                }
+            }
+            if (event != null) {
+                MetricEvent.finish(event, thrown);
             }
         }
+
+        void export(StatsdExporter exporter) {
+            if (counter != null) {
+                exporter.counter(metric.value(), counter);
+            }
+            if (failures != null) {
+                exporter.counter(failuresName, failures);
+            }
+        }
+    }
+
+    /**
+     * Schedules the StatsdExporter once the injector exists, and flushes and
+     * stops it on shutdown.
+     */
+    private static final class ExportStarter implements Runnable {
+
+        private final StatsdExporter exporter;
+        private final long interval;
+        private ScheduledFuture<?> future;
+
+        ExportStarter(StatsdExporter exporter, long interval) {
+            this.exporter = exporter;
+            this.interval = interval;
+        }
+
+        @Inject
+        void start(ShutdownHookRegistry reg) {
+            future = MetricRegistry.getDefault().schedule(exporter, interval, TimeUnit.MILLISECONDS);
+            reg.add(this);
+        }
+
+        @Override
+        public void run() {
+            future.cancel(false);
+            exporter.export(MetricRegistry.getDefault());
+        }
     }
 }
@@ -0,0 +1,78 @@
+package com.mastfrog.statsd.aop;
+
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.statistics.JmxAopModule;
+import com.mastfrog.statistics.MetricRegistry;
+import com.mastfrog.statsd.aop.StatsdBenchmarkTest.M;
+import com.mastfrog.util.perf.Benchmark;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that a method with both &#064;Metric and &#064;Benchmark is recorded
+ * once in the registry, by JmxAopModule, and still sent to statsd per call.
+ *
+ * @author Tim Boudreau
+ */
+@RunWith(GuiceRunner.class)
+@TestWith({M.class, JmxAopModule.class})
+public class StatsdBenchmarkTest {
+
+    @Test
+    public void testBenchmarkedMethodsAreRecordedOnce(StatsdClient client, Fixture fixture, Concurrent concurrent) throws Exception {
+        StatsdExportTest.Recorder r = (StatsdExportTest.Recorder) client;
+        MetricRegistry reg = MetricRegistry.getDefault();
+        long timed = reg.histogram("both.timed").count();
+        long failures = reg.counter("both.timed.failures").get();
+        fixture.timed(false);
+        fixture.timed(false);
+        try {
+            fixture.timed(true);
+            fail("Should have thrown");
+        } catch (IllegalStateException expected) {
+            // do nothing
+        }
+        assertEquals(3, reg.histogram("both.timed").count() - timed);
+        assertEquals(1, reg.counter("both.timed.failures").get() - failures);
+
+        concurrent.run();
+        assertEquals(0, reg.gauge("both.concurrent.concurrent").get());
+
+        List<String> calls = r.calls();
+        assertEquals(calls.toString(), 3, calls.stream().filter("time:both.timed"::equals).count());
+        assertEquals(calls.toString(), 1, calls.stream().filter("increment:both.timed.failures"::equals).count());
+        assertEquals(calls.toString(), 1, calls.stream().filter("count:both.concurrent:1"::equals).count());
+    }
+
+    static class Fixture {
+
+        @Benchmark("both.timed")
+        @Metric(value = "both.timed", type = Metric.Types.TIME)
+        public void timed(boolean fail) {
+            if (fail) {
+                throw new IllegalStateException("Expected");
+            }
+        }
+    }
+
+    // JmxAopModule registers one MBean per class
+    static class Concurrent {
+
+        @Benchmark("both.concurrent")
+        @Metric(value = "both.concurrent", type = Metric.Types.CONCURRENCY)
+        public void run() {
+        }
+    }
+
+    static class M extends StatsdModule {
+
+        public M(Settings settings) {
+            super(settings, StatsdExportTest.Recorder.class);
+        }
+    }
+}
@@ -8,7 +8,9 @@ import com.mastfrog.settings.Settings;
 import com.mastfrog.statsd.aop.StatsdClientTest.M;
 import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Inject;
@@ -47,7 +49,7 @@ public class StatsdClientTest {
     }
 
     @Test
-    public void test(StatsdClient client, Fixture fixture) throws InterruptedException {
+    public void test(StatsdClient client, Fixture fixture) throws Exception {
         assertTrue(client instanceof StatsdClientImpl);
         StatsdClientImpl c = (StatsdClientImpl) client;
         fixture.moreThings();
@@ -69,6 +71,18 @@ public class StatsdClientTest {
         fixture.waitAWhile();
         int waits = c.value("waits");
         assertTrue(waits + " was too short", waits >= 200);
+
+        // Async methods are timed until the future completes
+        CompletableFuture<Void> async = fixture.waitAsync(false);
+        assertEquals(0, c.value("asyncWaits"));
+        async.get(10, TimeUnit.SECONDS);
+        awaitValue(c, "asyncWaits", 200);
+        try {
+            fixture.waitAsync(true).get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException expected) {
+            // do nothing
+        }
+        awaitValue(c, "asyncWaits.failures", 1);
         assertEquals(0, c.value("widgets"));
         fixture.widgets.decrement();
         assertEquals(-1, c.value("widgets"));
@@ -81,6 +95,15 @@ public class StatsdClientTest {
         assertTrue(val >= ct);
     }
 
+    private static void awaitValue(StatsdClientImpl c, String name, int atLeast) throws InterruptedException {
+        // Completion is recorded by a callback which may run just after
+        // get() returns
+        for (int i = 0; i < 100 && c.value(name) < atLeast; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(name + " was " + c.value(name), c.value(name) >= atLeast);
+    }
+
     static class Fixture {
 
         private final Counter widgets;
@@ -112,6 +135,23 @@ public class StatsdClientTest {
         public void waitAWhile() throws InterruptedException {
             Thread.sleep(200);
         }
+
+        @Metric(value = "asyncWaits", type = Metric.Types.TIME)
+        public CompletableFuture<Void> waitAsync(final boolean fail) {
+            return CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    if (fail) {
+                        throw new IllegalStateException("Expected");
+                    }
+                }
+            });
+        }
     }
 
     static class M extends StatsdModule {
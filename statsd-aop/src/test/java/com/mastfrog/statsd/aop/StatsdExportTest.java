@@ -0,0 +1,128 @@
+package com.mastfrog.statsd.aop;
+
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.statsd.aop.StatsdExportTest.M;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that with a StatsdExporter, only counts wait for it; timings and
+ * concurrency are still sent by each call.
+ *
+ * @author Tim Boudreau
+ */
+@RunWith(GuiceRunner.class)
+@TestWith(M.class)
+public class StatsdExportTest {
+
+    @Test
+    public void testTimesAndConcurrencyAreSentPerCall(StatsdClient client, Fixture fixture) throws Exception {
+        assertTrue(client instanceof Recorder);
+        Recorder r = (Recorder) client;
+        fixture.quick();
+        fixture.quick();
+        fixture.quick();
+        fixture.count();
+        fixture.count();
+        assertEquals(Arrays.asList("time:quick", "time:quick", "time:quick"), r.calls());
+
+        // Two calls in flight at once are each sent, with how many were
+        // running when they started
+        CountDownLatch entered = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread a = new Thread(() -> fixture.concurrent(entered, release));
+        Thread b = new Thread(() -> fixture.concurrent(entered, release));
+        a.start();
+        b.start();
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        a.join(10000);
+        b.join(10000);
+        List<String> calls = r.calls();
+        assertEquals(calls.toString(), 5, calls.size());
+        assertTrue(calls.toString(), calls.containsAll(Arrays.asList("count:concurrent:1", "count:concurrent:2")));
+        assertEquals(calls.toString(), 0, calls.stream().filter(s -> s.contains("counted")).count());
+    }
+
+    static class Fixture {
+
+        @Metric(value = "quick", type = Metric.Types.TIME)
+        public void quick() {
+        }
+
+        @Metric(value = "counted", type = Metric.Types.INCREMENT)
+        public void count() {
+        }
+
+        @Metric(value = "concurrent", type = Metric.Types.CONCURRENCY)
+        public void concurrent(CountDownLatch entered, CountDownLatch release) {
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    static class M extends StatsdModule {
+
+        public M(Settings settings) {
+            super(settings, Recorder.class);
+        }
+    }
+
+    @Singleton
+    public static class Recorder extends MockStatsdClient {
+
+        private final List<String> calls = new ArrayList<>();
+
+        synchronized List<String> calls() {
+            return new ArrayList<>(calls);
+        }
+
+        private synchronized void add(String call) {
+            calls.add(call);
+        }
+
+        @Override
+        public StatsdClient count(String string, int i) {
+            add("count:" + string + ":" + i);
+            return this;
+        }
+
+        @Override
+        public StatsdClient decrement(String string) {
+            add("decrement:" + string);
+            return this;
+        }
+
+        @Override
+        public StatsdClient gauge(String string, int i) {
+            add("gauge:" + string + ":" + i);
+            return this;
+        }
+
+        @Override
+        public StatsdClient increment(String string) {
+            add("increment:" + string);
+            return this;
+        }
+
+        @Override
+        public StatsdClient time(String string, int i) {
+            add("time:" + string);
+            return this;
+        }
+    }
+}